@@ -0,0 +1,26 @@
+plugins {
+    java
+    id("me.champeau.jmh") version "0.6.8"
+    idea
+}
+
+java.sourceCompatibility = JavaVersion.VERSION_11
+
+dependencies {
+    jmh(project(":server"))
+    jmh(project(":stub"))
+    jmh("org.openjdk.jmh:jmh-core:1.35")
+    jmh("org.openjdk.jmh:jmh-generator-annprocess:1.35")
+    jmhAnnotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:1.35")
+}
+
+// Run with: ./gradlew :benchmarks:jmh
+// A subset can be selected with -Pjmh.includes=LedgerBenchmark, the 10M data set needs a large heap.
+jmh {
+    includes.set(listOfNotNull(project.findProperty("jmh.includes") as String?).ifEmpty { listOf(".*") })
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+    jvmArgs.set(listOf("-Xms4g", "-Xmx16g"))
+    resultFormat.set("JSON")
+}
@@ -0,0 +1,102 @@
+package benchmarks;
+
+import constants.Constants;
+import model.Response;
+import model.Transaction;
+import model.Transfer;
+import model.UTxO;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import persistence.HistoryStore;
+import transactionmanager.TransactionLedger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the TransactionLedger hot paths over ledgers of different sizes and address skews.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LedgerBenchmark {
+    private static final int NUM_ADDRESSES = 100000;
+    private static final int NUM_CANDIDATES = 4096;
+    private static final int HISTORY_LIMIT = 100;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int transactions;
+
+    @Param({Workload.UNIFORM, Workload.ZIPF})
+    public String distribution;
+
+    // Where the ledger keeps its history, on the heap or serialized in direct buffers
+    @Param({"heap", Constants.HISTORY_STORE_DIRECT})
+    public String historyStore;
+
+    private Workload workload;
+    private TransactionLedger ledger;
+    private SplittableRandom random;
+    private long nextTimestamp;
+
+    // Valid (not yet performed) transactions for canProcessTransaction
+    private final List<Transaction> candidates = new ArrayList<>();
+    private int nextCandidate = 0;
+
+    // performTransaction moves a single UTxO between addresses, each step spends the output of the previous one
+    private UTxO chainHead;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        workload = new Workload(NUM_ADDRESSES, distribution);
+        ledger = new TransactionLedger(new StubZooKeeperClient(),
+                Constants.HISTORY_STORE_DIRECT.equals(historyStore) ? HistoryStore.direct(Constants.HISTORY_ARENA_SIZE) : null);
+        workload.populate(ledger, transactions, 42);
+        random = new SplittableRandom(7);
+        nextTimestamp = transactions + 1L;
+
+        while (candidates.size() < NUM_CANDIDATES) {
+            String source = workload.nextAddress(random);
+            List<UTxO> unspent = ledger.listUTxOsForAddress(source);
+            if (unspent.isEmpty()) {
+                continue;
+            }
+            UTxO input = unspent.iterator().next();
+            candidates.add(new Transaction(null, Long.MAX_VALUE, source,
+                    Collections.singletonList(input), Collections.singletonList(new Transfer(workload.nextAddress(random) + "-target", 1000))));
+        }
+
+        Transaction seed = Workload.fundingTransaction("chain", nextTimestamp++, -1);
+        ledger.recordTransaction(seed);
+        chainHead = new UTxO("chain", seed.getTransactionId());
+    }
+
+    @Benchmark
+    public Response canProcessTransaction() {
+        Transaction candidate = candidates.get(nextCandidate);
+        nextCandidate = (nextCandidate + 1) % candidates.size();
+        return ledger.canProcessTransaction(candidate, true);
+    }
+
+    @Benchmark
+    public void performTransaction() {
+        String target = workload.nextAddress(random);
+        Transaction transaction = new Transaction(null, nextTimestamp++, chainHead.getAddress(),
+                Collections.singletonList(chainHead), Collections.singletonList(new Transfer(target, 1000)));
+        ledger.performTransaction(transaction);
+        chainHead = new UTxO(target, transaction.getTransactionId());
+    }
+
+    @Benchmark
+    public void listTransactionsForAddress(Blackhole blackhole) {
+        blackhole.consume(ledger.listTransactionsForAddress(workload.nextAddress(random), HISTORY_LIMIT, null));
+    }
+
+    @Benchmark
+    public Response.TransactionResp createTransactionForCoinTransfer() {
+        return ledger.createTransactionForCoinTransfer(workload.nextAddress(random), "coin-transfer-target", 1500);
+    }
+}
@@ -0,0 +1,38 @@
+package benchmarks;
+
+import com.google.common.hash.Hashing;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of routing an address to its shard, the same consistent hashing the ZooKeeper client uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RoutingBenchmark {
+    @Param({"2", "8", "64"})
+    public int shards;
+
+    @Param({"1000", "1000000"})
+    public int addresses;
+
+    @Param({Workload.UNIFORM, Workload.ZIPF})
+    public String distribution;
+
+    private Workload workload;
+    private SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        workload = new Workload(addresses, distribution);
+        random = new SplittableRandom(42);
+    }
+
+    @Benchmark
+    public int consistentHash() {
+        return Hashing.consistentHash(workload.nextAddress(random).hashCode(), shards);
+    }
+}
@@ -0,0 +1,64 @@
+package benchmarks;
+
+import cs236351.grpcservice.TransactionMsg;
+import grpcservice.RequestHandlerUtils;
+import model.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the conversions between the model and the gRPC messages, and of computing transaction ids.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SerializationBenchmark {
+    private static final int NUM_TRANSACTIONS = 1024;
+
+    @Param({"1", "8", "64"})
+    public int fanOut;
+
+    @Param({Workload.UNIFORM, Workload.ZIPF})
+    public String distribution;
+
+    private final List<Transaction> transactions = new ArrayList<>();
+    private final List<TransactionMsg> messages = new ArrayList<>();
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Workload workload = new Workload(100000, distribution);
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < NUM_TRANSACTIONS; i++) {
+            Transaction transaction = workload.randomTransaction(random, fanOut, fanOut);
+            transactions.add(transaction);
+            messages.add(RequestHandlerUtils.createTransactionMsg(transaction));
+        }
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = (next + 1) % NUM_TRANSACTIONS;
+        return index;
+    }
+
+    @Benchmark
+    public TransactionMsg createTransactionMsg() {
+        return RequestHandlerUtils.createTransactionMsg(transactions.get(nextIndex()));
+    }
+
+    @Benchmark
+    public Transaction createTransaction() {
+        return RequestHandlerUtils.createTransaction(messages.get(nextIndex()));
+    }
+
+    @Benchmark
+    public String computeTransactionId() {
+        Transaction transaction = transactions.get(nextIndex());
+        return Transaction.computeTransactionId(transaction.getSourceAddress(), transaction.getInputs(), transaction.getOutputs());
+    }
+}
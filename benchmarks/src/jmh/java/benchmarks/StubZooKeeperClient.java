@@ -0,0 +1,137 @@
+package benchmarks;
+
+import zookeeper.Decision;
+import zookeeper.ZooKeeperClient;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * In-memory ZooKeeperClient for the benchmarks: a single shard with a single server that is responsible for every
+ * address, and a local timestamp counter. Coordination calls are not used by the benchmarked code paths.
+ */
+public class StubZooKeeperClient implements ZooKeeperClient {
+    private static final String SERVER_ID = "server-0";
+    private static final String SHARD_ID = "shard-0";
+
+    private final AtomicLong timestamps = new AtomicLong(1);
+
+    @Override
+    public void setup() {}
+
+    @Override
+    public void setupInitialStructures() {}
+
+    @Override
+    public void registerServer(String address) {}
+
+    @Override
+    public String getServerId() {
+        return SERVER_ID;
+    }
+
+    @Override
+    public String getShardId() {
+        return SHARD_ID;
+    }
+
+    @Override
+    public List<String> getServers() {
+        return Collections.singletonList(SERVER_ID);
+    }
+
+    @Override
+    public List<String> getServersInShard(String shardId) {
+        return Collections.singletonList(SERVER_ID);
+    }
+
+    @Override
+    public Map<String, List<String>> getShards() {
+        return Collections.singletonMap(SHARD_ID, getServers());
+    }
+
+    @Override
+    public String getServerAddress(String serverId) {
+        return "localhost";
+    }
+
+    @Override
+    public String getShardLeader(String shardId) {
+        return SERVER_ID;
+    }
+
+    @Override
+    public String watchLeader(String shardId, BiFunction<String, String, Object> func) {
+        return SERVER_ID;
+    }
+
+    @Override
+    public String getResponsibleShard(String address) {
+        return SHARD_ID;
+    }
+
+    @Override
+    public Decision atomicCommitWait(String atomicTxnListId, String initiatorServer, boolean vote, List<String> votingShards) {
+        return new Decision(vote, getTimestamp());
+    }
+
+    @Override
+    public Decision recordDecision(String commitId, Decision decision, List<String> participants) {
+        return decision;
+    }
+
+    @Override
+    public void releaseDecision(String commitId, String serverId) {}
+
+    @Override
+    public Decision readDecision(String commitId) {
+        return null;
+    }
+
+    @Override
+    public boolean isServerAlive(String serverId) {
+        return true;
+    }
+
+    @Override
+    public long getGlobalTimestamp() {
+        return getTimestamp();
+    }
+
+    @Override
+    public long getTimestamp() {
+        return timestamps.getAndIncrement();
+    }
+
+    @Override
+    public long getTimestamps(int count) {
+        return timestamps.getAndAdd(count);
+    }
+
+    @Override
+    public void observeTimestamp(long timestamp) {
+        timestamps.accumulateAndGet(timestamp + 1, Math::max);
+    }
+
+    @Override
+    public void enterBarrier(String barrierId, List<String> shards, String initiatorServerId) {}
+
+    @Override
+    public void setDecision(String barrierId, boolean decision, long timestamp) {}
+
+    @Override
+    public Decision waitForDecision(String barrierId, String initiatorServerId) {
+        return new Decision(true, getTimestamp());
+    }
+
+    @Override
+    public void leaveBarrier(String path) {}
+
+    @Override
+    public boolean isResponsibleForAddress(String address) {
+        return true;
+    }
+}
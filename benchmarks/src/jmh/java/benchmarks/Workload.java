@@ -0,0 +1,87 @@
+package benchmarks;
+
+import model.Transaction;
+import model.Transfer;
+import model.UTxO;
+import transactionmanager.TransactionLedger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Synthetic data sets for the benchmarks.
+ * Addresses are drawn either uniformly or from a Zipf distribution (a few hot addresses take most of the traffic),
+ * and the ledger is filled with funding transactions recorded from "another shard" so no validation is needed to build it.
+ */
+public class Workload {
+    public static final String UNIFORM = "uniform";
+    public static final String ZIPF = "zipf";
+    private static final double ZIPF_EXPONENT = 1.1;
+    private static final long COINS_PER_OUTPUT = 1000;
+
+    private final String[] addresses;
+    // Cumulative distribution over the addresses, null for uniform
+    private final double[] cdf;
+
+    public Workload(int numAddresses, String distribution) {
+        this.addresses = new String[numAddresses];
+        for (int i = 0; i < numAddresses; i++) {
+            addresses[i] = String.format("address-%08d", i);
+        }
+        if (ZIPF.equals(distribution)) {
+            cdf = new double[numAddresses];
+            double sum = 0;
+            for (int i = 0; i < numAddresses; i++) {
+                sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < numAddresses; i++) {
+                cdf[i] /= sum;
+            }
+        } else if (UNIFORM.equals(distribution)) {
+            cdf = null;
+        } else {
+            throw new IllegalArgumentException(String.format("Unknown address distribution %s", distribution));
+        }
+    }
+
+    public String nextAddress(SplittableRandom random) {
+        if (cdf == null) {
+            return addresses[random.nextInt(addresses.length)];
+        }
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        return addresses[Math.min(index >= 0 ? index : -index - 1, addresses.length - 1)];
+    }
+
+    /** A transaction giving coins to `address`, as if it was processed by another shard (its input only makes the id unique) */
+    public static Transaction fundingTransaction(String address, long timestamp, long salt) {
+        List<Transfer> outputs = Collections.singletonList(new Transfer(address, COINS_PER_OUTPUT));
+        List<UTxO> inputs = Collections.singletonList(new UTxO("funding", Long.toHexString(salt)));
+        return new Transaction(null, timestamp, "funding", inputs, outputs);
+    }
+
+    /** Fills the ledger with `numTransactions` funding transactions to addresses drawn from the distribution */
+    public void populate(TransactionLedger ledger, int numTransactions, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < numTransactions; i++) {
+            ledger.recordTransaction(fundingTransaction(nextAddress(random), i + 1, i));
+        }
+    }
+
+    /** A transaction with `fanIn` inputs and `fanOut` outputs, used for the serialization benchmarks */
+    public Transaction randomTransaction(SplittableRandom random, int fanIn, int fanOut) {
+        List<UTxO> inputs = new ArrayList<>(fanIn);
+        String source = nextAddress(random);
+        for (int i = 0; i < fanIn; i++) {
+            inputs.add(new UTxO(source, Long.toHexString(random.nextLong())));
+        }
+        List<Transfer> outputs = new ArrayList<>(fanOut);
+        for (int i = 0; i < fanOut; i++) {
+            outputs.add(new Transfer(nextAddress(random) + "-" + i, random.nextInt(1000)));
+        }
+        return new Transaction(null, random.nextLong() & Long.MAX_VALUE, source, inputs, outputs);
+    }
+}
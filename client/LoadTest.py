@@ -0,0 +1,75 @@
+import random
+import threading
+import time
+from concurrent.futures import ThreadPoolExecutor
+
+import requests
+
+import Requests
+
+''' Load test: many concurrent clients sending coin transfers and reading UTxOs.
+    Run it once against a cluster started with THREAD_MODE=platform and once with THREAD_MODE=virtual
+    (docker/variables.env) to compare throughput and latency under the same load. '''
+
+FUNDING_COINS = 1000
+READ_RATIO = 0.2
+
+
+def percentile(sortedValues, p):
+    if not sortedValues:
+        return 0
+    return sortedValues[min(len(sortedValues) - 1, int(len(sortedValues) * p / 100))]
+
+
+def fundClients(servers, clients):
+    # Every client gets its own address so the concurrent transfers don't compete over the same UTxOs
+    for client in clients:
+        Requests.sendCoins(servers, "GenesisAddress", client, FUNDING_COINS)
+
+
+def runClient(servers, client, numRequests, latencies, errors, lock):
+    session = requests.Session()
+    for i in range(numRequests):
+        server = random.choice(servers)
+        start = time.time()
+        try:
+            if random.random() < READ_RATIO:
+                r = session.get(f"http://{server}/users/{client}/utxos")
+            else:
+                r = session.post(f"http://{server}/send_coins", json={
+                    "source_address": client,
+                    "target_address": f"{client}-Sink",
+                    "coins": 1,
+                    "request_id": f"{client}-{i}"
+                })
+            ok = r.status_code < 300
+        except requests.RequestException:
+            ok = False
+        elapsed = time.time() - start
+        with lock:
+            latencies.append(elapsed)
+            if not ok:
+                errors[0] += 1
+
+
+def runTest(servers, concurrency=64, requestsPerClient=100):
+    testName = "LoadTest"
+    print(f"{testName}: Started with {concurrency} concurrent clients, {requestsPerClient} requests each")
+    clients = [f"LoadClient{i}" for i in range(concurrency)]
+    fundClients(servers, clients)
+
+    latencies = []
+    errors = [0]
+    lock = threading.Lock()
+    start = time.time()
+    with ThreadPoolExecutor(max_workers=concurrency) as pool:
+        for client in clients:
+            pool.submit(runClient, servers, client, requestsPerClient, latencies, errors, lock)
+    duration = time.time() - start
+
+    latencies.sort()
+    total = len(latencies)
+    print(f"{testName}: {total} requests in {duration:.2f} seconds, {total / duration:.1f} requests/second, {errors[0]} errors")
+    print(f"{testName}: latency p50={percentile(latencies, 50) * 1000:.1f}ms "
+          f"p90={percentile(latencies, 90) * 1000:.1f}ms p99={percentile(latencies, 99) * 1000:.1f}ms "
+          f"max={latencies[-1] * 1000 if latencies else 0:.1f}ms")
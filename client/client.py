@@ -5,6 +5,7 @@ import time
 
 ''' Tests '''
 import BasicTest
+import LoadTest
 import RandomTest
 
 
@@ -14,6 +15,8 @@ def parseArguments():
                         help='Range of REST server ports in the format <StartPort>:<EndPort>')
     parser.add_argument('-t', '--test', type=str, help='The test to run')
     parser.add_argument('-r', '--random_seed', type=str, help='The random seed to be used, if applicable')
+    parser.add_argument('-c', '--concurrency', type=int, default=64, help='Concurrent clients in the LoadTest')
+    parser.add_argument('-n', '--num_requests', type=int, default=100, help='Requests per client in the LoadTest')
     return parser.parse_args()
 
 
@@ -50,6 +53,8 @@ def main():
         BasicTest.runTest(servers)
     elif (test == "RandomTest"):
         RandomTest.runTest(servers)
+    elif (test == "LoadTest"):
+        LoadTest.runTest(servers, args.concurrency, args.num_requests)
     else:
         print(f"Can't recognise test {test}")
         exit(-1)
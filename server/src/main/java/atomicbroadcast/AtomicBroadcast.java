@@ -1,22 +1,39 @@
 package atomicbroadcast;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Empty;
+import com.google.protobuf.InvalidProtocolBufferException;
 import constants.Constants;
 import cs236351.grpcservice.BroadcastMsg;
+import cs236351.grpcservice.ExecuteBatch;
+import cs236351.grpcservice.ExecuteBatchList;
+import cs236351.grpcservice.FetchSinceMsg;
 import cs236351.grpcservice.TransactionHistoryMsg;
 import grpcservice.RequestHandlerUtils;
 import io.grpc.*;
 import io.grpc.stub.StreamObserver;
-import kotlin.Pair;
 import model.Transaction;
+import multipaxos.MultiPaxos;
+import persistence.IdempotencyStore;
+import transactionmanager.ThreadMode;
 import transactionmanager.TransactionManager;
 import cs236351.grpcservice.AtomicBroadcastServiceGrpc;
 
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -39,80 +56,115 @@ public class AtomicBroadcast extends AtomicBroadcastServiceGrpc.AtomicBroadcastS
     String ID;
     volatile Map<String, String> sequencers = new ConcurrentHashMap<>();
 
-    /** Proposals Queue: Contains all the proposals for the Sequencer to schedule */
-    private static class BroadcastMsgAndFlag {
+    /**
+     * Proposals Queue: Contains all the proposals for the Sequencer to schedule.
+     * The proposer is answered once its proposal is scheduled, no thread waits for it meanwhile.
+     */
+    private static class Proposal {
         BroadcastMsg msg;
-        volatile boolean scheduledSignal;
-        public BroadcastMsgAndFlag(BroadcastMsg msg) {
+        StreamObserver<Empty> proposer;
+        public Proposal(BroadcastMsg msg, StreamObserver<Empty> proposer) {
             this.msg = msg;
-            this.scheduledSignal = false;
+            this.proposer = proposer;
         }
         public void finish() {
-            synchronized (this) {
-                scheduledSignal = true;
-                this.notify();
-            }
-        }
-        public void waitScheduled() {
-            synchronized (this) {
-                while (!this.scheduledSignal) {
-                    try {
-                        this.wait();
-                    } catch (InterruptedException e) {
-                        /* Nothing */
-                    }
-                }
-            }
+            proposer.onNext(Empty.newBuilder().build());
+            proposer.onCompleted();
         }
     }
-    BlockingQueue<BroadcastMsgAndFlag> proposalsQueue;
-    /** Packets Queue: Contains all the packets ordered by sequencer that need to be executed */
-    BlockingQueue<BroadcastMsg> packetsQueue;
+    BlockingQueue<Proposal> proposalsQueue;
+    /** Packets Queue: Contains all the batches of packets ordered by sequencer that need to be executed */
+    BlockingQueue<ExecuteBatch> packetsQueue;
+    /**
+     * Reorder Buffer: Batches are sent asynchronously, so they might arrive out of order.
+     * Holds the batches received before their predecessors, until they can be pushed to the packetsQueue in order.
+     * Batches more than SEQUENCER_MAX_REORDERED_BATCHES ahead of the next one are refused, the sequencer sends them again.
+     */
+    private final Map<Long, ExecuteBatch> reorderBuffer = new HashMap<>();
+    private String currSequencerId = null;
+    private long nextSeqNo = 1;
+    /** The highest sequence number received from the current sequencer, batches up to it are missing */
+    private long lastSeenSeqNo = 0;
+    /** Whether a FetchSince of the missing batches is in flight */
+    private boolean fetching = false;
 
     /** Channels to all other Services */
-    private Map<String, Function<BroadcastMsg, Empty>> broadcastToShardStubs = new HashMap<>();
+    private Map<String, Function<BroadcastMsg, ListenableFuture<Empty>>> broadcastToShardStubs = new HashMap<>();
+    Map<String, Function<FetchSinceMsg, ListenableFuture<ExecuteBatchList>>> fetchSinceStubs = new HashMap<>();
 
     /** Sequencer and Executor */
     Sequencer sequencer;
     Executor executor;
 
+    /**
+     * With BROADCAST_MODE=multipaxos the sequencer's batches are replicated with Multi-Paxos, and every server
+     * (the sequencer included) executes a batch once it is chosen by a quorum of the shard.
+     * Otherwise (BROADCAST_MODE=sequencer, the default) the sequencer sends its batches to the replicas directly.
+     */
+    final private MultiPaxos multiPaxos;
+
 
     public AtomicBroadcast(TransactionManager mngr) {
         this.mngr = mngr;
         this.proposalsQueue = new LinkedBlockingDeque<>();
         this.packetsQueue = new LinkedBlockingDeque<>();
         this.executor = new Executor(mngr, packetsQueue);
-        this.sequencer = new Sequencer(mngr, executor, proposalsQueue);
+        this.sequencer = new Sequencer(mngr, proposalsQueue);
+        this.multiPaxos = Constants.BROADCAST_MODE_MULTIPAXOS.equalsIgnoreCase(System.getenv(Constants.ENV_BROADCAST_MODE))
+                ? new MultiPaxos(this::deliverChosen) : null;
     }
 
     public void addServices(ServerBuilder<?> serverBuilder) {
         serverBuilder.addService(this);
+        if (multiPaxos != null) {
+            multiPaxos.addServices(serverBuilder);
+        }
     }
 
     public void setup(String myServerId, String myShardId, Map<String, String> serversAddresses, Map<String, List<String>> shards, Map<String, String> sequencers ) {
         this.myServerId = myServerId;
         this.myShardId = myShardId;
         this.ID = String.format("%s-%s", myServerId, myShardId);
-        Map<String, Function<BroadcastMsg, Empty>> executeMsgStubs = new HashMap<>();
+        Map<String, BiConsumer<ExecuteBatch, StreamObserver<Empty>>> executeMsgStubs = new HashMap<>();
         for (Map.Entry<String,String> entry : serversAddresses.entrySet()) {
-            logger.log(Level.INFO, String.format("%s: Creating a blocking stub to server %s at address %s",
+            logger.log(Level.INFO, String.format("%s: Creating stubs to server %s at address %s",
                     ID, entry.getKey(), entry.getValue()));
             ManagedChannel channel = ManagedChannelBuilder.forTarget(entry.getValue()+ ":" + System.getenv(Constants.ENV_GRPC_PORT)).usePlaintext().build();
-            AtomicBroadcastServiceGrpc.AtomicBroadcastServiceBlockingStub stub = AtomicBroadcastServiceGrpc.newBlockingStub(channel);
+            AtomicBroadcastServiceGrpc.AtomicBroadcastServiceFutureStub stub = AtomicBroadcastServiceGrpc.newFutureStub(channel);
             // broadcastToShardStubs are needed to all servers since all of them can be sequencers at some point
             this.broadcastToShardStubs.put(entry.getKey(), stub::broadcastToShard);
-            // executeMsgStubs needed only for servers in my Shard other than me
+            this.fetchSinceStubs.put(entry.getKey(), stub::fetchSince);
+            // executeMsgStubs needed only for servers in my Shard other than me, they are async so the fan-out is parallel
             if (shards.get(myShardId).contains(entry.getKey()) && !myServerId.equals(entry.getKey())) {
-                executeMsgStubs.put(entry.getKey(), stub::executeMsg);
+                AtomicBroadcastServiceGrpc.AtomicBroadcastServiceStub asyncStub = AtomicBroadcastServiceGrpc.newStub(channel);
+                executeMsgStubs.put(entry.getKey(), asyncStub::executeMsgBatch);
             }
         }
-        this.sequencer.setup(myServerId, myShardId, ID, executeMsgStubs);
-        this.executor.setup(ID);
-        // Run the Sequencer and Executor on two new Threads
-        new Thread(this.sequencer, "AtomicBroadcastSequencer").start();
-        new Thread(this.executor, "AtomicBroadcastExecutor").start();
-        // Add sequencers
+        if (multiPaxos != null) {
+            Map<String, String> replicasAddresses = new HashMap<>();
+            for (String replica : shards.get(myShardId)) {
+                replicasAddresses.put(replica, serversAddresses.get(replica));
+            }
+            // The acceptor's state is kept next to the ledger log, when there is one
+            String logDir = System.getenv(Constants.ENV_LEDGER_LOG_DIR);
+            this.multiPaxos.setup(myServerId, ID, replicasAddresses,
+                    logDir == null ? null : Paths.get(logDir, System.getenv(Constants.ENV_HOST_NAME), myShardId, "multipaxos"));
+        }
+        this.setup(myServerId, myShardId, sequencers, executeMsgStubs, mngr::isServerAlive);
+        // Run the Sequencer and Executor on two new Threads (virtual ones in virtual thread mode)
+        ThreadMode.newThread(this.sequencer, "AtomicBroadcastSequencer").start();
+        ThreadMode.newThread(this.executor, "AtomicBroadcastExecutor").start();
+    }
+
+    /** Sets up the Sequencer and Executor without running them, tests provide the stubs to the other replicas */
+    void setup(String myServerId, String myShardId, Map<String, String> sequencers,
+               Map<String, BiConsumer<ExecuteBatch, StreamObserver<Empty>>> executeMsgStubs, Predicate<String> isAlive) {
+        this.myServerId = myServerId;
+        this.myShardId = myShardId;
+        this.ID = String.format("%s-%s", myServerId, myShardId);
         this.sequencers = sequencers;
+        this.sequencer.setup(myServerId, myShardId, ID, executeMsgStubs, isAlive);
+        this.executor.setup(ID);
     }
 
     /**
@@ -120,12 +172,14 @@ public class AtomicBroadcast extends AtomicBroadcastServiceGrpc.AtomicBroadcastS
      * These functions are called by the Transaction Manager to broadcast specific requests to specific shards.
      * Should go over the shards list (sorted to prevent deadlocks) and propose the request to the leader of the shard.
      * When the shard guarantees that it is submitted or that it has already broadcast a request with the same pair
-     * of <origServerId, pendingReqId> then it returns, and we can continue to the next shard.
+     * of <origServerId, pendingReqId> then we can continue to the next shard.
+     * They return immediately, the future completes once all the shards scheduled the request.
      *
      * When broadcasting a Transaction or a CoinTransfer, the leader should first get a timestamp and add it to the Transaction
-     * before submitting it. It is not needed for AtomicTxList since it will be taken inside the barrier.
+     * before submitting it. An AtomicTxList gets one too, it is used when the list is handled by a single shard - otherwise
+     * the timestamp is taken inside the barrier.
      */
-    public void broadcastTransaction(String shard, Transaction trans, String idempotencyKey, String origServerId, int pendingReqId) {
+    public CompletableFuture<Void> broadcastTransaction(String shard, Transaction trans, String idempotencyKey, String origServerId, int pendingReqId) {
         BroadcastMsg msg = BroadcastMsg.newBuilder()
                 .setOrigServerId(origServerId)
                 .setPendingReqId(pendingReqId)
@@ -133,9 +187,9 @@ public class AtomicBroadcast extends AtomicBroadcastServiceGrpc.AtomicBroadcastS
                 .setTransaction(RequestHandlerUtils.createTransactionMsg(trans))
                 .build();
         List<String> shardSingleton = Collections.singletonList(shard);
-        this.broadcastToShards(shardSingleton, msg);
+        return this.broadcastToShards(shardSingleton, msg);
     }
-    public void broadcastAtomicTxList(List<String> shards, List<Transaction> atomicList, String idempotencyKey, String origServerId, int pendingReqId) {
+    public CompletableFuture<Void> broadcastAtomicTxList(List<String> shards, List<Transaction> atomicList, String idempotencyKey, String origServerId, int pendingReqId) {
         BroadcastMsg msg = BroadcastMsg.newBuilder()
                 .setOrigServerId(origServerId)
                 .setPendingReqId(pendingReqId)
@@ -143,31 +197,39 @@ public class AtomicBroadcast extends AtomicBroadcastServiceGrpc.AtomicBroadcastS
                 .setTransactionsList(TransactionHistoryMsg.newBuilder().addAllTransactions(atomicList.stream().map(
                         RequestHandlerUtils::createTransactionMsg).collect(Collectors.toList())).build())
                 .build();
-        this.broadcastToShards(shards, msg);
+        return this.broadcastToShards(shards, msg);
     }
-    public void broadcastListEntireHistory(List<String> shards, int limit, String origServerId, int pendingReqId) {
+    public CompletableFuture<Void> broadcastSnapshotMarker(List<String> shards, long snapshotTimestamp, String origServerId, int pendingReqId) {
         BroadcastMsg msg = BroadcastMsg.newBuilder()
                 .setOrigServerId(origServerId)
                 .setPendingReqId(pendingReqId)
-                .setLimit(limit)
+                .setSnapshotMarker(snapshotTimestamp)
                 .build();
-        this.broadcastToShards(shards, msg);
+        return this.broadcastToShards(shards, msg);
     }
-    public void broadcastToShards(List<String> shardsList, BroadcastMsg msg) {
+    public CompletableFuture<Void> broadcastToShards(List<String> shardsList, BroadcastMsg msg) {
         shardsList = new ArrayList<>(shardsList);
         Collections.sort(shardsList); // Very important to prevent deadlocks
         logger.log(Level.INFO, String.format("%s: Need to broadcast %s to %s", ID, msg.toString(), shardsList.toString()));
+        // Shards are still proposed to one after the other, the next one once the previous one scheduled the request
+        CompletableFuture<Void> proposed = CompletableFuture.completedFuture(null);
         for (String currShard : shardsList) {
-            String currSequencer = sequencers.get(currShard);
-            try {
-                logger.log(Level.INFO, String.format("%s: Sending message %s to sequencer %s of shard %s", ID, msg.toString(), currSequencer, currShard));
-                Empty resp = broadcastToShardStubs.get(currSequencer).apply(msg);
-                logger.log(Level.INFO, String.format("%s: Sending message to %s succeeded", ID, currSequencer));
-            } catch (StatusRuntimeException e) {
-                logger.log(Level.INFO, String.format("%s: Sending message to %s failed!! Sequencers should be alive !!", ID, currSequencer));
-                throw new RuntimeException(String.format("%s: Sequencer %s of Shard %s isn't available!!", ID, currSequencer, currShard));
-            }
+            proposed = proposed.thenCompose(v -> this.proposeToShard(currShard, msg));
         }
+        return proposed;
+    }
+    private CompletableFuture<Void> proposeToShard(String shard, BroadcastMsg msg) {
+        String currSequencer = sequencers.get(shard);
+        logger.log(Level.INFO, String.format("%s: Sending message %s to sequencer %s of shard %s", ID, msg.toString(), currSequencer, shard));
+        return RequestHandlerUtils.toCompletableFuture(broadcastToShardStubs.get(currSequencer).apply(msg))
+                .handle((resp, e) -> {
+                    if (e != null) {
+                        logger.log(Level.INFO, String.format("%s: Sending message to %s failed!! Sequencers should be alive !!", ID, currSequencer));
+                        throw new RuntimeException(String.format("%s: Sequencer %s of Shard %s isn't available!!", ID, currSequencer, shard));
+                    }
+                    logger.log(Level.INFO, String.format("%s: Sending message to %s succeeded", ID, currSequencer));
+                    return null;
+                });
     }
 
     /**
@@ -178,81 +240,419 @@ public class AtomicBroadcast extends AtomicBroadcastServiceGrpc.AtomicBroadcastS
     @Override
     public void broadcastToShard(BroadcastMsg request, StreamObserver<Empty> responseObserver) {
         logger.log(Level.INFO, String.format("%s: Received proposal to sequencer: %s. Pushing to Queue.", ID, request.toString()));
-        BroadcastMsgAndFlag msg = new BroadcastMsgAndFlag(request);
-        proposalsQueue.add(msg);
-        msg.waitScheduled();
-        logger.log(Level.INFO, String.format("%s: Request %s scheduled.", ID, request.toString()));
+        // The Sequencer answers the proposer once the request is scheduled
+        proposalsQueue.add(new Proposal(request, responseObserver));
+    }
+
+    /* Called on a batch of requests by the sequencer to execute */
+    @Override
+    public void executeMsgBatch(ExecuteBatch request, StreamObserver<Empty> responseObserver) {
+        logger.log(Level.INFO, String.format("%s: Received batch %d of %d messages from sequencer %s to execute. Pushing to Queue.",
+                ID, request.getSeqNo(), request.getMsgsCount(), request.getSequencerId()));
+        // The batch is acked only once it is delivered or buffered, the sequencer keeps it until every replica acks it
+        if (!this.deliverInOrder(request)) {
+            responseObserver.onError(Status.UNAVAILABLE
+                    .withDescription(String.format("Batch %d from %s refused", request.getSeqNo(), request.getSequencerId()))
+                    .asRuntimeException());
+            return;
+        }
         responseObserver.onNext(Empty.newBuilder().build());
         responseObserver.onCompleted();
     }
 
-    /* Called on a request by the sequencer to execute */
+    /* Called by a lagging replica on the batches it missed */
     @Override
-    public void executeMsg(BroadcastMsg request, StreamObserver<Empty> responseObserver) {
-        logger.log(Level.INFO, String.format("%s: Received message from sequencer to execute: %s. Pushing to Queue.", ID, request.toString()));
-        packetsQueue.add(request);
-        responseObserver.onNext(Empty.newBuilder().build());
+    public void fetchSince(FetchSinceMsg request, StreamObserver<ExecuteBatchList> responseObserver) {
+        logger.log(Level.INFO, String.format("%s: Received fetch of the batches of %s since %d", ID, request.getSequencerId(), request.getSeqNo()));
+        ExecuteBatchList.Builder batches = ExecuteBatchList.newBuilder();
+        if (request.getSequencerId().equals(myServerId)) {
+            batches.addAllBatches(sequencer.retainedSince(request.getSeqNo()));
+        }
+        responseObserver.onNext(batches.build());
         responseObserver.onCompleted();
     }
 
+    /* Called by Multi-Paxos on every chosen batch, in the order of the log */
+    private void deliverChosen(ByteString value) {
+        try {
+            packetsQueue.add(ExecuteBatch.parseFrom(value));
+        } catch (InvalidProtocolBufferException e) {
+            logger.log(Level.SEVERE, String.format("%s: Failed to parse a chosen batch", ID), e);
+        }
+    }
+
+    /**
+     * Pushes the batch and every buffered batch following it to the packetsQueue, in sequence order.
+     * Only batches of the sequencer ZooKeeper currently names are accepted, a late batch of a former sequencer is not.
+     * @return Whether the batch was delivered or buffered, otherwise the sequencer has to send it again
+     */
+    synchronized private boolean deliverInOrder(ExecuteBatch batch) {
+        String sequencerId = sequencers.get(myShardId);
+        if (!batch.getSequencerId().equals(sequencerId)) {
+            logger.log(Level.WARNING, String.format("%s: Batch %d is from %s, not from the sequencer %s, refusing it",
+                    ID, batch.getSeqNo(), batch.getSequencerId(), sequencerId));
+            return false;
+        }
+        if (!sequencerId.equals(currSequencerId)) {
+            // A new sequencer starts numbering its batches from 1
+            logger.log(Level.INFO, String.format("%s: Sequencer changed from %s to %s", ID, currSequencerId, sequencerId));
+            currSequencerId = sequencerId;
+            nextSeqNo = 1;
+            lastSeenSeqNo = 0;
+            reorderBuffer.clear();
+        }
+        if (batch.getSeqNo() < nextSeqNo) {
+            logger.log(Level.INFO, String.format("%s: Batch %d already delivered, ignoring", ID, batch.getSeqNo()));
+            return true;
+        }
+        lastSeenSeqNo = Math.max(lastSeenSeqNo, batch.getSeqNo());
+        boolean accepted = batch.getSeqNo() < nextSeqNo + Constants.SEQUENCER_MAX_REORDERED_BATCHES;
+        if (accepted) {
+            reorderBuffer.put(batch.getSeqNo(), batch);
+            ExecuteBatch next;
+            while ((next = reorderBuffer.remove(nextSeqNo)) != null) {
+                packetsQueue.add(next);
+                nextSeqNo++;
+            }
+        } else {
+            logger.log(Level.WARNING, String.format("%s: Batch %d is too far ahead of batch %d, refusing it", ID, batch.getSeqNo(), nextSeqNo));
+        }
+        if (lastSeenSeqNo >= nextSeqNo && !fetching) {
+            this.fetchMissing();
+        }
+        return accepted;
+    }
+
+    /**
+     * Fetches the batches missing before the last one seen from the sequencer, e.g. ones it failed sending to me.
+     * Retried until nothing is missing or the sequencer changes.
+     */
+    private void fetchMissing() {
+        String sequencerId = currSequencerId;
+        if (sequencerId.equals(myServerId)) {
+            // Our own batches are delivered by the Sequencer once committed, its retained ones may not be yet
+            logger.log(Level.WARNING, String.format("%s: Not fetching batches since %d from myself", ID, nextSeqNo));
+            return;
+        }
+        fetching = true;
+        FetchSinceMsg req = FetchSinceMsg.newBuilder().setSequencerId(sequencerId).setSeqNo(nextSeqNo).build();
+        logger.log(Level.INFO, String.format("%s: Missing batches since %d, fetching them from %s", ID, nextSeqNo, sequencerId));
+        RequestHandlerUtils.toCompletableFuture(fetchSinceStubs.get(sequencerId).apply(req)).whenComplete((resp, e) -> {
+            synchronized (this) {
+                if (e != null || resp.getBatchesCount() == 0) {
+                    fetching = false;
+                    logger.log(Level.WARNING, String.format("%s: Failed to fetch the batches since %d from %s, retrying in %d ms",
+                            ID, req.getSeqNo(), sequencerId, Constants.SEQUENCER_RETRY_DELAY_MS));
+                    CompletableFuture.delayedExecutor(Constants.SEQUENCER_RETRY_DELAY_MS, TimeUnit.MILLISECONDS)
+                            .execute(() -> this.refetch(sequencerId));
+                    return;
+                }
+                // Still fetching while the fetched batches are delivered, the ones after them are fetched next
+                resp.getBatchesList().forEach(this::deliverInOrder);
+                fetching = false;
+                this.refetch(sequencerId);
+            }
+        });
+    }
+
+    /** Fetches the batches still missing from the sequencer, unless it changed meanwhile */
+    synchronized private void refetch(String sequencerId) {
+        if (sequencerId.equals(currSequencerId) && lastSeenSeqNo >= nextSeqNo && !fetching) {
+            this.fetchMissing();
+        }
+    }
+
     /**
-     * Sequencer is the class responsible for sequencing the requests
+     * Sequencer is the class responsible for sequencing the requests.
+     * It drains all the proposals waiting in the queue (up to SEQUENCER_MAX_BATCH_SIZE proposals or
+     * SEQUENCER_MAX_BATCH_DELAY_MS since the first one was popped), assigns them contiguous timestamps and
+     * ships them as a single ExecuteBatch to each replica.
+     * Batches are sent to all replicas in parallel, a batch is committed and executed by the sequencer once a majority
+     * of the shard (the sequencer included) acked it, so a slow replica doesn't hold the shard back. Batches may reach
+     * their quorum out of order, the sequencer executes the committed ones in sequence order. Up to
+     * SEQUENCER_MAX_IN_FLIGHT_BATCHES batches wait for their quorum, and the batches of a replica with as many
+     * unacknowledged batches are queued until it acks one. Each batch carries a sequence number so replicas apply them
+     * in order, a replica that missed batches fetches them from the batches retained by the sequencer.
+     * A batch is retained until every replica acked it, failed sends are retried meanwhile. Once
+     * SEQUENCER_RETAINED_BATCHES batches are retained the sequencer stops sequencing until the slowest replica acks
+     * one, so a replica is never left without the batches it needs. A replica is given up only once ZooKeeper no longer
+     * lists it, server ids aren't reused so it never comes back.
+     * In multipaxos mode the batch is proposed as the value of the next Multi-Paxos instance instead.
      */
     class Sequencer implements Runnable {
         private final Logger logger = Logger.getLogger(Sequencer.class.getName());
 
         TransactionManager mngr;
-        Executor executor;
-        BlockingQueue<BroadcastMsgAndFlag> proposalsQueue;
+        BlockingQueue<Proposal> proposalsQueue;
         String myServerId;
         String myShardId;
         String ID;
-        Map<String, Function<BroadcastMsg, Empty>> executeMsgStubs;
+        Map<String, BiConsumer<ExecuteBatch, StreamObserver<Empty>>> executeMsgStubs;
+        /** Whether a replica is still registered in ZooKeeper */
+        Predicate<String> isAlive;
+        /** In-flight window for each replica */
+        Map<String, Semaphore> inFlightWindows = new HashMap<>();
+        /** Batches waiting for room in the window of each replica, in sequence order */
+        Map<String, Queue<Outgoing>> backlogs = new HashMap<>();
+        /** Replicas that left the shard, nothing is sent to them anymore */
+        Set<String> departed = ConcurrentHashMap.newKeySet();
+        /** Batches waiting for a quorum of acks */
+        Semaphore uncommitted = new Semaphore(Constants.SEQUENCER_MAX_IN_FLIGHT_BATCHES);
+        /** The sequenced batches some replica didn't ack yet, for the replicas that missed them */
+        ConcurrentSkipListMap<Long, ExecuteBatch> retainedBatches = new ConcurrentSkipListMap<>();
+        Semaphore retained = new Semaphore(Constants.SEQUENCER_RETAINED_BATCHES);
+        int quorum;
+        long nextSeqNo = 1;
+        /** Committed batches waiting for the batches sequenced before them to commit, and the next one to execute */
+        private final TreeMap<Long, ExecuteBatch> committed = new TreeMap<>();
+        private long nextToExecute = 1;
 
-        public Sequencer(TransactionManager mngr, Executor executor, BlockingQueue<BroadcastMsgAndFlag> proposalsQueue) {
+        /** A batch sent to the replicas, with the acks of its quorum and the replicas yet to ack it */
+        private class Outgoing {
+            final ExecuteBatch batch;
+            final AtomicInteger acks = new AtomicInteger(1); // acked by the sequencer itself
+            final AtomicInteger unacked;
+
+            Outgoing(ExecuteBatch batch, int replicas) {
+                this.batch = batch;
+                this.unacked = new AtomicInteger(replicas);
+            }
+        }
+
+        public Sequencer(TransactionManager mngr, BlockingQueue<Proposal> proposalsQueue) {
             this.mngr = mngr;
-            this.executor = executor;
             this.proposalsQueue = proposalsQueue;
         }
 
-        public void setup(String myServerId, String myShardId, String ID, Map<String, Function<BroadcastMsg, Empty>> executeMsgStubs) {
+        public void setup(String myServerId, String myShardId, String ID,
+                          Map<String, BiConsumer<ExecuteBatch, StreamObserver<Empty>>> executeMsgStubs, Predicate<String> isAlive) {
             this.myServerId = myServerId;
             this.myShardId = myShardId;
             this.ID = ID;
             this.executeMsgStubs = executeMsgStubs;
+            this.isAlive = isAlive;
+            for (String replica : executeMsgStubs.keySet()) {
+                this.inFlightWindows.put(replica, new Semaphore(Constants.SEQUENCER_MAX_IN_FLIGHT_BATCHES));
+                this.backlogs.put(replica, new ConcurrentLinkedQueue<>());
+            }
+            // Majority of the shard, the sequencer is one of the replicas
+            this.quorum = (executeMsgStubs.size() + 1) / 2 + 1;
+        }
+
+        /**
+         * Retains the batch and sends it to every replica, blocking while SEQUENCER_RETAINED_BATCHES batches wait for
+         * a replica to ack them or SEQUENCER_MAX_IN_FLIGHT_BATCHES batches wait for their quorum.
+         */
+        void sequence(ExecuteBatch batch) throws InterruptedException {
+            uncommitted.acquire();
+            retained.acquire();
+            retainedBatches.put(batch.getSeqNo(), batch);
+            logger.log(Level.INFO, String.format("%s: Sending batch %d of %d messages", ID, batch.getSeqNo(), batch.getMsgsCount()));
+            Outgoing outgoing = new Outgoing(batch, executeMsgStubs.size());
+            if (outgoing.acks.get() >= quorum) {
+                this.commitBatch(batch);
+            }
+            if (executeMsgStubs.isEmpty()) {
+                this.release(batch);
+            }
+            for (String replica : executeMsgStubs.keySet()) {
+                this.sendBatch(replica, outgoing);
+            }
+        }
+
+        /** Queues the batch to the replica and sends it once the replica's window has room, without waiting for it to be acked */
+        private void sendBatch(String replica, Outgoing outgoing) {
+            Queue<Outgoing> backlog = backlogs.get(replica);
+            backlog.add(outgoing);
+            if (departed.contains(replica)) {
+                this.abandon(replica);
+                return;
+            }
+            this.drainBacklog(replica);
+        }
+
+        /** Sends the queued batches of the replica while its window has room */
+        private void drainBacklog(String replica) {
+            Semaphore window = inFlightWindows.get(replica);
+            Queue<Outgoing> backlog = backlogs.get(replica);
+            while (!backlog.isEmpty() && window.tryAcquire()) {
+                Outgoing next = backlog.poll();
+                if (next == null) {
+                    window.release();
+                    return;
+                }
+                this.send(replica, next, window);
+            }
+        }
+
+        /** A failed send is retried until the replica acks it, unless the replica left the shard or I'm not its sequencer anymore */
+        private void send(String replica, Outgoing outgoing, Semaphore window) {
+            ExecuteBatch batch = outgoing.batch;
+            executeMsgStubs.get(replica).accept(batch, new StreamObserver<Empty>() {
+                @Override
+                public void onNext(Empty value) {}
+
+                @Override
+                public void onError(Throwable t) {
+                    window.release();
+                    logger.log(Level.INFO, String.format("%s: Sending batch %d to %s failed", ID, batch.getSeqNo(), replica));
+                    if (departed.contains(replica) || !myServerId.equals(sequencers.get(myShardId)) || !isAlive.test(replica)) {
+                        if (departed.add(replica)) {
+                            logger.log(Level.WARNING, String.format("%s: Replica %s left the shard or I'm not its sequencer anymore", ID, replica));
+                        }
+                        acked(outgoing);
+                        abandon(replica);
+                        return;
+                    }
+                    CompletableFuture.delayedExecutor(Constants.SEQUENCER_RETRY_DELAY_MS, TimeUnit.MILLISECONDS)
+                            .execute(() -> sendBatch(replica, outgoing));
+                    drainBacklog(replica);
+                }
+
+                @Override
+                public void onCompleted() {
+                    window.release();
+                    logger.log(Level.INFO, String.format("%s: Sending batch %d to %s succeeded", ID, batch.getSeqNo(), replica));
+                    if (outgoing.acks.incrementAndGet() == quorum) {
+                        commitBatch(batch);
+                    }
+                    acked(outgoing);
+                    drainBacklog(replica);
+                }
+            });
+        }
+
+        /** Stops sending to a replica that left the shard, or to every replica once I'm not the sequencer anymore */
+        private void abandon(String replica) {
+            Queue<Outgoing> backlog = backlogs.get(replica);
+            Outgoing dropped;
+            while ((dropped = backlog.poll()) != null) {
+                logger.log(Level.WARNING, String.format("%s: Not sending batch %d to %s anymore", ID, dropped.batch.getSeqNo(), replica));
+                this.acked(dropped);
+            }
+        }
+
+        /** One more replica acked the batch (or won't need it), it is released once none is left */
+        private void acked(Outgoing outgoing) {
+            if (outgoing.unacked.decrementAndGet() == 0) {
+                this.release(outgoing.batch);
+            }
+        }
+
+        private void release(ExecuteBatch batch) {
+            retainedBatches.remove(batch.getSeqNo());
+            retained.release();
+        }
+
+        /**
+         * The batch is acked by a quorum. Batches may commit out of order, so it is executed only once every batch
+         * sequenced before it committed too - the sequencer never waits on (or fetches) its own batches.
+         */
+        private synchronized void commitBatch(ExecuteBatch batch) {
+            logger.log(Level.INFO, String.format("%s: Batch %d reached a quorum", ID, batch.getSeqNo()));
+            uncommitted.release();
+            committed.put(batch.getSeqNo(), batch);
+            ExecuteBatch next;
+            while ((next = committed.remove(nextToExecute)) != null) {
+                packetsQueue.add(next);
+                nextToExecute++;
+            }
+        }
+
+        /** @return The retained batches starting at seqNo, or nothing if every replica acked seqNo already */
+        public List<ExecuteBatch> retainedSince(long seqNo) {
+            if (!retainedBatches.containsKey(seqNo)) {
+                logger.log(Level.INFO, String.format("%s: Batch %d isn't retained, every replica acked it", ID, seqNo));
+                return Collections.emptyList();
+            }
+            return retainedBatches.tailMap(seqNo).values().stream()
+                    .limit(Constants.SEQUENCER_MAX_FETCHED_BATCHES)
+                    .collect(Collectors.toList());
+        }
+
+        /** Blocks until at least one proposal is available and returns all proposals that can be batched with it */
+        private List<Proposal> takeBatch() throws InterruptedException {
+            List<Proposal> batch = new ArrayList<>();
+            batch.add(proposalsQueue.take());
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Constants.SEQUENCER_MAX_BATCH_DELAY_MS);
+            while (batch.size() < Constants.SEQUENCER_MAX_BATCH_SIZE) {
+                proposalsQueue.drainTo(batch, Constants.SEQUENCER_MAX_BATCH_SIZE - batch.size());
+                long remaining = deadline - System.nanoTime();
+                if (batch.size() >= Constants.SEQUENCER_MAX_BATCH_SIZE || remaining <= 0) {
+                    break;
+                }
+                Proposal next = proposalsQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    break;
+                }
+                batch.add(next);
+            }
+            return batch;
+        }
+
+        /**
+         * Takes `count` contiguous timestamps, retrying while no range can be leased - the batch can't be sequenced
+         * without them, and the failure value would collide with the genesis transaction and the timestamps after it.
+         */
+        private long takeTimestamps(int count) throws InterruptedException {
+            long first;
+            while ((first = mngr.getNewTimestamps(count)) < 0) {
+                logger.log(Level.WARNING, String.format("%s: Failed to lease %d timestamps, retrying in %d ms", ID, count, Constants.SEQUENCER_RETRY_DELAY_MS));
+                Thread.sleep(Constants.SEQUENCER_RETRY_DELAY_MS);
+            }
+            return first;
         }
 
         @Override
         public void run() {
-            Set<Pair<String, Integer>> done = new HashSet<>();
+            // Proposals may be retried, remember the scheduled ones (by origServerId and pendingReqId) for a number of batches
+            IdempotencyStore done = new IdempotencyStore(Constants.SEQUENCER_IDEMPOTENCY_RETENTION_BATCHES, Constants.IDEMPOTENCY_MAX_KEYS_IN_MEMORY);
             while (true) {
                 try {
-                    BroadcastMsgAndFlag currReq = proposalsQueue.take();
-                    logger.log(Level.INFO, String.format("%s: Popped message from proposals queue to execute: %s", ID, currReq.msg.toString()));
-                    currReq.finish(); // Signal that it is scheduled to requester
-                    Pair<String, Integer> currId = new Pair(currReq.msg.getOrigServerId(), currReq.msg.getPendingReqId());
-                    if (done.contains(currId)) {
-                        logger.log(Level.INFO, String.format("%s: Message from %s with pendingReqId %s already executed", ID, currId.component1(), currId.component2()));
-                    } else {
-                        BroadcastMsg msgToExecute = currReq.msg;
-                        // Check if need to take a timestamp
-                        if (currReq.msg.hasTransaction()) {
-                            long currTimestamp = mngr.getNewTimestamp();
-                            logger.log(Level.INFO, String.format("%s: Took timestamp %s for message", ID, currTimestamp));
-                            msgToExecute = currReq.msg.toBuilder().setAssignedTimestamp(currTimestamp).build();
+                    List<Proposal> currReqs = takeBatch();
+                    logger.log(Level.INFO, String.format("%s: Popped %d messages from proposals queue to execute", ID, currReqs.size()));
+                    List<BroadcastMsg> msgsToExecute = new ArrayList<>(currReqs.size());
+                    int neededTimestamps = 0;
+                    for (Proposal currReq : currReqs) {
+                        currReq.finish(); // Answer the proposer, it is scheduled
+                        String currId = String.format("%s-%d", currReq.msg.getOrigServerId(), currReq.msg.getPendingReqId());
+                        if (done.contains(currId, nextSeqNo)) {
+                            logger.log(Level.INFO, String.format("%s: Message from %s with pendingReqId %s already executed", ID, currReq.msg.getOrigServerId(), currReq.msg.getPendingReqId()));
+                            continue;
+                        }
+                        done.add(currId, nextSeqNo);
+                        msgsToExecute.add(currReq.msg);
+                        if (currReq.msg.hasTransaction() || currReq.msg.hasTransactionsList()) {
+                            neededTimestamps++;
+                        } else if (currReq.msg.hasSnapshotMarker()) {
+                            // Everything sequenced after the marker must be above the snapshot
+                            mngr.observeTimestamp(currReq.msg.getSnapshotMarker());
                         }
-                        logger.log(Level.INFO, String.format("%s: Executing %s", ID, msgToExecute.toString()));
-                        for (Map.Entry<String, Function<BroadcastMsg, Empty>> entry : executeMsgStubs.entrySet()) {
-                            try {
-                                logger.log(Level.INFO, String.format("%s: Sending packet to %s", ID, entry.getKey()));
-                                Empty resp = entry.getValue().apply(msgToExecute);
-                                logger.log(Level.INFO, String.format("%s: Sending packet to %s succeeded", ID, entry.getKey()));
-                            } catch (StatusRuntimeException e) {
-                                logger.log(Level.INFO, String.format("%s: Sending packet to %s failed", ID, entry.getKey()));
-                            }
+                    }
+                    if (msgsToExecute.isEmpty()) {
+                        continue;
+                    }
+                    // Take one contiguous range of timestamps for the whole batch
+                    long currTimestamp = (neededTimestamps > 0) ? this.takeTimestamps(neededTimestamps) : -1;
+                    if (neededTimestamps > 0) {
+                        logger.log(Level.INFO, String.format("%s: Took timestamps [%d, %d) for batch", ID, currTimestamp, currTimestamp + neededTimestamps));
+                    }
+                    ExecuteBatch.Builder batchBuilder = ExecuteBatch.newBuilder()
+                            .setSeqNo(nextSeqNo++)
+                            .setSequencerId(myServerId);
+                    for (BroadcastMsg msg : msgsToExecute) {
+                        if (msg.hasTransaction() || msg.hasTransactionsList()) {
+                            msg = msg.toBuilder().setAssignedTimestamp(currTimestamp++).build();
                         }
-                        this.executor.executePacket(msgToExecute);
+                        batchBuilder.addMsgs(msg);
+                    }
+                    ExecuteBatch batch = batchBuilder.build();
+                    if (multiPaxos != null) {
+                        logger.log(Level.INFO, String.format("%s: Proposing batch %d of %d messages", ID, batch.getSeqNo(), batch.getMsgsCount()));
+                        multiPaxos.propose(batch.toByteString());
+                        continue;
                     }
+                    this.sequence(batch);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
@@ -267,10 +667,10 @@ public class AtomicBroadcast extends AtomicBroadcastServiceGrpc.AtomicBroadcastS
         private final Logger logger = Logger.getLogger(Executor.class.getName());
 
         TransactionManager mngr;
-        BlockingQueue<BroadcastMsg> packetsQueue;
+        BlockingQueue<ExecuteBatch> packetsQueue;
         String ID;
 
-        public Executor(TransactionManager mngr, BlockingQueue<BroadcastMsg> packetsQueue) {
+        public Executor(TransactionManager mngr, BlockingQueue<ExecuteBatch> packetsQueue) {
             this.mngr = mngr;
             this.packetsQueue = packetsQueue;
         }
@@ -284,25 +684,33 @@ public class AtomicBroadcast extends AtomicBroadcastServiceGrpc.AtomicBroadcastS
             if (packet.hasTransaction()) {
                 Transaction trans = RequestHandlerUtils.createTransaction(packet.getTransaction());
                 trans.setTimestamp(packet.getAssignedTimestamp());
-                mngr.processTransactionLocally(trans, packet.getIdempotencyKey(), packet.getOrigServerId(), packet.getPendingReqId());
+                mngr.processTransactionLocally(packet, trans, packet.getIdempotencyKey(), packet.getOrigServerId(), packet.getPendingReqId());
             } else if (packet.hasTransactionsList()) {
-                mngr.processAtomicTxListLocally(
+                mngr.processAtomicTxListLocally(packet,
                         packet.getTransactionsList().getTransactionsList().stream().map(RequestHandlerUtils::createTransaction)
                                 .collect(Collectors.toList()),
+                        packet.getAssignedTimestamp(),
                         packet.getIdempotencyKey(), packet.getOrigServerId(), packet.getPendingReqId());
-            } else if (packet.hasLimit()) {
-                mngr.processListEntireHistoryLocally(packet.getLimit(), packet.getOrigServerId(), packet.getPendingReqId());
+            } else if (packet.hasSnapshotMarker()) {
+                mngr.processSnapshotMarkerLocally(packet.getSnapshotMarker());
             }
             logger.log(Level.INFO, String.format("%s: Done executing", ID));
         }
 
+        /* Packets of a batch are executed in the order the sequencer assigned them */
+        public void executeBatch(ExecuteBatch batch) {
+            for (BroadcastMsg packet : batch.getMsgsList()) {
+                this.executePacket(packet);
+            }
+        }
+
         @Override
         public void run() {
             while (true) {
                 try {
-                    BroadcastMsg currReq = packetsQueue.take();
-                    logger.log(Level.INFO, String.format("%s: Popped message from queue to execute: %s", ID, currReq.toString()));
-                    this.executePacket(currReq);
+                    ExecuteBatch currBatch = packetsQueue.take();
+                    logger.log(Level.INFO, String.format("%s: Popped batch of %d messages from queue to execute", ID, currBatch.getMsgsCount()));
+                    this.executeBatch(currBatch);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
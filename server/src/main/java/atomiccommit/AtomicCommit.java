@@ -0,0 +1,274 @@
+package atomiccommit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.Empty;
+import constants.Constants;
+import cs236351.grpcservice.AtomicCommitServiceGrpc;
+import cs236351.grpcservice.DecisionMsg;
+import cs236351.grpcservice.PrepareMsg;
+import cs236351.grpcservice.VoteMsg;
+import grpcservice.RequestHandlerUtils;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import zookeeper.Decision;
+import zookeeper.ZooKeeperClient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.lang.Thread.sleep;
+
+/**
+ * Atomic Commit of atomic lists spanning multiple shards, a two-phase commit run directly between the servers:
+ *   1. Every server executing the list votes locally, the vote of a shard is the same on all of its servers.
+ *   2. The coordinator (the leader of the first voting shard) collects a vote from each shard with Prepare.
+ *   3. The coordinator records the decision in ZooKeeper and sends it to all servers of the voting shards with Decide.
+ * ZooKeeper is only used to durably record the decision, so a participant that doesn't hear from the coordinator can
+ * recover it, or abort the commit if the coordinator died before deciding.
+ */
+public class AtomicCommit extends AtomicCommitServiceGrpc.AtomicCommitServiceImplBase {
+    private static final Logger logger = Logger.getLogger(AtomicCommit.class.getName());
+
+    final private ZooKeeperClient zk;
+    String myServerId;
+    String myShardId;
+
+    /**
+     * Votes and Decisions of the ongoing commits, by commitId.
+     * An entry is created either by the local execution of the list or by the RPC that needs it, whichever comes first.
+     */
+    private final Map<String, CompletableFuture<Boolean>> votes = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Decision>> decisions = new ConcurrentHashMap<>();
+
+    /** Channels to all other Services */
+    private Map<String, Function<PrepareMsg, ListenableFuture<VoteMsg>>> prepareStubs = new HashMap<>();
+    private Map<String, Function<DecisionMsg, ListenableFuture<Empty>>> decideStubs = new HashMap<>();
+
+    public AtomicCommit(ZooKeeperClient zk) {
+        this.zk = zk;
+    }
+
+    public void addServices(ServerBuilder<?> serverBuilder) {
+        serverBuilder.addService(this);
+    }
+
+    public void setup(String myServerId, String myShardId, Map<String, String> serversAddresses) {
+        this.myServerId = myServerId;
+        this.myShardId = myShardId;
+        for (Map.Entry<String, String> entry : serversAddresses.entrySet()) {
+            logger.log(Level.INFO, String.format("Creating atomic commit stubs to server %s at address %s", entry.getKey(), entry.getValue()));
+            ManagedChannel channel = ManagedChannelBuilder.forTarget(entry.getValue() + ":" + System.getenv(Constants.ENV_GRPC_PORT)).usePlaintext().build();
+            AtomicCommitServiceGrpc.AtomicCommitServiceFutureStub stub = AtomicCommitServiceGrpc.newFutureStub(channel);
+            this.prepareStubs.put(entry.getKey(), req -> stub.withDeadlineAfter(Constants.ATOMIC_COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS).prepare(req));
+            this.decideStubs.put(entry.getKey(), req -> stub.withDeadlineAfter(Constants.ATOMIC_COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS).decide(req));
+        }
+    }
+
+    /**
+     * Votes on the commit and waits for its decision.
+     * Called by every server executing the list, in the same order of execution on all servers of a shard.
+     *
+     * @param commitId      Unique id of the atomic list
+     * @param coordinatorId The server coordinating the commit
+     * @param vote          Whether this shard can process its part of the list
+     * @param votingShards  The shards taking part in the commit
+     */
+    public Decision commit(String commitId, String coordinatorId, boolean vote, List<String> votingShards) {
+        logger.log(Level.INFO, String.format("commit: Voting %b on %s, coordinator is %s", vote, commitId, coordinatorId));
+        CompletableFuture<Boolean> myVote = votes.computeIfAbsent(commitId, id -> new CompletableFuture<>());
+        myVote.complete(vote);
+        if (myServerId.equals(coordinatorId)) {
+            coordinate(commitId, myVote, votingShards);
+        }
+        Decision decision = awaitDecision(commitId, coordinatorId, votingShards);
+        votes.remove(commitId);
+        decisions.remove(commitId);
+        logger.log(Level.INFO, String.format("commit: Decision on %s is %b with timestamp %d", commitId, decision.decision, decision.timestamp));
+        return decision;
+    }
+
+    /**
+     * Collects the votes of all shards, the local vote is used for my own shard.
+     * A shard that doesn't answer in time counts as voting no.
+     */
+    private void coordinate(String commitId, CompletableFuture<Boolean> myVote, List<String> votingShards) {
+        List<CompletableFuture<Boolean>> shardVotes = new ArrayList<>();
+        for (String shard : votingShards) {
+            if (shard.equals(myShardId)) {
+                shardVotes.add(myVote);
+                continue;
+            }
+            List<String> servers;
+            try {
+                servers = zk.getServersInShard(shard);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, String.format("coordinate: Failed to get the servers of %s", shard), e);
+                shardVotes.add(CompletableFuture.completedFuture(false));
+                continue;
+            }
+            PrepareMsg req = PrepareMsg.newBuilder().setCommitId(commitId).build();
+            shardVotes.add(RequestHandlerUtils.tryCallServerAsync(myServerId, servers, req, prepareStubs)
+                    .thenApply(resp -> resp != null && resp.getVote()));
+        }
+        CompletableFuture.allOf(shardVotes.toArray(new CompletableFuture[0]))
+                .orTimeout(Constants.ATOMIC_COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .handle((ignored, e) -> {
+                    if (e != null) {
+                        logger.log(Level.WARNING, String.format("coordinate: Not all shards voted on %s in time, aborting", commitId));
+                        return false;
+                    }
+                    return shardVotes.stream().allMatch(CompletableFuture::join);
+                })
+                .thenAcceptAsync(canCommit -> decide(commitId, canCommit, votingShards));
+    }
+
+    /** Records the decision, then notifies the participants */
+    private void decide(String commitId, boolean canCommit, List<String> votingShards) {
+        Decision decision = new Decision(canCommit, canCommit ? zk.getGlobalTimestamp() : 0);
+        while (true) {
+            try {
+                decision = zk.recordDecision(commitId, decision, participants(votingShards));
+                break;
+            } catch (Exception e) {
+                logger.log(Level.WARNING, String.format("decide: Failed to record the decision on %s, retrying", commitId), e);
+                try {
+                    sleep(100);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        decisions.computeIfAbsent(commitId, id -> new CompletableFuture<>()).complete(decision);
+        DecisionMsg msg = DecisionMsg.newBuilder()
+                .setCommitId(commitId)
+                .setDecision(decision.decision)
+                .setTimestamp(decision.timestamp)
+                .build();
+        for (String shard : votingShards) {
+            List<String> servers;
+            try {
+                servers = zk.getServersInShard(shard);
+            } catch (Exception e) {
+                // Its servers will read the decision from ZooKeeper
+                logger.log(Level.WARNING, String.format("decide: Failed to get the servers of %s", shard), e);
+                continue;
+            }
+            for (String server : servers) {
+                if (server.equals(myServerId)) {
+                    continue;
+                }
+                RequestHandlerUtils.toCompletableFuture(decideStubs.get(server).apply(msg)).exceptionally(e -> {
+                    logger.log(Level.WARNING, String.format("decide: Failed to send the decision on %s to %s", commitId, server));
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * Waits for the decision from the coordinator.
+     * If it takes too long, the decision is looked up in ZooKeeper, and if the coordinator is dead and didn't decide
+     * the commit is aborted. Recording the abort fails if the coordinator managed to decide first.
+     */
+    private Decision awaitDecision(String commitId, String coordinatorId, List<String> votingShards) {
+        CompletableFuture<Decision> decision = decisions.computeIfAbsent(commitId, id -> new CompletableFuture<>());
+        while (true) {
+            try {
+                return decision.get(Constants.ATOMIC_COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                logger.log(Level.WARNING, String.format("awaitDecision: No decision on %s from %s yet", commitId, coordinatorId));
+                try {
+                    Decision recorded = zk.readDecision(commitId);
+                    if (recorded != null) {
+                        return recorded;
+                    }
+                    if (!zk.isServerAlive(coordinatorId)) {
+                        logger.log(Level.WARNING, String.format("awaitDecision: Coordinator %s is dead, aborting %s", coordinatorId, commitId));
+                        return zk.recordDecision(commitId, new Decision(false), participants(votingShards));
+                    }
+                } catch (Exception zkException) {
+                    logger.log(Level.WARNING, String.format("awaitDecision: Failed to look up the decision on %s", commitId), zkException);
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                logger.log(Level.SEVERE, String.format("awaitDecision: Failed waiting for the decision on %s", commitId), e);
+                return new Decision(false);
+            }
+        }
+    }
+
+    /**
+     * Tells ZooKeeper this server applied the decision on the commit, the decision is deleted once every participant
+     * did. Called after the committed list was logged, so recovery doesn't need the decision anymore.
+     */
+    public void release(String commitId) {
+        try {
+            zk.releaseDecision(commitId, myServerId);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, String.format("release: Failed to release the decision on %s", commitId), e);
+        }
+    }
+
+    /** The servers of the voting shards, each of them applies the decision */
+    private List<String> participants(List<String> votingShards) throws Exception {
+        List<String> participants = new ArrayList<>();
+        for (String shard : votingShards) {
+            participants.addAll(zk.getServersInShard(shard));
+        }
+        return participants;
+    }
+
+    /**
+     * Entries created by an RPC before the local execution reached the list are dropped after a while, in case the
+     * local execution already finished the commit (e.g. it read the decision from ZooKeeper).
+     */
+    private <T> void expireLater(Map<String, CompletableFuture<T>> map, String commitId, CompletableFuture<T> future) {
+        CompletableFuture.delayedExecutor(10 * Constants.ATOMIC_COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .execute(() -> map.remove(commitId, future));
+    }
+
+    //////// gRPC Services ////////
+
+    @Override
+    public void prepare(PrepareMsg request, StreamObserver<VoteMsg> responseObserver) {
+        String commitId = request.getCommitId();
+        CompletableFuture<Boolean> vote = votes.computeIfAbsent(commitId, id -> {
+            CompletableFuture<Boolean> future = new CompletableFuture<>();
+            expireLater(votes, id, future);
+            return future;
+        });
+        // Answer once this server executed the list, the caller gives up after its deadline
+        vote.copy().orTimeout(Constants.ATOMIC_COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS).whenComplete((v, e) -> {
+            if (e != null) {
+                responseObserver.onError(e);
+                return;
+            }
+            responseObserver.onNext(VoteMsg.newBuilder().setCommitId(commitId).setShardId(myShardId).setVote(v).build());
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override
+    public void decide(DecisionMsg request, StreamObserver<Empty> responseObserver) {
+        String commitId = request.getCommitId();
+        decisions.computeIfAbsent(commitId, id -> {
+            CompletableFuture<Decision> future = new CompletableFuture<>();
+            expireLater(decisions, id, future);
+            return future;
+        }).complete(new Decision(request.getDecision(), request.getTimestamp()));
+        responseObserver.onNext(Empty.newBuilder().build());
+        responseObserver.onCompleted();
+    }
+}
@@ -12,7 +12,65 @@ public final class Constants {
     public static final String ENV_GRPC_PORT = "GRPC_PORT";
     public static final String ENV_HTTP_PORT = "HTTP_PORT";
     public static final String ENV_HOST_NAME = "HOST_NAME";
+    public static final String ENV_LEDGER_LOG_DIR = "LEDGER_LOG_DIR";
+    public static final String ENV_THREAD_MODE = "THREAD_MODE";
+    public static final String ENV_BROADCAST_MODE = "BROADCAST_MODE";
+    public static final String ENV_UTXO_CONSOLIDATION = "UTXO_CONSOLIDATION";
+    public static final String ENV_HISTORY_STORE = "HISTORY_STORE";
 
     public static final String GENESIS_ADDRESS = "GenesisAddress";
     public static final String GENESIS_TRANSACTION_ID = "GenesisTxId";
+
+    public static final int SEQUENCER_MAX_BATCH_SIZE = 256;
+    public static final long SEQUENCER_MAX_BATCH_DELAY_MS = 1;
+    public static final int SEQUENCER_MAX_IN_FLIGHT_BATCHES = 32;
+    public static final long SEQUENCER_RETRY_DELAY_MS = 100;
+    public static final int SEQUENCER_RETAINED_BATCHES = 4096;
+    public static final int SEQUENCER_MAX_FETCHED_BATCHES = 64;
+    public static final int SEQUENCER_MAX_REORDERED_BATCHES = 1024;
+
+    public static final String BROADCAST_MODE_SEQUENCER = "sequencer";
+    public static final String BROADCAST_MODE_MULTIPAXOS = "multipaxos";
+    public static final int MULTIPAXOS_MAX_IN_FLIGHT_INSTANCES = 32;
+    public static final long MULTIPAXOS_TIMEOUT_MS = 1000;
+    public static final long MULTIPAXOS_RETRY_DELAY_MS = 100;
+    public static final int MULTIPAXOS_COMMIT_RETRIES = 50;
+    public static final int MULTIPAXOS_RETAINED_INSTANCES = 10000;
+    // More than the acceptors retain, so a replica behind their pruning point can still learn what it missed
+    public static final int MULTIPAXOS_LEARNER_RETAINED_INSTANCES = 2 * MULTIPAXOS_RETAINED_INSTANCES;
+    public static final long MULTIPAXOS_CATCH_UP_INTERVAL_MS = 200;
+    public static final int MULTIPAXOS_LEARN_MAX_INSTANCES = 64;
+
+    public static final int TIMESTAMP_LEASE_SIZE = 1000;
+
+    public static final int HISTORY_STREAM_CHUNK_SIZE = 1000;
+    public static final long HISTORY_SNAPSHOT_TIMEOUT_MS = 5000;
+
+    public static final long ATOMIC_COMMIT_TIMEOUT_MS = 5000;
+    // Longer than an atomic commit may wait for votes, shorter than spring.mvc.async.request-timeout
+    public static final long PENDING_REQUEST_TIMEOUT_MS = 10000;
+
+    public static final int LEDGER_LOG_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long LEDGER_LOG_FLUSH_INTERVAL_MS = 5;
+    public static final long LEDGER_SNAPSHOT_INTERVAL = 100000;
+
+    public static final int COIN_SELECTION_CANDIDATES = 32;
+    public static final int COIN_SELECTION_MAX_TRIES = 100000;
+
+    public static final String UTXO_CONSOLIDATION_ON = "on";
+    public static final long CONSOLIDATION_INTERVAL_MS = 1000;
+    public static final long CONSOLIDATION_IDLE_MS = 2000;
+    public static final int CONSOLIDATION_MIN_UTXOS = 1000;
+    public static final int CONSOLIDATION_MAX_INPUTS = 500;
+
+    public static final String HISTORY_STORE_DIRECT = "direct";
+    public static final String HISTORY_STORE_MAPPED = "mapped";
+    public static final int HISTORY_ARENA_SIZE = 64 * 1024 * 1024;
+    public static final int HISTORY_CACHE_SIZE = 10000;
+
+    // In timestamps, about one per transaction. Keys must fit the table, so it is well below IDEMPOTENCY_TABLE_SLOTS
+    public static final long IDEMPOTENCY_RETENTION_TIMESTAMPS = 1000000;
+    public static final long SEQUENCER_IDEMPOTENCY_RETENTION_BATCHES = 100000;
+    public static final int IDEMPOTENCY_MAX_KEYS_IN_MEMORY = 1000000;
+    public static final int IDEMPOTENCY_TABLE_SLOTS = 1 << 22;
 }
\ No newline at end of file
@@ -3,33 +3,36 @@ package grpcservice;
 import com.google.protobuf.Empty;
 import constants.Constants;
 import cs236351.grpcservice.*;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 
 import cs236351.grpcservice.TransactionManagerRPCServiceGrpc.TransactionManagerRPCServiceBlockingStub;
 import cs236351.grpcservice.TransactionManagerRPCServiceGrpc;
 import io.grpc.StatusRuntimeException;
+import model.HistoryCursor;
 import model.Request;
 import model.Response;
 import model.Transaction;
 import org.springframework.http.HttpStatus;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-
-import static grpcservice.RequestHandlerUtils.tryCallServer;
 
 public class RPCServiceClient {
     private static final Logger logger = Logger.getLogger(grpcservice.RequestHandlerClient.class.getName());
 
     /** Need a function for each type for each server in the system */
     private Map<String, Function<TransactionMsg, Empty>> recordSubmittedTransactionStubs = new HashMap<>();
-    private Map<String, Function<ReqListEntireHistoryMsg, TransactionHistoryMsg>> getEntireHistoryStubs = new HashMap<>();
+    private Map<String, Function<ReqListEntireHistoryMsg, Iterator<TransactionHistoryMsg>>> streamHistoryStubs = new HashMap<>();
 
     /**  Needs a mapping of all servers in the system and their addresses, so we can create a stub */
     public void setup(Map<String, String> serversAddresses) {
@@ -39,7 +42,7 @@ public class RPCServiceClient {
             ManagedChannel channel = ManagedChannelBuilder.forTarget(entry.getValue()+ ":" + System.getenv(Constants.ENV_GRPC_PORT)).usePlaintext().build();
             TransactionManagerRPCServiceBlockingStub stub = TransactionManagerRPCServiceGrpc.newBlockingStub(channel);
             this.recordSubmittedTransactionStubs.put(entry.getKey(), stub::recordSubmittedTransaction);
-            this.getEntireHistoryStubs.put(entry.getKey(), stub::getEntireHistory);
+            this.streamHistoryStubs.put(entry.getKey(), stub::streamHistory);
         }
     }
 
@@ -61,11 +64,68 @@ public class RPCServiceClient {
         logger.log(Level.INFO, String.format("recordSubmittedTransaction: RPC succeeded to %d servers", cnt));
     }
 
-    /** Gets the entire history from one of the servers in the list, stops when one succeeds */
-    public List<Transaction> getEntireHistory(List<String> servers, int limit) {
-        ReqListEntireHistoryMsg req = RequestHandlerUtils.createReqListEntireHistoryMsg(limit);
-        TransactionHistoryMsg resp = tryCallServer("getEntireHistory", servers, req, this.getEntireHistoryStubs);
-        return resp.getTransactionsList().stream().map(RequestHandlerUtils::createTransaction).collect(Collectors.toList());
+    /**
+     * The history of a shard streamed from one of its servers.
+     * The next chunk is only received once the previous one was consumed, the call is cancelled by closing it.
+     */
+    public static class HistoryStream implements Iterator<Transaction>, AutoCloseable {
+        private final Context.CancellableContext context;
+        private final Iterator<TransactionHistoryMsg> chunks;
+        private Iterator<TransactionMsg> chunk = Collections.emptyIterator();
+
+        HistoryStream(Context.CancellableContext context, Iterator<TransactionHistoryMsg> chunks) {
+            this.context = context;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!chunk.hasNext()) {
+                if (!chunks.hasNext()) {
+                    return false;
+                }
+                chunk = chunks.next().getTransactionsList().iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Transaction next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return RequestHandlerUtils.createTransaction(chunk.next());
+        }
+
+        @Override
+        public void close() {
+            context.cancel(null);
+        }
+    }
+
+    /**
+     * Starts streaming the history up to the snapshot timestamp from one of the servers in the list, stops when one
+     * succeeds. Returns once the first chunk arrived, a server that didn't apply the snapshot in time fails the call.
+     */
+    public HistoryStream streamHistory(List<String> servers, int limit, long snapshotTimestamp, HistoryCursor cursor) throws IOException {
+        ReqListEntireHistoryMsg req = RequestHandlerUtils.createReqListEntireHistoryMsg(limit, snapshotTimestamp, cursor);
+        for (String currServer : servers) {
+            Context.CancellableContext context = Context.current().withCancellation();
+            Context previous = context.attach();
+            try {
+                logger.log(Level.INFO, String.format("streamHistory: Trying server %s", currServer));
+                HistoryStream stream = new HistoryStream(context, this.streamHistoryStubs.get(currServer).apply(req));
+                stream.hasNext();
+                logger.log(Level.INFO, String.format("streamHistory: Streaming from %s", currServer));
+                return stream;
+            } catch (StatusRuntimeException e) {
+                logger.log(Level.INFO, String.format("streamHistory: RPC to %s failed", currServer));
+                context.cancel(e);
+            } finally {
+                context.detach(previous);
+            }
+        }
+        throw new IOException(String.format("Failed to stream the history from all servers %s", servers));
     }
 
 }
\ No newline at end of file
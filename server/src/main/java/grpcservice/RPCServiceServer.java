@@ -2,15 +2,19 @@ package grpcservice;
 
 import com.google.protobuf.Empty;
 import cs236351.grpcservice.*;
+import constants.Constants;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import model.Request;
 import model.Response;
 import model.Transaction;
 import transactionmanager.TransactionManager;
 
-import java.util.List;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 public class RPCServiceServer extends TransactionManagerRPCServiceGrpc.TransactionManagerRPCServiceImplBase {
     private static final Logger logger = Logger.getLogger(RPCServiceServer.class.getName());
@@ -25,17 +29,58 @@ public class RPCServiceServer extends TransactionManagerRPCServiceGrpc.Transacti
     /** The services */
     @Override
     public void recordSubmittedTransaction(TransactionMsg request, StreamObserver<Empty> responseObserver) {
-        mngr.gRPCRecordSubmittedTransaction(RequestHandlerUtils.createTransaction(request));
-        responseObserver.onNext(Empty.newBuilder().build());
-        responseObserver.onCompleted();
+        // Acked once the transaction is durable here, the sender relies on it
+        mngr.gRPCRecordSubmittedTransaction(RequestHandlerUtils.createTransaction(request)).whenComplete((v, e) -> {
+            if (e != null) {
+                responseObserver.onError(Status.INTERNAL.withDescription("Failed to log the recorded transaction").withCause(e).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(Empty.newBuilder().build());
+            responseObserver.onCompleted();
+        });
     }
 
+    /**
+     * Streams the history up to the snapshot timestamp (in the cursor's direction) in chunks of HISTORY_STREAM_CHUNK_SIZE transactions, as fast
+     * as the caller consumes them. Starts once this server applied the snapshot, or fails if it doesn't in time.
+     * At least one chunk is sent, the first chunk tells the caller the snapshot was reached.
+     */
     @Override
-    public void getEntireHistory(ReqListEntireHistoryMsg request, StreamObserver<TransactionHistoryMsg> responseObserver) {
-        List<Transaction> resp = mngr.gRPCGetEntireHistory(request.getLimit());
-        responseObserver.onNext(TransactionHistoryMsg.newBuilder().addAllTransactions(
-                resp.stream().map(RequestHandlerUtils::createTransactionMsg).collect(Collectors.toList())).build());
-        responseObserver.onCompleted();
+    public void streamHistory(ReqListEntireHistoryMsg request, StreamObserver<TransactionHistoryMsg> responseObserver) {
+        ServerCallStreamObserver<TransactionHistoryMsg> observer = (ServerCallStreamObserver<TransactionHistoryMsg>) responseObserver;
+        CompletableFuture<Iterator<Transaction>> snapshot = mngr.gRPCStreamHistory(request.getLimit(), request.getSnapshotTimestamp(),
+                        RequestHandlerUtils.createHistoryCursor(request.hasCursor(), request.getCursor()))
+                .orTimeout(Constants.HISTORY_SNAPSHOT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        observer.setOnCancelHandler(() -> logger.info("streamHistory: Cancelled by the caller"));
+        Runnable sendChunks = new Runnable() {
+            private boolean done = false;
+
+            // Called both when the caller is ready for more and when the snapshot is reached
+            @Override
+            public synchronized void run() {
+                Iterator<Transaction> history = snapshot.getNow(null);
+                while (history != null && !done && observer.isReady() && !observer.isCancelled()) {
+                    TransactionHistoryMsg.Builder chunk = TransactionHistoryMsg.newBuilder();
+                    while (history.hasNext() && chunk.getTransactionsCount() < Constants.HISTORY_STREAM_CHUNK_SIZE) {
+                        chunk.addTransactions(RequestHandlerUtils.createTransactionMsg(history.next()));
+                    }
+                    observer.onNext(chunk.build());
+                    if (!history.hasNext()) {
+                        done = true;
+                        observer.onCompleted();
+                    }
+                }
+            }
+        };
+        observer.setOnReadyHandler(sendChunks);
+        snapshot.whenComplete((history, e) -> {
+            if (e != null) {
+                logger.info(String.format("streamHistory: Snapshot %d wasn't reached in time", request.getSnapshotTimestamp()));
+                observer.onError(Status.UNAVAILABLE.withDescription("Snapshot wasn't reached in time").asRuntimeException());
+                return;
+            }
+            sendChunks.run();
+        });
     }
 
 }
\ No newline at end of file
@@ -1,12 +1,19 @@
 package grpcservice;
 
 import cs236351.grpcservice.*;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import model.Request;
+import model.Response;
+import model.Transaction;
 import transactionmanager.TransactionManager;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class RequestHandlerServer extends TransactionManagerRequestHandlerServiceGrpc.TransactionManagerRequestHandlerServiceImplBase {
     private static final Logger logger = Logger.getLogger(RequestHandlerServer.class.getName());
@@ -18,61 +25,78 @@ public class RequestHandlerServer extends TransactionManagerRequestHandlerServic
         this.mngr = mngr;
     }
 
+    /** Responds once the TransactionManager completes the request, the gRPC thread doesn't wait for it */
+    private static <T, RespT> void respondWhenDone(CompletableFuture<T> future, Function<T, RespT> toMsg, StreamObserver<RespT> responseObserver) {
+        future.whenComplete((resp, e) -> {
+            if (e != null) {
+                logger.log(Level.WARNING, "Request failed", e);
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).withCause(e).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(toMsg.apply(resp));
+            responseObserver.onCompleted();
+        });
+    }
+
     /** The services */
     @Override
     public void handleTransaction(ReqTransactionMsg request, StreamObserver<RespTransactionMsg> responseObserver) {
-        responseObserver.onNext(RequestHandlerUtils.createRespTransactionMsg(mngr.handleTransaction(new Request.TransactionRequest(
+        respondWhenDone(mngr.handleTransaction(new Request.TransactionRequest(
                 request.getInputsList().stream().map(RequestHandlerUtils::createUTxO).collect(Collectors.toList()),
                 request.getOutputsList().stream().map(RequestHandlerUtils::createTransfer).collect(Collectors.toList()))
-        )));
-        responseObserver.onCompleted();
+        ), RequestHandlerUtils::createRespTransactionMsg, responseObserver);
     }
 
     @Override
     public void handleCoinTransfer(ReqCoinTransferMsg request, StreamObserver<RespTransactionMsg> responseObserver) {
-        responseObserver.onNext(RequestHandlerUtils.createRespTransactionMsg(mngr.handleCoinTransfer(
+        respondWhenDone(mngr.handleCoinTransfer(
                 request.getSourceAddress(),
                 request.getTargetAddress(),
                 request.getCoins(),
                 request.getReqId()
-        )));
-        responseObserver.onCompleted();
+        ), RequestHandlerUtils::createRespTransactionMsg, responseObserver);
     }
 
     @Override
     public void handleListAddrUTxO(ReqListAddrUTxOMsg request, StreamObserver<RespUnusedUTxOListMsg> responseObserver) {
-        responseObserver.onNext(RequestHandlerUtils.createUnusedUTxOListResp(mngr.handleListAddrUTxO(
+        respondWhenDone(mngr.handleListAddrUTxO(
                 request.getSourceAddress()
-        )));
-        responseObserver.onCompleted();
+        ), RequestHandlerUtils::createUnusedUTxOListResp, responseObserver);
     }
 
     @Override
     public void handleListAddrTransactions(ReqListAddrTransactionsMsg request, StreamObserver<RespTransactionListMsg> responseObserver) {
-        responseObserver.onNext(RequestHandlerUtils.createRespTransactionListMsg((mngr.handleListAddrTransactions(
+        respondWhenDone(mngr.handleListAddrTransactions(
                 request.getSourceAddress(),
-                request.getLimit()
-        ))));
-        responseObserver.onCompleted();
+                request.getLimit(),
+                RequestHandlerUtils.createHistoryCursor(request.hasCursor(), request.getCursor())
+        ), RequestHandlerUtils::createRespTransactionListMsg, responseObserver);
     }
 
     @Override
     public void handleListEntireHistory(ReqListEntireHistoryMsg request, StreamObserver<RespTransactionListMsg> responseObserver) {
-        responseObserver.onNext(RequestHandlerUtils.createRespTransactionListMsg((mngr.handleListEntireHistory(
-                request.getLimit()
-        ))));
-        responseObserver.onCompleted();
+        // The delegated response is a single message, collect the streamed history off the executing thread
+        respondWhenDone(mngr.handleListEntireHistory(
+                request.getLimit(),
+                RequestHandlerUtils.createHistoryCursor(request.hasCursor(), request.getCursor())
+        ).thenApplyAsync(resp -> {
+            if (resp.transactions == null) {
+                return new Response.TransactionListResp(resp.statusCode, resp.reason, null);
+            }
+            try (Stream<Transaction> transactions = resp.transactions) {
+                return new Response.TransactionListResp(resp.statusCode, resp.reason, transactions.collect(Collectors.toList()));
+            }
+        }), RequestHandlerUtils::createRespTransactionListMsg, responseObserver);
     }
 
     @Override
     public void handleAtomicTxList(ReqAtomicTxListMsg request, StreamObserver<RespTransactionListMsg> responseObserver) {
-        responseObserver.onNext(RequestHandlerUtils.createRespTransactionListMsg((mngr.handleAtomicTxList(
+        respondWhenDone(mngr.handleAtomicTxList(
                 request.getTransactionsList().stream().map(trans -> new Request.TransactionRequest(
                         trans.getInputsList().stream().map(RequestHandlerUtils::createUTxO).collect(Collectors.toList()),
                         trans.getOutputsList().stream().map(RequestHandlerUtils::createTransfer).collect(Collectors.toList())
                         )).collect(Collectors.toList())
-        ))));
-        responseObserver.onCompleted();
+        ), RequestHandlerUtils::createRespTransactionListMsg, responseObserver);
     }
 
 }
\ No newline at end of file
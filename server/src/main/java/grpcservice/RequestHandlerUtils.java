@@ -1,5 +1,9 @@
 package grpcservice;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import cs236351.grpcservice.*;
 import io.grpc.StatusRuntimeException;
 import model.*;
@@ -7,6 +11,7 @@ import org.springframework.http.HttpStatus;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,6 +37,48 @@ public class RequestHandlerUtils {
         return null;
     }
 
+    /** Same as tryCallServer without blocking, the next server is tried when the call to the previous one fails */
+    public static <ReqT, RespT> CompletableFuture<RespT> tryCallServerAsync(String requester, List<String> servers, ReqT req, Map<String, Function<ReqT, ListenableFuture<RespT>>> func) {
+        logger.log(Level.INFO, String.format("%s: Sending %s to servers %s", requester, req.toString(), servers.toString()));
+        return tryCallServerAsync(requester, servers, 0, req, func);
+    }
+
+    private static <ReqT, RespT> CompletableFuture<RespT> tryCallServerAsync(String requester, List<String> servers, int index, ReqT req, Map<String, Function<ReqT, ListenableFuture<RespT>>> func) {
+        if (index >= servers.size()) {
+            logger.log(Level.SEVERE, String.format("%s: Sending %s failed on all servers: %s !!", requester, req, servers));
+            return CompletableFuture.completedFuture(null);
+        }
+        String currServer = servers.get(index);
+        logger.log(Level.INFO, String.format("%s: Trying server %s", requester, currServer));
+        return toCompletableFuture(func.get(currServer).apply(req))
+                .handle((resp, e) -> {
+                    if (e == null) {
+                        logger.log(Level.INFO, String.format("%s: RPC to %s succeeded with %s", requester, currServer, resp.toString()));
+                        return CompletableFuture.completedFuture(resp);
+                    }
+                    logger.log(Level.WARNING, String.format("%s: RPC to %s failed, will retry if any left", requester, currServer));
+                    return tryCallServerAsync(requester, servers, index + 1, req, func);
+                })
+                .thenCompose(Function.identity());
+    }
+
+    /** Adapts the ListenableFuture returned by gRPC future stubs */
+    public static <T> CompletableFuture<T> toCompletableFuture(ListenableFuture<T> listenableFuture) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Futures.addCallback(listenableFuture, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
     /** Conversion for Requests from regular to gRPC */
     public static ReqTransactionMsg createReqTransactionMsg(Request.TransactionRequest transaction) {
         return ReqTransactionMsg.newBuilder()
@@ -55,17 +102,38 @@ public class RequestHandlerUtils {
                 .setCoins(coins)
                 .build();
     }
-    public static ReqListAddrTransactionsMsg createReqListAddrTransactionsMsg(String sourceAddress, int limit) {
-        return ReqListAddrTransactionsMsg.newBuilder()
+    public static ReqListAddrTransactionsMsg createReqListAddrTransactionsMsg(String sourceAddress, int limit, HistoryCursor cursor) {
+        ReqListAddrTransactionsMsg.Builder builder = ReqListAddrTransactionsMsg.newBuilder()
                 .setSourceAddress(sourceAddress)
-                .setLimit(limit)
-                .build();
+                .setLimit(limit);
+        if (cursor != null) {
+            builder.setCursor(createHistoryCursorMsg(cursor));
+        }
+        return builder.build();
     }
-    public static ReqListEntireHistoryMsg createReqListEntireHistoryMsg(int limit) {
-        return ReqListEntireHistoryMsg.newBuilder()
+    public static ReqListEntireHistoryMsg createReqListEntireHistoryMsg(int limit, HistoryCursor cursor) {
+        return createReqListEntireHistoryMsg(limit, 0, cursor);
+    }
+    public static ReqListEntireHistoryMsg createReqListEntireHistoryMsg(int limit, long snapshotTimestamp, HistoryCursor cursor) {
+        ReqListEntireHistoryMsg.Builder builder = ReqListEntireHistoryMsg.newBuilder()
                 .setLimit(limit)
+                .setSnapshotTimestamp(snapshotTimestamp);
+        if (cursor != null) {
+            builder.setCursor(createHistoryCursorMsg(cursor));
+        }
+        return builder.build();
+    }
+    public static HistoryCursorMsg createHistoryCursorMsg(HistoryCursor cursor) {
+        return HistoryCursorMsg.newBuilder()
+                .setTimestamp(cursor.timestamp)
+                .setTransactionId(cursor.transactionId)
+                .setBackward(cursor.backward)
                 .build();
     }
+    /** @return null if the request has no cursor */
+    public static HistoryCursor createHistoryCursor(boolean hasCursor, HistoryCursorMsg cursor) {
+        return hasCursor ? new HistoryCursor(cursor.getTimestamp(), cursor.getTransactionId(), cursor.getBackward()) : null;
+    }
     public static ReqAtomicTxListMsg createReqAtomicTxListMsg(List<Request.TransactionRequest> atomicList) {
         return ReqAtomicTxListMsg.newBuilder()
                 .addAllTransactions(atomicList.stream().map(RequestHandlerUtils::createReqTransactionMsg).collect(Collectors.toList()))
@@ -104,6 +172,9 @@ public class RequestHandlerUtils {
 
     /** General Conversions from gRPC to regular */
     public static UTxO createUTxO(UTxOMsg utxoMsg) {
+        if (utxoMsg.hasValue()) {
+            return new UTxO(utxoMsg.getAddress(), utxoMsg.getTransactionId(), utxoMsg.getValue().getCoins(), utxoMsg.getValue().getTimestamp());
+        }
         return new UTxO(utxoMsg.getAddress(), utxoMsg.getTransactionId());
     }
     public static Transfer createTransfer(TransferMsg transMsg) {
@@ -150,10 +221,13 @@ public class RequestHandlerUtils {
 
     /** General Conversions from regular to gRPC */
     public static UTxOMsg createUTxOMsg(UTxO utxo) {
-        return UTxOMsg.newBuilder()
+        UTxOMsg.Builder builder = UTxOMsg.newBuilder()
                 .setTransactionId(utxo.getTransactionId())
-                .setAddress(utxo.getAddress())
-                .build();
+                .setAddress(utxo.getAddress());
+        if (utxo.getCoins() != null) {
+            builder.setValue(UTxOValueMsg.newBuilder().setCoins(utxo.getCoins()).setTimestamp(utxo.getTimestamp()));
+        }
+        return builder.build();
     }
     public static TransferMsg createTransferMsg(Transfer transfer) {
         return TransferMsg.newBuilder()
@@ -0,0 +1,51 @@
+package model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A position in a history ordered by timestamp (and transaction id), from which a page of transactions continues
+ * either forward (the transactions after it) or backward (the transactions before it).
+ * Clients get it as an opaque string - the direction, timestamp and transaction id, base64url encoded.
+ */
+public class HistoryCursor {
+    public final long timestamp;
+    public final String transactionId;
+    public final boolean backward;
+
+    public HistoryCursor(long timestamp, String transactionId, boolean backward) {
+        this.timestamp = timestamp;
+        this.transactionId = transactionId;
+        this.backward = backward;
+    }
+
+    /** The cursor of the page after the given transaction, the last one of a page */
+    public static HistoryCursor after(Transaction transaction) {
+        return new HistoryCursor(transaction.getTimestamp(), transaction.getTransactionId(), false);
+    }
+
+    /** The cursor of the page before the given transaction, the first one of a page */
+    public static HistoryCursor before(Transaction transaction) {
+        return new HistoryCursor(transaction.getTimestamp(), transaction.getTransactionId(), true);
+    }
+
+    public String encode() {
+        String plain = String.format("%s:%d:%s", backward ? "b" : "a", timestamp, transactionId);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** @throws IllegalArgumentException If the string isn't a cursor */
+    public static HistoryCursor decode(String encoded) {
+        String plain = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+        String[] parts = plain.split(":", 3);
+        if (parts.length != 3 || !(parts[0].equals("a") || parts[0].equals("b"))) {
+            throw new IllegalArgumentException(String.format("Invalid cursor %s", encoded));
+        }
+        return new HistoryCursor(Long.parseLong(parts[1]), parts[2], parts[0].equals("b"));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(%d, %s)", backward ? "before" : "after", timestamp, transactionId);
+    }
+}
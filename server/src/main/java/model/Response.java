@@ -3,6 +3,7 @@ package model;
 import org.springframework.http.HttpStatus;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 public class Response {
 
@@ -30,6 +31,15 @@ public class Response {
         }
     }
 
+    /** Transactions produced lazily, the stream holds resources until it is closed */
+    public static class TransactionStreamResp extends Response {
+        public Stream<Transaction> transactions;
+        public TransactionStreamResp(HttpStatus statusCode, String reason, Stream<Transaction> transactions) {
+            super(statusCode, reason);
+            this.transactions = transactions;
+        }
+    }
+
     public static class UnusedUTxOListResp extends Response {
         public List<UTxO> unusedUtxoList;
         public UnusedUTxOListResp(HttpStatus statusCode, String reason, List<UTxO> unusedUtxoList) {
@@ -1,5 +1,6 @@
 package model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import javax.persistence.Embeddable;
@@ -15,12 +16,25 @@ public class UTxO {
     private String address;
     @JsonProperty("transaction_id")
     private String transactionId;
+    // The value of an unspent UTxO, as listed by the ledger holding it. UTxOs given as inputs don't carry it.
+    @JsonProperty("coins")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long coins;
+    @JsonProperty("timestamp")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long timestamp;
 
     public UTxO(String address, String transactionId) {
         this.address = address;
         this.transactionId = transactionId;
     }
 
+    public UTxO(String address, String transactionId, long coins, long timestamp) {
+        this(address, transactionId);
+        this.coins = coins;
+        this.timestamp = timestamp;
+    }
+
     public String getAddress() {
         return address;
     }
@@ -37,6 +51,16 @@ public class UTxO {
         this.transactionId = transactionId;
     }
 
+    /** @return null if the value isn't known */
+    public Long getCoins() {
+        return coins;
+    }
+
+    /** @return null if the value isn't known */
+    public Long getTimestamp() {
+        return timestamp;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,194 @@
+package multipaxos;
+
+import constants.Constants;
+import cs236351.multipaxos.Accept;
+import cs236351.multipaxos.AcceptorRecord;
+import cs236351.multipaxos.Accepted;
+import cs236351.multipaxos.Ack;
+import cs236351.multipaxos.MultiPaxosAcceptorServiceGrpc;
+import cs236351.multipaxos.Prepare;
+import cs236351.multipaxos.Promise;
+import cs236351.multipaxos.RoundNo;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import persistence.LedgerLog;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Acceptor of the Multi-Paxos.
+ * A promise covers all instances, so a stable leader runs phase 1 once and then only sends Accepts.
+ * Accepted values are kept until the local Learner delivered them and MULTIPAXOS_RETAINED_INSTANCES more.
+ * With a log directory every promise and accepted value is appended to a LedgerLog and only acknowledged once it is
+ * on disk, so a restarted acceptor never breaks a promise. Every MULTIPAXOS_RETAINED_INSTANCES pruned instances the
+ * retained state is written again and the log before it is dropped.
+ * Requests are refused until the acceptor is opened, since it doesn't know what it promised before.
+ */
+public class Acceptor extends MultiPaxosAcceptorServiceGrpc.MultiPaxosAcceptorServiceImplBase {
+    private static final Logger logger = Logger.getLogger(Acceptor.class.getName());
+
+    private RoundNo promised = RoundNo.getDefaultInstance();
+    private final TreeMap<Integer, Accept> accepted = new TreeMap<>();
+    private int firstRetained = 1;
+    private boolean opened = false;
+    // Null when the acceptor's state is only kept in memory
+    private LedgerLog log = null;
+
+    static int compare(RoundNo a, RoundNo b) {
+        return a.getNo() != b.getNo() ? Integer.compare(a.getNo(), b.getNo()) : Integer.compare(a.getId(), b.getId());
+    }
+
+    /** Recovers the state logged in the directory and logs to it from now on, or keeps it in memory if it is null */
+    synchronized void open(Path directory) throws IOException {
+        if (directory != null) {
+            log = new LedgerLog(directory, Constants.LEDGER_LOG_SEGMENT_SIZE, Constants.LEDGER_LOG_FLUSH_INTERVAL_MS);
+            log.replay(0, bytes -> {
+                try {
+                    this.apply(AcceptorRecord.parseFrom(bytes));
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Skipping a corrupted acceptor log record", e);
+                }
+            });
+            logger.log(Level.INFO, String.format("Recovered acceptor state from %s: promised %d.%d, %d accepted values",
+                    directory, promised.getNo(), promised.getId(), accepted.size()));
+        }
+        opened = true;
+    }
+
+    synchronized boolean isOpened() {
+        return opened;
+    }
+
+    private void apply(AcceptorRecord record) {
+        if (record.hasPromised()) {
+            if (compare(record.getPromised(), promised) > 0) {
+                promised = record.getPromised();
+            }
+        } else if (record.hasAccepted()) {
+            if (compare(record.getAccepted().getRoundNo(), promised) > 0) {
+                promised = record.getAccepted().getRoundNo();
+            }
+            accepted.put(record.getAccepted().getInstanceNo(), record.getAccepted());
+        }
+    }
+
+    /**
+     * Appends the record to the log
+     * @return Completed once it is on disk
+     */
+    private CompletableFuture<Void> persist(AcceptorRecord record) {
+        if (log == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            return log.whenDurable(log.append(record.toByteArray()));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to append to the acceptor log", e);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * A YES promise covers every instance from the prepared one and holds the values accepted in them, each with the
+     * round it was accepted in, and the highest instance this acceptor accepted anything for (instance_no).
+     * A NO holds the round promised instead (good_round_no). If the instance was already pruned, instance_no is the
+     * first instance still retained.
+     * @return Completed with the promise once it is on disk
+     */
+    synchronized CompletableFuture<Promise> prepare(Prepare req) {
+        Promise.Builder promise = Promise.newBuilder().setRoundNo(req.getRoundNo());
+        if (req.getInstanceNo() < firstRetained) {
+            logger.log(Level.WARNING, String.format("Prepare of instance %d which was already pruned", req.getInstanceNo()));
+            return CompletableFuture.completedFuture(promise.setAck(Ack.NO).setGoodRoundNo(promised).setInstanceNo(firstRetained).build());
+        }
+        if (compare(req.getRoundNo(), promised) < 0) {
+            return CompletableFuture.completedFuture(promise.setAck(Ack.NO).setGoodRoundNo(promised).setInstanceNo(req.getInstanceNo()).build());
+        }
+        promised = req.getRoundNo();
+        promise.addAllAccepted(accepted.tailMap(req.getInstanceNo()).values());
+        Promise yes = promise.setAck(Ack.YES)
+                .setInstanceNo(accepted.isEmpty() ? 0 : accepted.lastKey())
+                .build();
+        return this.persist(AcceptorRecord.newBuilder().setPromised(promised).build()).thenApply(v -> yes);
+    }
+
+    /** @return Completed with the response once the accepted value is on disk */
+    synchronized CompletableFuture<Accepted> accept(Accept req) {
+        Accepted.Builder resp = Accepted.newBuilder().setInstanceNo(req.getInstanceNo());
+        if (compare(req.getRoundNo(), promised) < 0) {
+            return CompletableFuture.completedFuture(resp.setAck(Ack.NO).setRoundNo(promised).build());
+        }
+        promised = req.getRoundNo();
+        Accepted yes = resp.setAck(Ack.YES).setRoundNo(req.getRoundNo()).build();
+        if (req.getInstanceNo() < firstRetained) {
+            return CompletableFuture.completedFuture(yes);
+        }
+        accepted.put(req.getInstanceNo(), req);
+        return this.persist(AcceptorRecord.newBuilder().setAccepted(req).build()).thenApply(v -> yes);
+    }
+
+    /** @return The highest instance this acceptor accepted a value for, 0 if none */
+    synchronized int lastAccepted() {
+        return accepted.isEmpty() ? 0 : accepted.lastKey();
+    }
+
+    /** Drops the accepted values far enough behind the first instance not delivered yet */
+    synchronized void prune(int firstUndelivered) {
+        int newFirstRetained = firstUndelivered - Constants.MULTIPAXOS_RETAINED_INSTANCES;
+        if (newFirstRetained > firstRetained) {
+            accepted.headMap(newFirstRetained).clear();
+            boolean checkpoint = newFirstRetained / Constants.MULTIPAXOS_RETAINED_INSTANCES > firstRetained / Constants.MULTIPAXOS_RETAINED_INSTANCES;
+            firstRetained = newFirstRetained;
+            if (log != null && checkpoint) {
+                this.checkpoint();
+            }
+        }
+    }
+
+    /** Writes the retained state again, the log before it is dropped once it is on disk */
+    private void checkpoint() {
+        long start = log.position();
+        CompletableFuture<Void> durable = this.persist(AcceptorRecord.newBuilder().setPromised(promised).build());
+        for (Accept value : accepted.values()) {
+            durable = this.persist(AcceptorRecord.newBuilder().setAccepted(value).build());
+        }
+        durable.thenRun(() -> log.truncateBefore(start));
+    }
+
+    @Override
+    public void doPrepare(Prepare request, StreamObserver<Promise> responseObserver) {
+        if (!this.isOpened()) {
+            responseObserver.onError(Status.UNAVAILABLE.withDescription("The acceptor isn't recovered yet").asRuntimeException());
+            return;
+        }
+        this.prepare(request).whenComplete((promise, e) -> {
+            if (e != null) {
+                responseObserver.onError(Status.INTERNAL.withDescription("Failed to log the promise").withCause(e).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(promise);
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override
+    public void doAccept(Accept request, StreamObserver<Accepted> responseObserver) {
+        if (!this.isOpened()) {
+            responseObserver.onError(Status.UNAVAILABLE.withDescription("The acceptor isn't recovered yet").asRuntimeException());
+            return;
+        }
+        this.accept(request).whenComplete((accepted, e) -> {
+            if (e != null) {
+                responseObserver.onError(Status.INTERNAL.withDescription("Failed to log the accepted value").withCause(e).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(accepted);
+            responseObserver.onCompleted();
+        });
+    }
+}
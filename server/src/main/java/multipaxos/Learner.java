@@ -0,0 +1,88 @@
+package multipaxos;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+import constants.Constants;
+import cs236351.multipaxos.Commit;
+import cs236351.multipaxos.Learn;
+import cs236351.multipaxos.Learned;
+import cs236351.multipaxos.MultiPaxosLearnerServiceGrpc;
+import io.grpc.stub.StreamObserver;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Learner of the Multi-Paxos.
+ * Chosen values may be committed out of order since instances are pipelined, they are delivered in instance order.
+ * An empty value is a no-op, chosen by a new leader to fill a gap in the log.
+ * The last MULTIPAXOS_LEARNER_RETAINED_INSTANCES delivered values are kept so a learner that missed commits can learn
+ * them from this one, also the ones the acceptors already pruned.
+ */
+public class Learner extends MultiPaxosLearnerServiceGrpc.MultiPaxosLearnerServiceImplBase {
+    private final Acceptor acceptor;
+    private final Consumer<ByteString> deliver;
+    private final TreeMap<Integer, ByteString> chosen = new TreeMap<>();
+    private final TreeMap<Integer, ByteString> delivered = new TreeMap<>();
+    private int nextToDeliver = 1;
+
+    public Learner(Acceptor acceptor, Consumer<ByteString> deliver) {
+        this.acceptor = acceptor;
+        this.deliver = deliver;
+    }
+
+    synchronized void learn(int instanceNo, ByteString value) {
+        if (instanceNo < nextToDeliver) {
+            return;
+        }
+        chosen.put(instanceNo, value);
+        ByteString next;
+        while ((next = chosen.remove(nextToDeliver)) != null) {
+            if (!next.isEmpty()) {
+                deliver.accept(next);
+            }
+            delivered.put(nextToDeliver, next);
+            nextToDeliver++;
+        }
+        delivered.headMap(nextToDeliver - Constants.MULTIPAXOS_LEARNER_RETAINED_INSTANCES).clear();
+        acceptor.prune(nextToDeliver);
+    }
+
+    synchronized int firstUndelivered() {
+        return nextToDeliver;
+    }
+
+    /** @return true if a later instance was learned or accepted, so the first undelivered one was chosen but missed */
+    synchronized boolean isBehind() {
+        return !chosen.isEmpty() || acceptor.lastAccepted() >= nextToDeliver;
+    }
+
+    /** The chosen values this learner holds from the instance on, up to MULTIPAXOS_LEARN_MAX_INSTANCES of them */
+    synchronized Learned chosenSince(int instanceNo) {
+        Learned.Builder learned = Learned.newBuilder().setFirstRetained(delivered.isEmpty() ? nextToDeliver : delivered.firstKey());
+        for (TreeMap<Integer, ByteString> values : List.of(delivered, chosen)) {
+            for (Map.Entry<Integer, ByteString> entry : values.tailMap(instanceNo).entrySet()) {
+                if (learned.getCommitsCount() == Constants.MULTIPAXOS_LEARN_MAX_INSTANCES) {
+                    return learned.build();
+                }
+                learned.addCommits(Commit.newBuilder().setInstanceNo(entry.getKey()).setValue(entry.getValue()));
+            }
+        }
+        return learned.build();
+    }
+
+    @Override
+    public void doCommit(Commit request, StreamObserver<Empty> responseObserver) {
+        this.learn(request.getInstanceNo(), request.getValue());
+        responseObserver.onNext(Empty.newBuilder().build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void doLearn(Learn request, StreamObserver<Learned> responseObserver) {
+        responseObserver.onNext(this.chosenSince(request.getInstanceNo()));
+        responseObserver.onCompleted();
+    }
+}
@@ -0,0 +1,455 @@
+package multipaxos;
+
+import com.google.protobuf.ByteString;
+import constants.Constants;
+import cs236351.multipaxos.Accept;
+import cs236351.multipaxos.Accepted;
+import cs236351.multipaxos.Ack;
+import cs236351.multipaxos.Commit;
+import cs236351.multipaxos.Learn;
+import cs236351.multipaxos.Learned;
+import cs236351.multipaxos.MultiPaxosAcceptorServiceGrpc;
+import cs236351.multipaxos.MultiPaxosLearnerServiceGrpc;
+import cs236351.multipaxos.MultiPaxosProposerServiceGrpc;
+import cs236351.multipaxos.Prepare;
+import cs236351.multipaxos.Promise;
+import cs236351.multipaxos.Propose;
+import cs236351.multipaxos.ProposeResponse;
+import cs236351.multipaxos.RoundNo;
+import grpcservice.RequestHandlerUtils;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import transactionmanager.ThreadMode;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Multi-Paxos replicating a log of values between the servers of a shard.
+ * The proposer is the shard's sequencer:
+ *   - Phase 1 runs once when it starts leading, a single prepare covers all the instances from the first one it
+ *     didn't learn yet. Values found accepted are proposed again in their instances and gaps are filled with no-ops.
+ *     Afterwards new instances only need phase 2.
+ *   - Instances are pipelined, up to MULTIPAXOS_MAX_IN_FLIGHT_INSTANCES of them wait for a quorum at the same time.
+ *   - Each value is a whole batch of the sequencer, so one instance orders many requests.
+ * All the proposer state is handled on a single thread, the RPC responses are handed over to it.
+ * A learner that missed commits (e.g. the leader gave up sending them) learns them from another replica, it checks
+ * every MULTIPAXOS_CATCH_UP_INTERVAL_MS whether it is stuck behind instances that were already chosen.
+ * A new leader whose learner is behind the instances the other acceptors pruned learns the missed values before it runs
+ * phase 1 again. If no replica holds them anymore it can't lead, and its proposals fail instead of waiting.
+ */
+public class MultiPaxos extends MultiPaxosProposerServiceGrpc.MultiPaxosProposerServiceImplBase {
+    private static final Logger logger = Logger.getLogger(MultiPaxos.class.getName());
+
+    final Acceptor acceptor = new Acceptor();
+    final Learner learner;
+
+    String myServerId;
+    String ID;
+    int myId;
+    List<String> replicas;
+    int quorum;
+
+    /** Channels to the other replicas in the shard */
+    private Map<String, MultiPaxosAcceptorServiceGrpc.MultiPaxosAcceptorServiceFutureStub> acceptorStubs = new HashMap<>();
+    private Map<String, MultiPaxosLearnerServiceGrpc.MultiPaxosLearnerServiceFutureStub> learnerStubs = new HashMap<>();
+
+    private final ScheduledExecutorService proposer = Executors.newSingleThreadScheduledExecutor(r -> ThreadMode.newThread(r, "MultiPaxosProposer"));
+    private final Semaphore window = new Semaphore(Constants.MULTIPAXOS_MAX_IN_FLIGHT_INSTANCES);
+    private final ScheduledExecutorService catchUp = Executors.newSingleThreadScheduledExecutor(r -> ThreadMode.newThread(r, "MultiPaxosCatchUp"));
+    // The first undelivered instance when the learner last checked it is behind, only used on the catch up thread
+    private int lastCatchUpCheck = 0;
+
+    /** Proposer state, only used on the proposer thread. round is null until phase 1 succeeds. */
+    private RoundNo round = null;
+    private int highestRoundNo = 0;
+    // The first instance a replica still retains, when the last phase 1 found the instances it prepared pruned
+    private int prunedBefore = 0;
+    private int nextInstance = 1;
+    private final TreeMap<Integer, Instance> inFlight = new TreeMap<>();
+
+    private static class Instance {
+        final int no;
+        final ByteString value;
+        final CompletableFuture<Void> chosen;
+        final Set<String> accepted = new HashSet<>();
+        boolean done = false;
+        public Instance(int no, ByteString value, CompletableFuture<Void> chosen) {
+            this.no = no;
+            this.value = value;
+            this.chosen = chosen;
+        }
+    }
+
+    /** @param deliver Called with every chosen value, in the order of the log */
+    public MultiPaxos(Consumer<ByteString> deliver) {
+        this.learner = new Learner(acceptor, deliver);
+    }
+
+    public void addServices(ServerBuilder<?> serverBuilder) {
+        serverBuilder.addService(this);
+        serverBuilder.addService(acceptor);
+        serverBuilder.addService(learner);
+    }
+
+    /**
+     * @param replicasAddresses The addresses of all servers in my shard, including me
+     * @param logDirectory Where the acceptor logs its state, null to keep it in memory only
+     */
+    public void setup(String myServerId, String ID, Map<String, String> replicasAddresses, Path logDirectory) {
+        this.setup(myServerId, ID, replicasAddresses, logDirectory, address ->
+                ManagedChannelBuilder.forTarget(address + ":" + System.getenv(Constants.ENV_GRPC_PORT)).usePlaintext().build());
+    }
+
+    /** @param channels Opens the channel to a replica's address */
+    void setup(String myServerId, String ID, Map<String, String> replicasAddresses, Path logDirectory, Function<String, ManagedChannel> channels) {
+        this.myServerId = myServerId;
+        this.ID = ID;
+        this.myId = Integer.parseInt(myServerId.replaceFirst("^.*server-", ""));
+        this.replicas = new ArrayList<>(replicasAddresses.keySet());
+        Collections.sort(this.replicas);
+        this.quorum = replicas.size() / 2 + 1;
+        for (Map.Entry<String, String> entry : replicasAddresses.entrySet()) {
+            if (entry.getKey().equals(myServerId)) {
+                continue;
+            }
+            logger.log(Level.INFO, String.format("%s: Creating Multi-Paxos stubs to server %s at address %s", ID, entry.getKey(), entry.getValue()));
+            ManagedChannel channel = channels.apply(entry.getValue());
+            this.acceptorStubs.put(entry.getKey(), MultiPaxosAcceptorServiceGrpc.newFutureStub(channel));
+            this.learnerStubs.put(entry.getKey(), MultiPaxosLearnerServiceGrpc.newFutureStub(channel));
+        }
+        logger.log(Level.INFO, String.format("%s: Multi-Paxos replicas are %s with a quorum of %d", ID, replicas, quorum));
+        try {
+            acceptor.open(logDirectory);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, String.format("%s: Failed to recover the acceptor, its state won't be persisted", ID), e);
+            try {
+                acceptor.open(null);
+            } catch (IOException ignored) {
+                // Nothing is read without a directory
+            }
+        }
+        catchUp.scheduleWithFixedDelay(this::catchUp, Constants.MULTIPAXOS_CATCH_UP_INTERVAL_MS,
+                Constants.MULTIPAXOS_CATCH_UP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Proposes the value in the next instance of the log.
+     * Blocks while MULTIPAXOS_MAX_IN_FLIGHT_INSTANCES instances wait for a quorum, the future completes once it is chosen.
+     */
+    public CompletableFuture<Void> propose(ByteString value) throws InterruptedException {
+        window.acquire();
+        CompletableFuture<Void> chosen = new CompletableFuture<>();
+        chosen.whenComplete((v, e) -> window.release());
+        proposer.execute(() -> {
+            if (round == null && !this.lead()) {
+                chosen.completeExceptionally(new IllegalStateException(String.format("%s: Can't lead the Multi-Paxos", ID)));
+                return;
+            }
+            Instance instance = new Instance(nextInstance++, value, chosen);
+            inFlight.put(instance.no, instance);
+            this.sendAccept(instance);
+        });
+        return chosen;
+    }
+
+    //////// Phase 1 ////////
+
+    /**
+     * Runs phase 1 until it succeeds, backing off between attempts so competing proposers don't livelock.
+     * If replicas refused because they pruned instances the learner didn't deliver yet, it learns them first.
+     * @return false if it can't lead, the instances in flight failed
+     */
+    private boolean lead() {
+        while (!this.tryLead()) {
+            if (prunedBefore > learner.firstUndelivered() && !this.learnMissed()) {
+                logger.log(Level.SEVERE, String.format("%s: No replica holds the instances from %d anymore, this server needs a state transfer before it can lead",
+                        ID, learner.firstUndelivered()));
+                this.failInFlight();
+                return false;
+            }
+            try {
+                Thread.sleep(Constants.MULTIPAXOS_RETRY_DELAY_MS + ThreadLocalRandom.current().nextLong(Constants.MULTIPAXOS_RETRY_DELAY_MS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.failInFlight();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return true if the learner learned up to the instances the replicas retain from one of them */
+    private boolean learnMissed() {
+        for (String peer : learnerStubs.keySet()) {
+            try {
+                this.learnFrom(peer, learner.firstUndelivered());
+            } catch (ExecutionException e) {
+                logger.log(Level.WARNING, String.format("%s: Failed to learn from %s", ID, peer), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (learner.firstUndelivered() >= prunedBefore) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void failInFlight() {
+        round = null;
+        for (Instance instance : inFlight.values()) {
+            instance.done = true;
+            instance.chosen.completeExceptionally(new IllegalStateException(String.format("%s: Lost the lead of instance %d", ID, instance.no)));
+        }
+        inFlight.clear();
+    }
+
+    private boolean tryLead() {
+        RoundNo newRound = RoundNo.newBuilder().setNo(++highestRoundNo).setId(myId).build();
+        int from = learner.firstUndelivered();
+        logger.log(Level.INFO, String.format("%s: Starting phase 1 of round %d.%d from instance %d", ID, newRound.getNo(), newRound.getId(), from));
+        List<Promise> promises = this.prepareAll(newRound, from);
+        if (promises == null) {
+            return false;
+        }
+        // New instances start after the learned ones, also when the learner caught up past the instances proposed so far
+        int last = Math.max(Math.max(from - 1, nextInstance - 1), promises.stream().mapToInt(Promise::getInstanceNo).max().orElse(0));
+        Map<Integer, ByteString> recovered = highestAccepted(promises);
+        round = newRound;
+        logger.log(Level.INFO, String.format("%s: Leading round %d.%d, recovering instances [%d, %d]", ID, round.getNo(), round.getId(), from, last));
+
+        // Own instances before the first undelivered one were chosen, but maybe with another proposer's value.
+        // They are proposed again in new instances along with own values that lost their instance, a batch executed
+        // twice is ignored by the idempotency checks while a lost one would never be answered.
+        List<Instance> displaced = new ArrayList<>(inFlight.headMap(from).values());
+        inFlight.headMap(from).clear();
+        // Propose the recovered values again
+        for (int i = from; i <= last; i++) {
+            Instance own = inFlight.remove(i);
+            ByteString value = recovered.get(i);
+            Instance instance;
+            if (value == null || (own != null && own.value.equals(value))) {
+                instance = new Instance(i, own != null ? own.value : ByteString.EMPTY, own != null ? own.chosen : new CompletableFuture<>());
+            } else {
+                if (own != null) {
+                    displaced.add(own);
+                }
+                instance = new Instance(i, value, new CompletableFuture<>());
+            }
+            inFlight.put(i, instance);
+            this.sendAccept(instance);
+        }
+        nextInstance = last + 1;
+        for (Instance own : displaced) {
+            Instance instance = new Instance(nextInstance++, own.value, own.chosen);
+            inFlight.put(instance.no, instance);
+            this.sendAccept(instance);
+        }
+        return true;
+    }
+
+    /** @return The YES promises of all replicas for the instances from instanceNo, or null if there isn't a quorum of them in time */
+    private List<Promise> prepareAll(RoundNo newRound, int instanceNo) {
+        Prepare req = Prepare.newBuilder().setRoundNo(newRound).setInstanceNo(instanceNo).build();
+        prunedBefore = 0;
+        List<CompletableFuture<Promise>> responses = new ArrayList<>();
+        for (String replica : replicas) {
+            if (replica.equals(myServerId)) {
+                responses.add(acceptor.prepare(req).exceptionally(e -> null));
+                continue;
+            }
+            responses.add(RequestHandlerUtils.toCompletableFuture(acceptorStubs.get(replica)
+                            .withDeadlineAfter(Constants.MULTIPAXOS_TIMEOUT_MS, TimeUnit.MILLISECONDS).doPrepare(req))
+                    .exceptionally(e -> null));
+        }
+        List<Promise> promises = new ArrayList<>();
+        for (CompletableFuture<Promise> response : responses) {
+            Promise promise = response.join();
+            if (promise == null) {
+                continue;
+            }
+            if (promise.getAck() == Ack.YES) {
+                promises.add(promise);
+                continue;
+            }
+            highestRoundNo = Math.max(highestRoundNo, promise.getGoodRoundNo().getNo());
+            if (promise.getInstanceNo() > instanceNo) {
+                logger.log(Level.WARNING, String.format("%s: Instance %d was already pruned by a replica, which retains from %d", ID, instanceNo, promise.getInstanceNo()));
+                prunedBefore = Math.max(prunedBefore, promise.getInstanceNo());
+            }
+        }
+        if (promises.size() < quorum) {
+            logger.log(Level.WARNING, String.format("%s: Phase 1 of instance %d got %d promises, need %d", ID, instanceNo, promises.size(), quorum));
+            return null;
+        }
+        return promises;
+    }
+
+    /** @return The value accepted in the highest round for each instance any of the promises holds a value for */
+    private static Map<Integer, ByteString> highestAccepted(List<Promise> promises) {
+        Map<Integer, Accept> highest = new HashMap<>();
+        for (Promise promise : promises) {
+            for (Accept accepted : promise.getAcceptedList()) {
+                highest.merge(accepted.getInstanceNo(), accepted,
+                        (a, b) -> Acceptor.compare(a.getRoundNo(), b.getRoundNo()) >= 0 ? a : b);
+            }
+        }
+        Map<Integer, ByteString> values = new HashMap<>();
+        highest.forEach((instanceNo, accepted) -> values.put(instanceNo, accepted.getValue()));
+        return values;
+    }
+
+    //////// Phase 2 ////////
+
+    private void sendAccept(Instance instance) {
+        Accept req = Accept.newBuilder().setRoundNo(round).setInstanceNo(instance.no).setValue(instance.value).build();
+        for (String replica : replicas) {
+            if (!instance.accepted.contains(replica)) {
+                this.sendAccept(instance, replica, req);
+            }
+        }
+    }
+
+    private void sendAccept(Instance instance, String replica, Accept req) {
+        if (replica.equals(myServerId)) {
+            acceptor.accept(req).whenComplete((resp, e) -> proposer.execute(() -> this.onAccepted(instance, req, replica, resp, e)));
+            return;
+        }
+        RequestHandlerUtils.toCompletableFuture(acceptorStubs.get(replica)
+                        .withDeadlineAfter(Constants.MULTIPAXOS_TIMEOUT_MS, TimeUnit.MILLISECONDS).doAccept(req))
+                .whenComplete((resp, e) -> proposer.execute(() -> this.onAccepted(instance, req, replica, resp, e)));
+    }
+
+    private void onAccepted(Instance instance, Accept req, String replica, Accepted resp, Throwable e) {
+        if (instance.done || !req.getRoundNo().equals(round)) {
+            return;
+        }
+        if (e != null) {
+            // Keep trying the replica until the instance is chosen, a quorum is enough
+            proposer.schedule(() -> {
+                if (!instance.done && req.getRoundNo().equals(round)) {
+                    this.sendAccept(instance, replica, req);
+                }
+            }, Constants.MULTIPAXOS_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (resp.getAck() == Ack.NO) {
+            logger.log(Level.WARNING, String.format("%s: Replica %s promised round %d.%d, running phase 1 again",
+                    ID, replica, resp.getRoundNo().getNo(), resp.getRoundNo().getId()));
+            highestRoundNo = Math.max(highestRoundNo, resp.getRoundNo().getNo());
+            round = null;
+            this.lead();
+            return;
+        }
+        instance.accepted.add(replica);
+        if (instance.accepted.size() >= quorum) {
+            this.choose(instance);
+        }
+    }
+
+    private void choose(Instance instance) {
+        instance.done = true;
+        inFlight.remove(instance.no);
+        learner.learn(instance.no, instance.value);
+        Commit commit = Commit.newBuilder().setInstanceNo(instance.no).setValue(instance.value).build();
+        for (String replica : learnerStubs.keySet()) {
+            this.sendCommit(replica, commit, Constants.MULTIPAXOS_COMMIT_RETRIES);
+        }
+        instance.chosen.complete(null);
+    }
+
+    private void sendCommit(String replica, Commit commit, int retries) {
+        RequestHandlerUtils.toCompletableFuture(learnerStubs.get(replica)
+                        .withDeadlineAfter(Constants.MULTIPAXOS_TIMEOUT_MS, TimeUnit.MILLISECONDS).doCommit(commit))
+                .whenComplete((resp, e) -> {
+                    if (e == null) {
+                        return;
+                    }
+                    if (retries == 0) {
+                        logger.log(Level.WARNING, String.format("%s: Giving up on committing instance %d to %s, it will have to catch up", ID, commit.getInstanceNo(), replica));
+                        return;
+                    }
+                    proposer.schedule(() -> this.sendCommit(replica, commit, retries - 1), Constants.MULTIPAXOS_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+                });
+    }
+
+    //////// Catch Up ////////
+
+    /** Learns the chosen values from another replica if the learner is still stuck where it was on the last check */
+    private void catchUp() {
+        int from = learner.firstUndelivered();
+        boolean stuck = from == lastCatchUpCheck && learner.isBehind();
+        lastCatchUpCheck = from;
+        if (!stuck || learnerStubs.isEmpty()) {
+            return;
+        }
+        List<String> peers = new ArrayList<>(learnerStubs.keySet());
+        String peer = peers.get(ThreadLocalRandom.current().nextInt(peers.size()));
+        logger.log(Level.INFO, String.format("%s: Stuck at instance %d, learning the chosen values from %s", ID, from, peer));
+        try {
+            lastCatchUpCheck = this.learnFrom(peer, from);
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, String.format("%s: Failed to learn from %s", ID, peer), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Learns the chosen values the peer holds from the instance on
+     * @return The first instance the learner didn't deliver afterwards
+     */
+    private int learnFrom(String peer, int from) throws ExecutionException, InterruptedException {
+        Learned learned;
+        do {
+            learned = learnerStubs.get(peer).withDeadlineAfter(Constants.MULTIPAXOS_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .doLearn(Learn.newBuilder().setInstanceNo(from).build()).get();
+            if (learned.getFirstRetained() > from) {
+                logger.log(Level.SEVERE, String.format("%s: %s already dropped instances from %d, this server is too far behind to catch up",
+                        ID, peer, from));
+            }
+            for (Commit commit : learned.getCommitsList()) {
+                learner.learn(commit.getInstanceNo(), commit.getValue());
+            }
+            // A full response means there is more to learn, as long as it got the learner further
+            int next = learner.firstUndelivered();
+            if (next == from) {
+                break;
+            }
+            from = next;
+        } while (learned.getCommitsCount() == Constants.MULTIPAXOS_LEARN_MAX_INSTANCES);
+        return from;
+    }
+
+    //////// gRPC Services ////////
+
+    @Override
+    public void doPropose(Propose request, StreamObserver<ProposeResponse> responseObserver) {
+        try {
+            this.propose(request.getValue()).whenComplete((v, e) -> {
+                responseObserver.onNext(ProposeResponse.newBuilder().setAck(e == null ? Ack.YES : Ack.NO).build());
+                responseObserver.onCompleted();
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            responseObserver.onNext(ProposeResponse.newBuilder().setAck(Ack.NO).build());
+            responseObserver.onCompleted();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package persistence;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * History Store:
+ * Holds serialized records (the ledger's transactions) outside the Java heap, so the heap and the GC pauses don't grow
+ * with the history. Records are appended to arenas that are either direct ByteBuffers or memory-mapped files, which
+ * the OS can page out. Each record is written as [length: int][bytes] and never spans two arenas, it is addressed by
+ * [arena: high 32 bits][offset in the arena: low 32 bits].
+ * The store is scratch space, after a restart the ledger fills it again from the snapshot and the ledger log.
+ * Appends are serialized, reads don't lock - a record is only read once its address was handed out.
+ */
+public class HistoryStore {
+    private static final Logger LOGGER = Logger.getLogger(HistoryStore.class.getName());
+    private static final String ARENA_SUFFIX = ".arena";
+
+    private final int arenaSize;
+    // Directory of the arena files, null when the arenas are direct buffers
+    private final Path directory;
+    private volatile ByteBuffer[] arenas = new ByteBuffer[0];
+    // The arena appended to, its position is where the next record goes
+    private ByteBuffer current;
+
+    private HistoryStore(int arenaSize, Path directory) {
+        this.arenaSize = arenaSize;
+        this.directory = directory;
+    }
+
+    /** A store in direct buffers of `arenaSize` bytes each */
+    public static HistoryStore direct(int arenaSize) {
+        return new HistoryStore(arenaSize, null);
+    }
+
+    /** A store in files of `arenaSize` bytes each in `directory`, arenas left there by a previous run are deleted */
+    public static HistoryStore mapped(Path directory, int arenaSize) throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + ARENA_SUFFIX)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        return new HistoryStore(arenaSize, directory);
+    }
+
+    /**
+     * Copies the record to the store
+     * @return The address to read it at
+     */
+    synchronized public long append(byte[] record) {
+        int needed = Integer.BYTES + record.length;
+        if (current == null || current.remaining() < needed) {
+            addArena(Math.max(arenaSize, needed));
+        }
+        long address = ((long) (arenas.length - 1) << 32) | current.position();
+        current.putInt(record.length);
+        current.put(record);
+        return address;
+    }
+
+    public byte[] read(long address) {
+        ByteBuffer arena = arenas[(int) (address >>> 32)].duplicate();
+        arena.position((int) address);
+        byte[] record = new byte[arena.getInt()];
+        arena.get(record);
+        return record;
+    }
+
+    private void addArena(int size) {
+        ByteBuffer arena;
+        if (directory == null) {
+            arena = ByteBuffer.allocateDirect(size);
+        } else {
+            Path path = directory.resolve(String.format("%010d%s", arenas.length, ARENA_SUFFIX));
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.setLength(size);
+                arena = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException e) {
+                throw new UncheckedIOException(String.format("Failed to map history arena %s", path), e);
+            }
+        }
+        ByteBuffer[] grown = Arrays.copyOf(arenas, arenas.length + 1);
+        grown[arenas.length] = arena;
+        arenas = grown;
+        current = arena;
+        LOGGER.log(Level.INFO, String.format("Added history arena %d of %d bytes (%s)", arenas.length - 1, size,
+                directory == null ? "direct" : directory));
+    }
+}
@@ -0,0 +1,227 @@
+package persistence;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Idempotency Store:
+ * Remembers which requests were done, for a retention window. Keys are kept as 128-bit hashes of the idempotency keys.
+ * Time is a logical clock the caller passes in (e.g. the timestamp the sequencer assigned to the request, or a batch's
+ * sequence number), so replicas executing the same requests in the same order decide the same way - a key done at `t`
+ * is found while `now <= t + retention`.
+ * The most recent keys are held in memory, evicted once they are older than the retention window or once there are
+ * more than maxKeysInMemory of them.
+ * When backed by a file every key is also written to an on-disk hash table, so keys are still found after they leave
+ * memory and after a restart. The table is memory-mapped with open addressing, each slot holds
+ * [hash high:8][hash low:8][done at + 1:8]. A slot whose time is 0 is empty, and one older than the retention
+ * window is expired and is reused. Keys the table has no room for stay in memory until they expire, so a backed store
+ * decides only by the retention window. A store in memory only forgets keys evicted for maxKeysInMemory as well.
+ * Keys of requests that aren't durable yet are added pending: they are found right away, but only written to the table
+ * by persistThrough, so after a crash the table never holds a key whose request was lost. The table is only forced
+ * by force, the caller forces it before it drops its own durable record of the keys (e.g. truncates its log).
+ */
+public class IdempotencyStore {
+    private static final Logger LOGGER = Logger.getLogger(IdempotencyStore.class.getName());
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final int SLOT_SIZE = 3 * Long.BYTES;
+    private static final int MAX_PROBES = 64;
+
+    private static final class Key {
+        final long high;
+        final long low;
+
+        Key(String idempotencyKey) {
+            ByteBuffer hash = ByteBuffer.wrap(HASH.hashString(idempotencyKey, StandardCharsets.UTF_8).asBytes());
+            this.high = hash.getLong();
+            this.low = hash.getLong();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).high == high && ((Key) o).low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) low;
+        }
+    }
+
+    private final long retention;
+    private final int maxKeysInMemory;
+    private final LinkedHashMap<Key, Long> recent = new LinkedHashMap<>();
+    // Keys the table had no room for, only evicted once they expire
+    private final LinkedHashMap<Key, Long> overflow = new LinkedHashMap<>();
+    // Pending keys not written to the table yet, in the order of their tickets: [done at, ticket]
+    private final LinkedHashMap<Key, long[]> pending = new LinkedHashMap<>();
+    private long lastTicket = 0;
+
+    // On-disk table, null when the store lives in memory only
+    private final MappedByteBuffer table;
+    private final int slots;
+
+    /** A store in memory only, keys evicted from memory are forgotten */
+    public IdempotencyStore(long retention, int maxKeysInMemory) {
+        this.retention = retention;
+        this.maxKeysInMemory = maxKeysInMemory;
+        this.table = null;
+        this.slots = 0;
+    }
+
+    /** A store backed by the on-disk table in `file`, created with `slots` slots if it doesn't exist */
+    public IdempotencyStore(long retention, int maxKeysInMemory, Path file, int slots) throws IOException {
+        this.retention = retention;
+        this.maxKeysInMemory = maxKeysInMemory;
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // An existing table keeps its size, the slot of a key depends on it
+            long size = channel.size() > 0 ? channel.size() : (long) slots * SLOT_SIZE;
+            this.slots = (int) (size / SLOT_SIZE);
+            this.table = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) this.slots * SLOT_SIZE);
+        }
+        LOGGER.log(Level.INFO, String.format("Opened idempotency table %s with %d slots", file, this.slots));
+    }
+
+    /** @return true if the key was added no longer than the retention window before `now` */
+    public synchronized boolean contains(String idempotencyKey, long now) {
+        Key key = new Key(idempotencyKey);
+        Long doneAt = recent.get(key);
+        if (doneAt == null) {
+            doneAt = overflow.get(key);
+        }
+        if (doneAt == null && pending.containsKey(key)) {
+            doneAt = pending.get(key)[0];
+        }
+        if (doneAt != null) {
+            return !isExpired(doneAt, now);
+        }
+        return table != null && findSlot(key, now, false) >= 0;
+    }
+
+    /** Remembers the key as done at `now` */
+    public synchronized void add(String idempotencyKey, long now) {
+        Key key = new Key(idempotencyKey);
+        remember(key, now);
+        pending.remove(key);
+        if (table != null) {
+            write(key, now);
+        }
+        evict(recent, maxKeysInMemory, now);
+        evict(overflow, Integer.MAX_VALUE, now);
+    }
+
+    /**
+     * Remembers the key as done at `now`, without writing it to the table until persistThrough is called with the
+     * returned ticket (or a later one).
+     */
+    public synchronized long addPending(String idempotencyKey, long now) {
+        Key key = new Key(idempotencyKey);
+        remember(key, now);
+        pending.remove(key); // so it is persisted in the order of its new ticket
+        pending.put(key, new long[]{now, ++lastTicket});
+        evict(recent, maxKeysInMemory, now);
+        evict(overflow, Integer.MAX_VALUE, now);
+        return lastTicket;
+    }
+
+    /** @return The ticket of the last key added pending, 0 if there was none */
+    public synchronized long lastTicket() {
+        return lastTicket;
+    }
+
+    /** Writes the pending keys up to the ticket to the table, their requests are durable now */
+    public synchronized void persistThrough(long ticket) {
+        Iterator<Map.Entry<Key, long[]>> oldest = pending.entrySet().iterator();
+        while (oldest.hasNext()) {
+            Map.Entry<Key, long[]> entry = oldest.next();
+            if (entry.getValue()[1] > ticket) {
+                break;
+            }
+            if (table != null) {
+                write(entry.getKey(), entry.getValue()[0]);
+            }
+            oldest.remove();
+        }
+    }
+
+    /** Forces the keys written to the table to disk */
+    public synchronized void force() {
+        if (table != null) {
+            table.force();
+        }
+    }
+
+    private void remember(Key key, long now) {
+        recent.remove(key); // so it moves to the end of the eviction order
+        recent.put(key, now);
+    }
+
+    private void write(Key key, long now) {
+        int slot = findSlot(key, now, true);
+        if (slot < 0) {
+            LOGGER.log(Level.WARNING, String.format("Idempotency table is full around key %016x%016x, it is kept in memory until it expires", key.high, key.low));
+            overflow.remove(key);
+            overflow.put(key, now);
+        } else {
+            int offset = slot * SLOT_SIZE;
+            table.putLong(offset, key.high);
+            table.putLong(offset + Long.BYTES, key.low);
+            table.putLong(offset + 2 * Long.BYTES, now + 1);
+        }
+    }
+
+    private boolean isExpired(long doneAt, long now) {
+        return doneAt + retention < now;
+    }
+
+    /** Drops the oldest keys from memory while they are too old or too many, in a backed store they stay in the table */
+    private void evict(LinkedHashMap<Key, Long> keys, int maxKeys, long now) {
+        Iterator<Map.Entry<Key, Long>> oldest = keys.entrySet().iterator();
+        while (oldest.hasNext()) {
+            Map.Entry<Key, Long> entry = oldest.next();
+            if (keys.size() <= maxKeys && !isExpired(entry.getValue(), now)) {
+                break;
+            }
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Probes the table for the key, up to MAX_PROBES slots.
+     * @return The slot holding the key, or with forInsert the first free slot for it if it isn't there. -1 if neither.
+     */
+    private int findSlot(Key key, long now, boolean forInsert) {
+        int free = -1;
+        int slot = (int) Long.remainderUnsigned(key.low, slots);
+        for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) % slots) {
+            int offset = slot * SLOT_SIZE;
+            long stored = table.getLong(offset + 2 * Long.BYTES);
+            if (stored == 0) {
+                // Nothing was ever stored past an empty slot
+                return forInsert ? (free >= 0 ? free : slot) : -1;
+            }
+            boolean expired = isExpired(stored - 1, now);
+            if (table.getLong(offset) == key.high && table.getLong(offset + Long.BYTES) == key.low) {
+                return (expired && !forInsert) ? -1 : slot;
+            }
+            if (expired && free < 0) {
+                free = slot;
+            }
+        }
+        return forInsert ? free : -1;
+    }
+}
@@ -0,0 +1,240 @@
+package persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Ledger Log:
+ * Append-only log of the records applied to the ledger, stored in memory-mapped segment files.
+ * Each record is written as [length: int][crc32: int][bytes]. Positions are byte offsets over the whole log,
+ * each segment file is named by the position it starts at.
+ * Appends only copy into the mapped memory. A flusher thread forces the segment to disk every flushIntervalMs,
+ * so a single fsync covers all the records appended during the interval (group commit). Callers that must not
+ * acknowledge a record before it is on disk wait for whenDurable.
+ */
+public class LedgerLog implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(LedgerLog.class.getName());
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** A memory-mapped segment file holding the records from position `start` */
+    private static class Segment {
+        final long start;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(long start, Path path, long size) throws IOException {
+            this.start = start;
+            this.path = path;
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.setLength(Math.max(file.length(), size));
+                this.channel = file.getChannel();
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            }
+        }
+
+        long end() {
+            return start + buffer.position();
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final List<Long> segmentStarts = new ArrayList<>();
+    private Segment current;
+    private volatile boolean dirty = false;
+    // Every record before it is on disk, and the futures waiting for later positions
+    private long durablePosition;
+    private final TreeMap<Long, CompletableFuture<Void>> durableWaiters = new TreeMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "LedgerLogFlusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LedgerLog(Path directory, int segmentSize, long flushIntervalMs) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segmentStarts.add(Long.parseLong(file.getFileName().toString().replace(SEGMENT_SUFFIX, "")));
+            }
+        }
+        Collections.sort(segmentStarts);
+        if (segmentStarts.isEmpty()) {
+            segmentStarts.add(0L);
+        }
+        long lastStart = segmentStarts.get(segmentStarts.size() - 1);
+        this.current = new Segment(lastStart, segmentPath(lastStart), segmentSize);
+        // Continue appending right after the last valid record, a torn record at the tail is overwritten
+        this.current.buffer.position(scan(this.current.buffer, 0, null));
+        this.durablePosition = current.end();
+        LOGGER.log(Level.INFO, String.format("Opened ledger log at %s, %d segments, position %d", directory, segmentStarts.size(), current.end()));
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private Path segmentPath(long start) {
+        return directory.resolve(String.format("%020d%s", start, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Reads the records in the buffer starting at offset, until the end of the valid records.
+     * @return The offset right after the last valid record
+     */
+    private static int scan(ByteBuffer buffer, int offset, Consumer<byte[]> consumer) {
+        while (offset + HEADER_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(offset);
+            int crc = buffer.getInt(offset + Integer.BYTES);
+            if (length <= 0 || offset + HEADER_SIZE + length > buffer.limit()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(offset + HEADER_SIZE);
+            slice.get(record);
+            CRC32 checksum = new CRC32();
+            checksum.update(record);
+            if ((int) checksum.getValue() != crc) {
+                break;
+            }
+            if (consumer != null) {
+                consumer.accept(record);
+            }
+            offset += HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    /**
+     * Appends the record to the log. It is durable once the flusher forces it to disk, see whenDurable.
+     * @return The position right after the record
+     */
+    synchronized public long append(byte[] record) throws IOException {
+        if (current.buffer.remaining() < HEADER_SIZE + record.length) {
+            roll(HEADER_SIZE + record.length);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(record);
+        current.buffer.putInt(record.length);
+        current.buffer.putInt((int) checksum.getValue());
+        current.buffer.put(record);
+        dirty = true;
+        return current.end();
+    }
+
+    /** Starts a new segment at the current position, big enough for a record of `needed` bytes */
+    private void roll(int needed) throws IOException {
+        Segment previous = current;
+        previous.buffer.force();
+        previous.channel.close();
+        long start = previous.end();
+        current = new Segment(start, segmentPath(start), Math.max(segmentSize, needed));
+        segmentStarts.add(start);
+        LOGGER.log(Level.INFO, String.format("Ledger log rolled to a new segment at position %d", start));
+    }
+
+    /** @return The position the next record will be appended at */
+    synchronized public long position() {
+        return current.end();
+    }
+
+    /** @return Completed once every record before the position is on disk */
+    synchronized public CompletableFuture<Void> whenDurable(long position) {
+        if (position <= durablePosition) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return durableWaiters.computeIfAbsent(position, p -> new CompletableFuture<>());
+    }
+
+    /** Forces all records appended so far to disk */
+    public void flush() {
+        if (!dirty) {
+            return;
+        }
+        Segment segment;
+        long end;
+        synchronized (this) {
+            segment = current;
+            end = current.end();
+            dirty = false;
+        }
+        // The segments before it were forced when the log rolled past them
+        segment.buffer.force();
+        this.completeDurable(end);
+    }
+
+    private void completeDurable(long position) {
+        List<CompletableFuture<Void>> reached;
+        synchronized (this) {
+            durablePosition = Math.max(durablePosition, position);
+            Map<Long, CompletableFuture<Void>> reachedWaiters = durableWaiters.headMap(durablePosition, true);
+            reached = new ArrayList<>(reachedWaiters.values());
+            reachedWaiters.clear();
+        }
+        reached.forEach(waiter -> waiter.complete(null));
+    }
+
+    /** Calls the consumer on each record in the log from the given position, in order */
+    synchronized public void replay(long from, Consumer<byte[]> consumer) throws IOException {
+        for (int i = 0; i < segmentStarts.size(); i++) {
+            long start = segmentStarts.get(i);
+            long nextStart = (i + 1 < segmentStarts.size()) ? segmentStarts.get(i + 1) : Long.MAX_VALUE;
+            if (nextStart <= from) {
+                continue;
+            }
+            int offset = (int) Math.max(0, from - start);
+            if (start == current.start) {
+                ByteBuffer buffer = current.buffer.duplicate();
+                buffer.limit(current.buffer.position());
+                scan(buffer, offset, consumer);
+            } else {
+                try (FileChannel channel = FileChannel.open(segmentPath(start))) {
+                    scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), offset, consumer);
+                }
+            }
+        }
+    }
+
+    /** Deletes the segments that only hold records before the given position (already covered by a snapshot) */
+    synchronized public void truncateBefore(long position) {
+        while (segmentStarts.size() > 1 && segmentStarts.get(1) <= position) {
+            long start = segmentStarts.remove(0);
+            try {
+                Files.deleteIfExists(segmentPath(start));
+                LOGGER.log(Level.INFO, String.format("Deleted ledger log segment starting at %d", start));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, String.format("Failed to delete ledger log segment starting at %d", start), e);
+            }
+        }
+    }
+
+    @Override
+    synchronized public void close() throws IOException {
+        flusher.shutdown();
+        current.buffer.force();
+        current.channel.close();
+        this.completeDurable(current.end());
+    }
+}
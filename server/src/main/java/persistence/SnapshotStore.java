@@ -0,0 +1,72 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Snapshot Store:
+ * Keeps the latest snapshot of the ledger on disk. A snapshot is written to a temporary file, forced to disk and
+ * then atomically renamed, so a crash while writing leaves the previous snapshot intact.
+ * Snapshot files are named by the log position they cover, older ones are deleted once a newer one is in place.
+ */
+public class SnapshotStore {
+    private static final Logger LOGGER = Logger.getLogger(SnapshotStore.class.getName());
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+
+    private final Path directory;
+
+    public SnapshotStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    private List<Path> listSnapshots() throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SNAPSHOT_SUFFIX)) {
+            files.forEach(snapshots::add);
+        }
+        // File names are zero-padded positions, so sorting the names sorts by position
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+
+    /** Writes the snapshot covering the log up to `position` */
+    public void write(long position, byte[] snapshot) throws IOException {
+        Path target = directory.resolve(String.format("%020d%s", position, SNAPSHOT_SUFFIX));
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        for (Path old : listSnapshots()) {
+            if (!old.equals(target)) {
+                Files.deleteIfExists(old);
+            }
+        }
+        LOGGER.log(Level.INFO, String.format("Wrote ledger snapshot at log position %d (%d bytes)", position, snapshot.length));
+    }
+
+    /** @return The latest snapshot, or null if there is none */
+    public byte[] readLatest() throws IOException {
+        List<Path> snapshots = listSnapshots();
+        if (snapshots.isEmpty()) {
+            return null;
+        }
+        return Files.readAllBytes(snapshots.get(snapshots.size() - 1));
+    }
+}
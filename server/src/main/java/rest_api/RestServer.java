@@ -8,8 +8,10 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceTransactionManagerAutoConfiguration;
 import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
+import transactionmanager.ThreadMode;
 
 import java.util.Arrays;
 import java.util.Collections;
@@ -27,6 +29,16 @@ public class RestServer {
         app.run(args);
     }
 
+    /** In virtual thread mode Tomcat handles each request on a new virtual thread instead of its worker pool */
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> threadModeProtocolHandlerCustomizer() {
+        return protocolHandler -> {
+            if (ThreadMode.isVirtual()) {
+                protocolHandler.setExecutor(ThreadMode.newVirtualThreadPerTaskExecutor());
+            }
+        };
+    }
+
     @Bean
     public CommandLineRunner commandLineRunner(ApplicationContext ctx) {
         return args -> {
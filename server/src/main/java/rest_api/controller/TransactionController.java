@@ -1,22 +1,36 @@
 package rest_api.controller;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import javassist.bytecode.stackmap.TypeData;
+import model.HistoryCursor;
 import model.Request;
 import model.Response;
 import model.Transaction;
 import model.UTxO;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.util.UriComponentsBuilder;
 import rest_api.exception.BadRequestException;
 import rest_api.exception.ConflictException;
 import rest_api.exception.NotFoundException;
+import rest_api.exception.ServiceUnavailableException;
 import transactionmanager.TransactionManager;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Controller for REST API endpoints
@@ -26,7 +40,8 @@ import java.util.logging.Logger;
 public class TransactionController {
     private static final Logger LOGGER = Logger.getLogger(TypeData.ClassName.class.getName());
 
-    TransactionController(){
+    TransactionController(ObjectMapper objectMapper){
+        this.objectMapper = objectMapper;
         try {
             this.transactionManager = new TransactionManager();
             this.transactionManager.setup();
@@ -43,6 +58,7 @@ public class TransactionController {
     }
 
     private TransactionManager transactionManager = null;
+    private final ObjectMapper objectMapper;
     private static final String limitParamDefault = "-1";
 
     /** Handle error responses */
@@ -52,6 +68,7 @@ public class TransactionController {
             case BAD_REQUEST: throw new BadRequestException(resp.reason);
             case CONFLICT: throw new ConflictException(resp.reason);
             case NOT_FOUND: throw new NotFoundException(resp.reason);
+            case SERVICE_UNAVAILABLE: throw new ServiceUnavailableException(resp.reason);
             default: throw new RuntimeException(String.format("Unknown exception type %s", resp.statusCode.toString()));
         }
     }
@@ -62,44 +79,138 @@ public class TransactionController {
      * 2. an atomic list of multiple transactions.
      * Therefore, the endpoint receives a body containing an array of transactions. This array will contain a single
      * transaction for the case that the user wishes to submit a singe transaction.
+     * Endpoints return futures, the servlet thread is released while the request is processed.
      *
      * @param transactions
      */
     @PostMapping("/transactions")
-    public @ResponseBody List<Transaction> createTransaction(@RequestBody List<Request.TransactionRequest> transactions) {
+    public @ResponseBody CompletableFuture<List<Transaction>> createTransaction(@RequestBody List<Request.TransactionRequest> transactions) {
         if (transactions.size() == 1) {
             Request.TransactionRequest transactionReq = transactions.get(0);
-            Response.TransactionResp resp = transactionManager.handleTransaction(transactionReq);
-            handleErrors(resp);
-            return List.of(resp.transaction);
+            return transactionManager.handleTransaction(transactionReq).thenApply(resp -> {
+                handleErrors(resp);
+                return List.of(resp.transaction);
+            });
         } else {
-            Response.TransactionListResp resp = transactionManager.handleAtomicTxList(transactions);
-            handleErrors(resp);
-            return resp.transactionsList;
+            return transactionManager.handleAtomicTxList(transactions).thenApply(resp -> {
+                handleErrors(resp);
+                return resp.transactionsList;
+            });
         }
     }
 
     @PostMapping("/send_coins")
-    public @ResponseBody Transaction sendCoins(@RequestBody SendCoinsRequestBody body) {
-        Response.TransactionResp resp = transactionManager.handleCoinTransfer(body.sourceAddress, body.targetAddress, body.coins, body.reqId);
-        handleErrors(resp);
-        return resp.transaction;
+    public @ResponseBody CompletableFuture<Transaction> sendCoins(@RequestBody SendCoinsRequestBody body) {
+        return transactionManager.handleCoinTransfer(body.sourceAddress, body.targetAddress, body.coins, body.reqId).thenApply(resp -> {
+            handleErrors(resp);
+            return resp.transaction;
+        });
+    }
+
+    /**
+     * Parses the opaque cursor of a page.
+     * @return null if there is none, the page starts from the first transaction
+     */
+    private HistoryCursor parseCursor(String cursor) {
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return HistoryCursor.decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(String.format("Invalid cursor %s", cursor));
+        }
     }
 
+    /**
+     * Links to the pages after and before a page, in the Link header (rel="next" and rel="prev").
+     * An empty page has no links.
+     */
+    private HttpHeaders pageLinks(UriComponentsBuilder request, List<Transaction> page) {
+        HttpHeaders headers = new HttpHeaders();
+        if (page == null || page.isEmpty()) {
+            return headers;
+        }
+        String next = request.replaceQueryParam("cursor", HistoryCursor.after(page.get(page.size() - 1)).encode()).toUriString();
+        String prev = request.replaceQueryParam("cursor", HistoryCursor.before(page.get(0)).encode()).toUriString();
+        headers.add(HttpHeaders.LINK, String.format("<%s>; rel=\"next\", <%s>; rel=\"prev\"", next, prev));
+        return headers;
+    }
+
+    /**
+     * Transactions are listed oldest-first, a page at a time when a limit is given.
+     * The Link header points at the next and previous pages, each continues from an opaque cursor.
+     */
     @GetMapping("/users/{address}/transactions")
-    public @ResponseBody List<Transaction> getAllTransactionsForUser(@PathVariable String address,
-                        @RequestParam(required = false, defaultValue = limitParamDefault) int limit) {
-        return transactionManager.handleListAddrTransactions(address, limit).transactionsList;
+    public @ResponseBody CompletableFuture<ResponseEntity<List<Transaction>>> getAllTransactionsForUser(@PathVariable String address,
+                        @RequestParam(required = false, defaultValue = limitParamDefault) int limit,
+                        @RequestParam(required = false) String cursor) {
+        UriComponentsBuilder request = ServletUriComponentsBuilder.fromCurrentRequest();
+        return transactionManager.handleListAddrTransactions(address, limit, parseCursor(cursor))
+                .thenApply(resp -> ResponseEntity.ok().headers(pageLinks(request, resp.transactionsList)).body(resp.transactionsList));
     }
 
     @GetMapping("/users/{address}/utxos")
-    public @ResponseBody List<UTxO> getAllUtxosForUser(@PathVariable String address) {
-        return transactionManager.handleListAddrUTxO(address).unusedUtxoList;
+    public @ResponseBody CompletableFuture<List<UTxO>> getAllUtxosForUser(@PathVariable String address) {
+        return transactionManager.handleListAddrUTxO(address).thenApply(resp -> resp.unusedUtxoList);
     }
 
+    /**
+     * The entire history is streamed as it is merged from the shards, with chunked transfer encoding.
+     * It is written as a JSON array, or as newline delimited JSON when the client accepts application/x-ndjson.
+     * With a limit it is paged like the transactions of an address, a page is small so it is collected to link the
+     * pages around it.
+     */
     @GetMapping("/transactions")
-    public @ResponseBody List<Transaction> getAllTransactions(@RequestParam(required = false, defaultValue = limitParamDefault) int limit) {
-        return transactionManager.handleListEntireHistory(limit).transactionsList;
+    public @ResponseBody CompletableFuture<ResponseEntity<StreamingResponseBody>> getAllTransactions(
+                        @RequestParam(required = false, defaultValue = limitParamDefault) int limit,
+                        @RequestParam(required = false) String cursor,
+                        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+        boolean ndjson = accept != null && accept.contains(MediaType.APPLICATION_NDJSON_VALUE);
+        UriComponentsBuilder request = ServletUriComponentsBuilder.fromCurrentRequest();
+        return transactionManager.handleListEntireHistory(limit, parseCursor(cursor)).thenApply(resp -> {
+            if (resp.transactions == null) {
+                handleErrors(resp);
+            }
+            HttpHeaders links = new HttpHeaders();
+            Stream<Transaction> history = resp.transactions;
+            if (limit != -1) {
+                List<Transaction> page;
+                try (Stream<Transaction> transactions = resp.transactions) {
+                    page = transactions.collect(Collectors.toList());
+                }
+                links = pageLinks(request, page);
+                history = page.stream();
+            }
+            Stream<Transaction> toWrite = history;
+            StreamingResponseBody body = out -> {
+                try (Stream<Transaction> transactions = toWrite) {
+                    writeTransactions(transactions, out, ndjson);
+                }
+            };
+            return ResponseEntity.ok()
+                    .headers(links)
+                    .contentType(ndjson ? MediaType.APPLICATION_NDJSON : MediaType.APPLICATION_JSON)
+                    .body(body);
+        });
+    }
+
+    private void writeTransactions(Stream<Transaction> transactions, OutputStream out, boolean ndjson) throws IOException {
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+        if (ndjson) {
+            generator.setPrettyPrinter(null);
+            for (Transaction transaction : (Iterable<Transaction>) transactions::iterator) {
+                generator.writeObject(transaction);
+                generator.writeRaw('\n');
+            }
+        } else {
+            generator.writeStartArray();
+            for (Transaction transaction : (Iterable<Transaction>) transactions::iterator) {
+                generator.writeObject(transaction);
+            }
+            generator.writeEndArray();
+        }
+        generator.flush();
     }
 
     private static class SendCoinsRequestBody {
@@ -0,0 +1,9 @@
+package rest_api.exception;
+
+import org.springframework.http.HttpStatus;
+
+public class ServiceUnavailableException extends GeneralException {
+    public ServiceUnavailableException(String reason) {
+        super(HttpStatus.SERVICE_UNAVAILABLE, reason); // 503
+    }
+}
@@ -0,0 +1,67 @@
+package transactionmanager;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Interns the addresses the ledger sees: each one is kept once and gets a dense int id, which is how stored
+ * transactions refer to it. The entry of an address also holds the ledger's state of it.
+ */
+final class AddressDictionary {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    static final class Entry {
+        final int id;
+        final String address;
+        // The address's unused UTxOs, filled only for addresses handled by this shard
+        final UTxOSet balance = new UTxOSet();
+        // The transactions in history it took part in (as the source or as a target), ordered by timestamp
+        final NavigableSet<CompactTransaction> transactions = new ConcurrentSkipListSet<>(CompactTransaction.TIMESTAMP_ORDER);
+
+        Entry(int id, String address) {
+            this.id = id;
+            this.address = address;
+        }
+    }
+
+    private final Map<String, Entry> byAddress = new ConcurrentHashMap<>();
+    // An id is only handed out after its entry is stored here
+    private volatile Entry[] byId = new Entry[INITIAL_CAPACITY];
+    private int size = 0; // Guarded by this
+
+    /** The entry of the address, added if it is new */
+    Entry intern(String address) {
+        Entry entry = byAddress.get(address);
+        return entry != null ? entry : add(address);
+    }
+
+    private synchronized Entry add(String address) {
+        Entry entry = byAddress.get(address);
+        if (entry == null) {
+            if (size == byId.length) {
+                byId = Arrays.copyOf(byId, size * 2);
+            }
+            entry = new Entry(size, address);
+            byId[size++] = entry;
+            byAddress.put(address, entry);
+        }
+        return entry;
+    }
+
+    /** @return null if the address was never seen */
+    Entry get(String address) {
+        return byAddress.get(address);
+    }
+
+    Entry get(int id) {
+        return byId[id];
+    }
+
+    Collection<Entry> entries() {
+        return byAddress.values();
+    }
+}
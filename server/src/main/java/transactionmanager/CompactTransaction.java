@@ -0,0 +1,64 @@
+package transactionmanager;
+
+import java.util.Comparator;
+
+/**
+ * A transaction as the ledger stores it, in primitive fields and arrays: its id and the ids of the transactions its
+ * inputs come from as the two longs of TransactionIds, and its addresses as their ids in the AddressDictionary.
+ * The ledger turns it back into a model.Transaction only when it hands it out.
+ * With a HistoryStore only the id, timestamp and source stay on the heap, the rest of the transaction is in the
+ * store's record and the arrays are null.
+ */
+final class CompactTransaction {
+    private static final int[] NO_ADDRESSES = new int[0];
+    private static final long[] NO_LONGS = new long[0];
+    static final long NO_RECORD = -1;
+
+    // Like TransactionLedger.TIMESTAMP_ORDER: the two longs of a digest compare unsigned like its hex digits
+    static final Comparator<CompactTransaction> TIMESTAMP_ORDER = (t1, t2) -> {
+        int cmp = Long.compare(t1.timestamp, t2.timestamp);
+        if (cmp == 0) {
+            cmp = Long.compareUnsigned(t1.idHigh, t2.idHigh);
+        }
+        return cmp != 0 ? cmp : Long.compareUnsigned(t1.idLow, t2.idLow);
+    };
+
+    final long idHigh;
+    final long idLow;
+    final long timestamp;
+    final int sourceAddress;
+    final int[] inputAddresses;
+    // The id of the transaction of input i is at [2i] and [2i + 1]
+    final long[] inputIds;
+    final int[] outputAddresses;
+    final long[] outputCoins;
+    // The address of the transaction's record in the HistoryStore, NO_RECORD when it is held in the arrays
+    final long record;
+
+    CompactTransaction(long idHigh, long idLow, long timestamp, int sourceAddress,
+                       int[] inputAddresses, long[] inputIds, int[] outputAddresses, long[] outputCoins) {
+        this(idHigh, idLow, timestamp, sourceAddress, inputAddresses, inputIds, outputAddresses, outputCoins, NO_RECORD);
+    }
+
+    CompactTransaction(long idHigh, long idLow, long timestamp, int sourceAddress, long record) {
+        this(idHigh, idLow, timestamp, sourceAddress, null, null, null, null, record);
+    }
+
+    private CompactTransaction(long idHigh, long idLow, long timestamp, int sourceAddress,
+                               int[] inputAddresses, long[] inputIds, int[] outputAddresses, long[] outputCoins, long record) {
+        this.idHigh = idHigh;
+        this.idLow = idLow;
+        this.timestamp = timestamp;
+        this.sourceAddress = sourceAddress;
+        this.inputAddresses = inputAddresses;
+        this.inputIds = inputIds;
+        this.outputAddresses = outputAddresses;
+        this.outputCoins = outputCoins;
+        this.record = record;
+    }
+
+    /** A transaction placed at the timestamp and id, to look it up in a set ordered by timestamp */
+    static CompactTransaction probe(long timestamp, long idHigh, long idLow) {
+        return new CompactTransaction(idHigh, idLow, timestamp, -1, NO_ADDRESSES, NO_LONGS, NO_ADDRESSES, NO_LONGS);
+    }
+}
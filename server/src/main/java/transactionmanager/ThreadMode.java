@@ -0,0 +1,86 @@
+package transactionmanager;
+
+import constants.Constants;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread Mode:
+ * With THREAD_MODE=virtual the REST and gRPC request handling and the AtomicBroadcast loops run on virtual threads,
+ * so requests and ZooKeeper waits that block are parked cheaply instead of holding a platform thread.
+ * Virtual threads need JDK 21, the code is built for Java 11 so they are created reflectively. On an older JDK,
+ * or with THREAD_MODE=platform (the default), platform threads are used as before.
+ */
+public final class ThreadMode {
+    private static final Logger LOGGER = Logger.getLogger(ThreadMode.class.getName());
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    // Executors.newVirtualThreadPerTaskExecutor(), Thread.ofVirtual(), Thread.Builder.name(String), Thread.Builder.unstarted(Runnable)
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+    private static final boolean VIRTUAL_THREADS;
+
+    static {
+        Method newExecutor = null, ofVirtual = null, name = null, unstarted = null;
+        boolean virtual = false;
+        String mode = System.getenv(Constants.ENV_THREAD_MODE);
+        if (VIRTUAL.equalsIgnoreCase(mode)) {
+            try {
+                newExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                name = builder.getMethod("name", String.class);
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+                virtual = true;
+            } catch (ReflectiveOperationException e) {
+                LOGGER.log(Level.WARNING, String.format("Virtual threads aren't supported by Java %s, using platform threads", System.getProperty("java.version")));
+            }
+        }
+        NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = newExecutor;
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+        VIRTUAL_THREADS = virtual;
+        LOGGER.log(Level.INFO, String.format("Thread mode: %s", virtual ? VIRTUAL : PLATFORM));
+    }
+
+    private ThreadMode() {
+        // restrict instantiation
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL_THREADS;
+    }
+
+    /** @return An executor starting a new virtual thread per task, only when running in virtual mode */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (!VIRTUAL_THREADS) {
+            throw new IllegalStateException("Not running with virtual threads");
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create a virtual thread executor", e);
+        }
+    }
+
+    /** @return A new (not started) thread - a virtual thread in virtual mode, otherwise a platform thread */
+    public static Thread newThread(Runnable runnable, String name) {
+        if (VIRTUAL_THREADS) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, runnable);
+            } catch (ReflectiveOperationException e) {
+                LOGGER.log(Level.WARNING, String.format("Failed to create virtual thread %s, using a platform thread", name), e);
+            }
+        }
+        return new Thread(runnable, name);
+    }
+}
@@ -0,0 +1,147 @@
+package transactionmanager;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transaction ids as the ledger stores them: the two longs of their 128-bit MD5 digest instead of its 32 hex digits.
+ * Ids that aren't a digest (the genesis transaction's) are kept in a separate table that gives each one a key of its
+ * own, a murmur3 hash seeded per process so the keys can't be predicted. A digest whose key an irregular id already
+ * has is added to the table too and gets another key, so a key always turns back into the id it was given for.
+ * Keys are never persisted, the ledger only hands out and stores the ids themselves.
+ */
+final class TransactionIds {
+    private static final int DIGEST_LENGTH = 32;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /** The two longs an id is stored as */
+    static final class Key {
+        final long high;
+        final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).high == high && ((Key) o).low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high ^ low);
+        }
+    }
+
+    private final HashFunction hash = Hashing.murmur3_128(new SecureRandom().nextInt());
+    // The ids in the table by their key, and their keys. Only added to, under the lock of this
+    private final Map<Key, String> tableIds = new ConcurrentHashMap<>();
+    private final Map<String, Key> tableKeys = new ConcurrentHashMap<>();
+
+    /** A digest as Transaction.computeTransactionId prints it, 32 upper case hex digits */
+    static boolean isDigest(String id) {
+        if (id.length() != DIGEST_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            char c = id.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'A' && c <= 'F')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The key the id is stored as, to look it up. An id that was never registered gets a key nothing is stored at */
+    Key key(String id) {
+        if (!tableKeys.isEmpty()) {
+            Key key = tableKeys.get(id);
+            if (key != null) {
+                return key;
+            }
+        }
+        if (isDigest(id)) {
+            Key key = parse(id);
+            if (tableIds.isEmpty() || !tableIds.containsKey(key)) {
+                return key;
+            }
+        }
+        return hashed(id, 0);
+    }
+
+    /** The key the id is stored as, adding it to the table if it needs one. Called for every id the ledger stores */
+    Key register(String id) {
+        if (!tableKeys.isEmpty()) {
+            Key key = tableKeys.get(id);
+            if (key != null) {
+                return key;
+            }
+        }
+        Key parsed = isDigest(id) ? parse(id) : null;
+        if (parsed != null && (tableIds.isEmpty() || !tableIds.containsKey(parsed))) {
+            return parsed;
+        }
+        synchronized (this) {
+            Key key = tableKeys.get(id);
+            if (key != null) {
+                return key;
+            }
+            // Seeded hashes, which don't meet the key of a digest stored outside the table
+            int attempt = 0;
+            do {
+                key = hashed(id, attempt++);
+            } while (tableIds.containsKey(key));
+            tableIds.put(key, id);
+            tableKeys.put(id, key);
+            return key;
+        }
+    }
+
+    /** The id stored as the two longs */
+    String toString(long high, long low) {
+        if (!tableIds.isEmpty()) {
+            String id = tableIds.get(new Key(high, low));
+            if (id != null) {
+                return id;
+            }
+        }
+        return toHex(high, low);
+    }
+
+    private Key hashed(String id, int attempt) {
+        HashCode code = hash.newHasher().putInt(attempt).putString(id, StandardCharsets.UTF_8).hash();
+        ByteBuffer bytes = ByteBuffer.wrap(code.asBytes());
+        return new Key(bytes.getLong(0), bytes.getLong(Long.BYTES));
+    }
+
+    private static Key parse(String digest) {
+        return new Key(parseHex(digest, 0), parseHex(digest, DIGEST_LENGTH / 2));
+    }
+
+    private static long parseHex(String id, int from) {
+        long value = 0;
+        for (int i = from; i < from + DIGEST_LENGTH / 2; i++) {
+            value = (value << 4) | Character.digit(id.charAt(i), 16);
+        }
+        return value;
+    }
+
+    private static String toHex(long high, long low) {
+        char[] hex = new char[DIGEST_LENGTH];
+        for (int i = 0; i < DIGEST_LENGTH / 2; i++) {
+            int shift = 60 - 4 * i;
+            hex[i] = HEX_DIGITS[(int) (high >>> shift) & 0xF];
+            hex[i + DIGEST_LENGTH / 2] = HEX_DIGITS[(int) (low >>> shift) & 0xF];
+        }
+        return new String(hex);
+    }
+}
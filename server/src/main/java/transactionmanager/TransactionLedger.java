@@ -1,39 +1,107 @@
 package transactionmanager;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import com.google.protobuf.InvalidProtocolBufferException;
+import cs236351.grpcservice.TransactionMsg;
+import grpcservice.RequestHandlerUtils;
 import javassist.bytecode.stackmap.TypeData;
+import model.HistoryCursor;
 import model.Response;
 import model.Transaction;
 import model.Transfer;
 import model.UTxO;
 import org.springframework.http.HttpStatus;
+import persistence.HistoryStore;
 import zookeeper.ZooKeeperClient;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static constants.Constants.COIN_SELECTION_CANDIDATES;
+import static constants.Constants.COIN_SELECTION_MAX_TRIES;
+import static constants.Constants.CONSOLIDATION_MIN_UTXOS;
 import static constants.Constants.GENESIS_ADDRESS;
 import static constants.Constants.GENESIS_TRANSACTION_ID;
+import static constants.Constants.HISTORY_CACHE_SIZE;
 
+/**
+ * The ledger is read by the REST and gRPC threads while the Executor and the gRPC threads recording
+ * transactions from other shards write to it.
+ * The history and the indexes are concurrent and lookups of an address's UTxOs are optimistic, so those reads never
+ * block. Listing or selecting an address's UTxOs holds its UTxOSet's read lock for the length of the call, which only
+ * waits for a writer of that address. Writers lock the stripes of the addresses
+ * they touch (the source and the targets of the transaction), so writers of unrelated addresses run in parallel.
+ * Writers also hold the shared side of the snapshot lock, taking a snapshot holds its exclusive side just long
+ * enough to mark where the history is, so the snapshot never sees half of a transaction.
+ */
 public class TransactionLedger {
     private static final Logger LOGGER = Logger.getLogger(TypeData.ClassName.class.getName());
+    private static final int ADDRESS_LOCK_STRIPES = 64;
     final private ZooKeeperClient zk;
 
+    // Per-address striped locks, taken by writers only
+    final private Striped<Lock> addressLocks = Striped.lock(ADDRESS_LOCK_STRIPES);
+    // Shared by writers, exclusive while taking a snapshot
+    final private ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    /////////////////////////// Compact Representation ////////////
+    // Transactions are stored as CompactTransactions: ids as two longs and addresses interned to int ids.
+    // model.Transaction and model.UTxO objects are only created for the transactions and UTxOs the ledger hands out.
+    final private TransactionIds ids = new TransactionIds();
+    final private AddressDictionary addresses = new AddressDictionary();
+
     /////////////////////////// History ///////////////////////////
-    // Maps each TransactionId to a Transaction object for it.
+    // The transactions by id.
     // It contains transactions that the sender/receiver of them is handled by this shard.
-    final private Map<String, Transaction> history = new HashMap<>();
+    final private TransactionTable history = new TransactionTable();
+    // With a store the history keeps only the ids, timestamps and sources of the transactions on the heap,
+    // the transactions themselves are serialized in the store. Null to keep them on the heap.
+    final private HistoryStore store;
+    // The transactions last read from the store, by their record
+    final private Cache<Long, Transaction> hotTransactions;
 
     /////////////////////////// Balances //////////////////////////
-    // Maps each User's Address to a list of unused UTxO's that he can use.
+    // Each address's entry in the dictionary holds the unused UTxOs that it can use, packed in a UTxOSet.
     // These are filled from either this shard when processing or from other shards that
     // processed a transaction giving the user new Transfers.
-    final private Map<String, Set<UTxO>> balances = new HashMap<>();
+    // Each one holds its value, so inputs are validated and selected without looking up their transactions.
+
+    // Addresses that had at least CONSOLIDATION_MIN_UTXOS UTxOs when they last received one
+    final private Set<AddressDictionary.Entry> fragmented = ConcurrentHashMap.newKeySet();
+
+    /////////////////////////// Shard History /////////////////////
+    // The transactions in history whose source is handled by this shard (and the genesis transaction),
+    // ordered by timestamp so that listing the history up to a limit is a prefix walk.
+    final private NavigableSet<CompactTransaction> shardHistory = new ConcurrentSkipListSet<>(CompactTransaction.TIMESTAMP_ORDER);
+
+    /////////////////////////// Address Index /////////////////////
+    // Each address's entry in the dictionary holds the transactions in history it took part in (as the source or as
+    // a target), ordered by timestamp.
+
+    // Transactions are ordered by timestamp, transactions of an atomic list share a timestamp so break ties by id
+    static final Comparator<Transaction> TIMESTAMP_ORDER =
+            Comparator.comparingLong(Transaction::getTimestamp).thenComparing(Transaction::getTransactionId);
 
     public TransactionLedger(ZooKeeperClient zk) {
+        this(zk, null);
+    }
+
+    public TransactionLedger(ZooKeeperClient zk, HistoryStore store) {
         this.zk = zk;
+        this.store = store;
+        this.hotTransactions = store != null ? CacheBuilder.newBuilder().maximumSize(HISTORY_CACHE_SIZE).build() : null;
     }
 
     public void addGenesisBlockToLedger() {
@@ -41,80 +109,217 @@ public class TransactionLedger {
         List<Transfer> outputs = new ArrayList<>();
         outputs.add(new Transfer(GENESIS_ADDRESS, 1000000)); // Maximum coins, set to a low value for understandability
         Transaction genesisTransaction = new Transaction(GENESIS_TRANSACTION_ID, 0, "", inputs, outputs);
-        history.put(genesisTransaction.getTransactionId(), genesisTransaction);
-        HashSet<UTxO> currSet = new HashSet<>();
-        currSet.add(new UTxO(GENESIS_ADDRESS, GENESIS_TRANSACTION_ID));
-        balances.put(GENESIS_ADDRESS, currSet);
+        CompactTransaction compact = compact(genesisTransaction);
+        history.add(compact);
+        shardHistory.add(compact);
+        indexTransaction(genesisTransaction, compact);
+        addUnspent(genesisTransaction, compact);
+    }
+
+    /** Stores the transaction's ids and interns its addresses, or with a store appends the transaction to it */
+    private CompactTransaction compact(Transaction transaction) {
+        TransactionIds.Key id = ids.register(transaction.getTransactionId());
+        if (store != null) {
+            long record = store.append(RequestHandlerUtils.createTransactionMsg(transaction).toByteArray());
+            return new CompactTransaction(id.high, id.low, transaction.getTimestamp(), addresses.intern(transaction.getSourceAddress()).id, record);
+        }
+        List<UTxO> inputs = transaction.getInputs();
+        int[] inputAddresses = new int[inputs.size()];
+        long[] inputIds = new long[2 * inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            TransactionIds.Key inputId = ids.register(inputs.get(i).getTransactionId());
+            inputAddresses[i] = addresses.intern(inputs.get(i).getAddress()).id;
+            inputIds[2 * i] = inputId.high;
+            inputIds[2 * i + 1] = inputId.low;
+        }
+        List<Transfer> outputs = transaction.getOutputs();
+        int[] outputAddresses = new int[outputs.size()];
+        long[] outputCoins = new long[outputs.size()];
+        for (int i = 0; i < outputs.size(); i++) {
+            outputAddresses[i] = addresses.intern(outputs.get(i).getAddress()).id;
+            outputCoins[i] = outputs.get(i).getCoins();
+        }
+        return new CompactTransaction(id.high, id.low, transaction.getTimestamp(), addresses.intern(transaction.getSourceAddress()).id,
+                inputAddresses, inputIds, outputAddresses, outputCoins);
+    }
+
+    /** The model of a stored transaction, to hand it out */
+    private Transaction toTransaction(CompactTransaction compact) {
+        if (compact.record != CompactTransaction.NO_RECORD) {
+            Transaction transaction = hotTransactions.getIfPresent(compact.record);
+            if (transaction == null) {
+                try {
+                    transaction = RequestHandlerUtils.createTransaction(TransactionMsg.parseFrom(store.read(compact.record)));
+                } catch (InvalidProtocolBufferException e) {
+                    throw new IllegalStateException(String.format("Corrupt history record %d", compact.record), e);
+                }
+                hotTransactions.put(compact.record, transaction);
+            }
+            return transaction;
+        }
+        List<UTxO> inputs = new ArrayList<>(compact.inputAddresses.length);
+        for (int i = 0; i < compact.inputAddresses.length; i++) {
+            inputs.add(new UTxO(addresses.get(compact.inputAddresses[i]).address,
+                    ids.toString(compact.inputIds[2 * i], compact.inputIds[2 * i + 1])));
+        }
+        List<Transfer> outputs = new ArrayList<>(compact.outputAddresses.length);
+        for (int i = 0; i < compact.outputAddresses.length; i++) {
+            outputs.add(new Transfer(addresses.get(compact.outputAddresses[i]).address, compact.outputCoins[i]));
+        }
+        return new Transaction(ids.toString(compact.idHigh, compact.idLow), compact.timestamp,
+                addresses.get(compact.sourceAddress).address, inputs, outputs);
+    }
+
+    private CompactTransaction findTransaction(String transactionId) {
+        TransactionIds.Key id = ids.key(transactionId);
+        return history.get(id.high, id.low);
+    }
+
+    /** Locks the stripes of all addresses the transaction touches, bulkGet returns them in a fixed order so there are no deadlocks */
+    private Iterable<Lock> lockAddresses(Transaction transaction) {
+        List<String> addresses = new ArrayList<>(transaction.getOutputs().size() + 1);
+        addresses.add(transaction.getSourceAddress());
+        for (Transfer transfer : transaction.getOutputs()) {
+            addresses.add(transfer.getAddress());
+        }
+        Iterable<Lock> locks = addressLocks.bulkGet(addresses);
+        snapshotLock.readLock().lock();
+        locks.forEach(Lock::lock);
+        return locks;
     }
 
-    synchronized public void performTransaction(Transaction transaction) {
-        if(history.containsKey(transaction.getTransactionId())){
+    private void unlockAddresses(Iterable<Lock> locks) {
+        locks.forEach(Lock::unlock);
+        snapshotLock.readLock().unlock();
+    }
+
+    public void performTransaction(Transaction transaction) {
+        Iterable<Lock> locks = lockAddresses(transaction);
+        try {
+            performTransactionLocked(transaction);
+        } finally {
+            unlockAddresses(locks);
+        }
+    }
+
+    private void performTransactionLocked(Transaction transaction) {
+        if(findTransaction(transaction.getTransactionId()) != null){
             LOGGER.log(Level.FINEST,String.format("Transaction %s is already registered.", transaction.getTransactionId()));
             return;
         }
         // Remove used UTxOs from balances
         for(UTxO inputUTxO : transaction.getInputs()){
-            Set<UTxO> balance = balances.get(inputUTxO.getAddress());
-            if(balance == null){
+            AddressDictionary.Entry entry = addresses.get(inputUTxO.getAddress());
+            if(entry == null){
                 // should never get here
                 throw new RuntimeException("Bad transaction inputs. We might have a problem.");
             }
-            balance.remove(inputUTxO);
+            TransactionIds.Key inputId = ids.key(inputUTxO.getTransactionId());
+            entry.balance.remove(inputId.high, inputId.low);
         }
-        // Add new UTxOs to users' balances
-        List<UTxO> newUTxOs = transaction.getOutputs().stream()
-                .filter(t -> zk.isResponsibleForAddress(t.getAddress()))
-                .map(transfer -> new UTxO(transfer.getAddress(), transaction.getTransactionId()))
-                .collect(Collectors.toList());
-        for (UTxO uTxO : newUTxOs) {
-            Set<UTxO> balance = balances.computeIfAbsent(uTxO.getAddress(), k -> new HashSet<>());
-            balance.add(uTxO);
+        CompactTransaction compact = compact(transaction);
+        addUnspent(transaction, compact);
+        // Add transaction to history, we performed it so its source is handled by this shard
+        history.add(compact);
+        shardHistory.add(compact);
+        indexTransaction(transaction, compact);
+    }
+
+    public void recordTransaction(Transaction transaction) {
+        Iterable<Lock> locks = lockAddresses(transaction);
+        try {
+            recordTransactionLocked(transaction);
+        } finally {
+            unlockAddresses(locks);
         }
-        // Add transaction to history
-        history.put(transaction.getTransactionId(), transaction);
     }
 
-    synchronized public void recordTransaction(Transaction transaction) {
+    private void recordTransactionLocked(Transaction transaction) {
         // Add transaction to history
-        if (history.containsKey(transaction.getTransactionId())){
+        if (findTransaction(transaction.getTransactionId()) != null){
             LOGGER.log(Level.FINEST,String.format("Transaction %s is already registered.", transaction.getTransactionId()));
             return;
-        } else {
-            history.put(transaction.getTransactionId(), transaction);
         }
-        // Add new UTxOs to users' balances
-        List<UTxO> newUTxOs = transaction.getOutputs().stream()
-                .filter(t -> zk.isResponsibleForAddress(t.getAddress()))
-                .map(transfer -> new UTxO(transfer.getAddress(), transaction.getTransactionId()))
-                .collect(Collectors.toList());
-        for (UTxO uTxO : newUTxOs) {
-            Set<UTxO> balance = balances.computeIfAbsent(uTxO.getAddress(), k -> new HashSet<>());
-            balance.add(uTxO);
+        CompactTransaction compact = compact(transaction);
+        history.add(compact);
+        indexTransaction(transaction, compact);
+        addUnspent(transaction, compact);
+    }
+
+    /** Adds the outputs of the transaction to the balances of the addresses handled by this shard */
+    private void addUnspent(Transaction transaction, CompactTransaction compact) {
+        for (Transfer transfer : transaction.getOutputs()) {
+            if (zk.isResponsibleForAddress(transfer.getAddress())) {
+                addUnspent(addresses.intern(transfer.getAddress()), compact.idHigh, compact.idLow, transfer.getCoins(), compact.timestamp);
+            }
+        }
+    }
+
+    private void addUnspent(AddressDictionary.Entry entry, long idHigh, long idLow, long coins, long timestamp) {
+        entry.balance.add(idHigh, idLow, coins, timestamp);
+        if (entry.balance.size() >= CONSOLIDATION_MIN_UTXOS) {
+            fragmented.add(entry);
         }
     }
 
-    public List<Transaction> listTransactionsForAddress(String address, int limit) {
-        List<Transaction> userTransactions = history.values().stream()
-                // get transactions whose source is *address* or any of their target transfers is *address*
-                .filter(t -> t.getSourceAddress().equals(address) || t.getOutputs().stream().anyMatch(transfer -> transfer.getAddress().equals(address)))
-                .collect(Collectors.toList());
-        userTransactions.sort((t1, t2) -> (int) (t1.getTimestamp() - t2.getTimestamp()));
-        if ((limit != -1) && (limit < userTransactions.size())) {
-            userTransactions = userTransactions.subList(0, limit);
+    /** Adds the transaction to the index of its source and of each of its targets */
+    private void indexTransaction(Transaction transaction, CompactTransaction compact) {
+        addresses.get(compact.sourceAddress).transactions.add(compact);
+        for (Transfer transfer : transaction.getOutputs()) {
+            addresses.intern(transfer.getAddress()).transactions.add(compact);
+        }
+    }
+
+    /**
+     * Lists the first `limit` transactions of the address from the cursor (from the start if it is null), sorted by
+     * timestamp. A backward cursor lists the last `limit` transactions before it.
+     */
+    public List<Transaction> listTransactionsForAddress(String address, int limit, HistoryCursor cursor) {
+        // transactions whose source is *address* or any of their target transfers is *address*, already sorted
+        AddressDictionary.Entry entry = addresses.get(address);
+        if (entry == null) {
+            return new ArrayList<>();
+        }
+        // The skip list is weakly consistent, so this never blocks behind a writer (and size() isn't O(1) so we don't use it)
+        List<Transaction> userTransactions = new ArrayList<>();
+        for (CompactTransaction transaction : page(entry.transactions, cursor)) {
+            if (limit != -1 && userTransactions.size() >= limit) {
+                break;
+            }
+            userTransactions.add(toTransaction(transaction));
+        }
+        if (cursor != null && cursor.backward) {
+            Collections.reverse(userTransactions);
         }
         return userTransactions;
     }
 
-    public Set<UTxO> listUTxOsForAddress(String address) {
-        Set<UTxO> ret = balances.get(address);
-        if (ret == null) {
-            return Set.of();
+    /** The transactions from the cursor in the direction of paging, a view of the set so it is walked in O(page) */
+    private NavigableSet<CompactTransaction> page(NavigableSet<CompactTransaction> transactions, HistoryCursor cursor) {
+        if (cursor == null) {
+            return transactions;
         }
+        TransactionIds.Key cursorId = ids.key(cursor.transactionId);
+        CompactTransaction probe = CompactTransaction.probe(cursor.timestamp, cursorId.high, cursorId.low);
+        return cursor.backward
+                ? transactions.headSet(probe, false).descendingSet()
+                : transactions.tailSet(probe, false);
+    }
+
+    /** The unused UTxOs of the address, with their values */
+    public List<UTxO> listUTxOsForAddress(String address) {
+        AddressDictionary.Entry entry = addresses.get(address);
+        if (entry == null) {
+            return List.of();
+        }
+        List<UTxO> ret = new ArrayList<>();
+        entry.balance.forEach((idHigh, idLow, coins, timestamp) ->
+                ret.add(new UTxO(address, ids.toString(idHigh, idLow), coins, timestamp)));
         return ret;
     }
 
     public Response canProcessTransaction(Transaction transaction, boolean checkTimestamps) {
-        if (history.containsKey(transaction.getSourceAddress())) {
+        if (hasTransaction(transaction.getSourceAddress())) {
             return new Response(HttpStatus.CONFLICT, String.format("Transaction already exists."));
         }
         if (transaction.getSourceAddress() == null) {
@@ -126,34 +331,29 @@ public class TransactionLedger {
         if (transaction.getOutputs().size() != new HashSet<>(transaction.getOutputs()).size()) {
             return new Response(HttpStatus.BAD_REQUEST, String.format("Output transfers aren't unique."));
         }
-        if (balances.get(transaction.getSourceAddress()) == null) {
+        AddressDictionary.Entry source = addresses.get(transaction.getSourceAddress());
+        if (source == null || source.balance.size() == 0) {
             return new Response(HttpStatus.BAD_REQUEST, String.format("Don't have any UTxOs for address %s", transaction.getSourceAddress()));
         }
-        if (!balances.get(transaction.getSourceAddress()).containsAll(transaction.getInputs())){
-            return new Response(HttpStatus.BAD_REQUEST, String.format("Don't have all UTxOs used in inputs."));
-        }
         if (transaction.getOutputs().stream().map(t -> t.getAddress()).collect(Collectors.toSet()).size() != transaction.getOutputs().size()) {
             return new Response(HttpStatus.BAD_REQUEST, String.format("Transfers are not to unique destinations."));
         }
         BigInteger inputCoins = BigInteger.valueOf(0);
+        long[] unspent = new long[2]; // coins and timestamp
         for (UTxO utxo : transaction.getInputs()){
-            Transaction transactionForUTxO = history.get(utxo.getTransactionId());
-            if (transactionForUTxO == null) {
-                return new Response(HttpStatus.BAD_REQUEST, String.format("Invalid UTxO in inputs: UTxO belongs to a transaction that wasn't processed."));
+            String transactionId = utxo.getTransactionId();
+            TransactionIds.Key id = transactionId != null ? ids.key(transactionId) : null;
+            boolean found = Objects.equals(utxo.getAddress(), transaction.getSourceAddress()) && id != null
+                    && source.balance.get(id.high, id.low, unspent);
+            if (!found) {
+                return new Response(HttpStatus.BAD_REQUEST, String.format("Don't have all UTxOs used in inputs."));
             }
             if (checkTimestamps) { // Can't always check - in AtomicList for example we don't have timestamps when checking the first time yet.
-                if (transactionForUTxO.getTimestamp() >= transaction.getTimestamp()){
+                if (unspent[1] >= transaction.getTimestamp()){
                     return new Response(HttpStatus.BAD_REQUEST, String.format("Invalid UTxO in inputs: UTxO belongs to a transaction with a later timestamp."));
                 }
             }
-            Optional<Transfer> transfer = transactionForUTxO.
-                    getOutputs().
-                    stream().
-                    filter(t -> Objects.equals(t.getAddress(), utxo.getAddress())).findFirst();
-            if (transfer.isEmpty()){
-                return new Response(HttpStatus.BAD_REQUEST, String.format("Invalid UTxO in inputs. Isn't an output of the given transaction."));
-            }
-            inputCoins = inputCoins.add(BigInteger.valueOf(transfer.get().getCoins()));
+            inputCoins = inputCoins.add(BigInteger.valueOf(unspent[0]));
         }
         BigInteger outputCoins = transaction.getOutputs().stream().map(t -> BigInteger.valueOf(t.getCoins())).reduce(BigInteger.ZERO, BigInteger::add);
         if (!outputCoins.equals(inputCoins)) {
@@ -166,19 +366,21 @@ public class TransactionLedger {
         if (coins < 0) {
             return new Response.TransactionResp(HttpStatus.BAD_REQUEST, String.format("Illegal coins value %d", coins), null);
         }
-        Set<UTxO> unusedUTxO = this.listUTxOsForAddress(sourceAddress);
-        if (unusedUTxO.size() == 0) {
+        AddressDictionary.Entry source = addresses.get(sourceAddress);
+        if (source == null || source.balance.size() == 0) {
             return new Response.TransactionResp(HttpStatus.BAD_REQUEST, String.format("Source %s has no UTxOs", sourceAddress), null);
         }
+        long total = source.balance.total();
+        if (total < coins) {
+            return new Response.TransactionResp(HttpStatus.BAD_REQUEST, String.format("Source %s has only %d coins out of needed %d",
+                    sourceAddress, total, coins), null);
+        }
+        long[] selected = selectCoins(source.balance, coins);
         long currSum = 0;
-        List<UTxO> inputs = new ArrayList<>();
-        for (UTxO currUTxO : unusedUTxO) {
-            if (currSum >= coins) {
-                break;
-            }
-            inputs.add(currUTxO);
-            currSum += history.get(currUTxO.getTransactionId()).getOutputs().stream().
-                    filter(t -> Objects.equals(t.getAddress(), currUTxO.getAddress())).findFirst().get().getCoins();
+        List<UTxO> inputs = new ArrayList<>(selected.length / 3);
+        for (int i = 0; i < selected.length; i += 3) {
+            inputs.add(new UTxO(sourceAddress, ids.toString(selected[i], selected[i + 1])));
+            currSum += selected[i + 2];
         }
         if (currSum >= coins) {
             List<Transfer> outputs = new ArrayList<>();
@@ -194,11 +396,240 @@ public class TransactionLedger {
         }
     }
 
-    public List<Transaction> getEntireHistory(int limit) {
-        return history.values().stream()
-                .filter(t -> zk.isResponsibleForAddress(t.getSourceAddress()) || t.getTimestamp() == 0)
-                .sorted((t1,t2) -> (int) (t1.getTimestamp() - t2.getTimestamp()))
-                .limit(limit != -1 ? limit : history.size())
-                .collect(Collectors.toList());
+    /**
+     * Coin Selection:
+     * Picks the inputs for a transfer of `coins`, preferring a set that sums exactly to it so there is no change.
+     * The exact match is searched with branch and bound over the COIN_SELECTION_CANDIDATES largest UTxOs that
+     * aren't larger than `coins`, for up to COIN_SELECTION_MAX_TRIES steps. Otherwise the largest UTxOs are
+     * taken until they cover `coins`, which gives the fewest inputs.
+     * @return The idHigh, idLow and coins of each selected UTxO, they may not cover `coins` if the balance changed meanwhile
+     */
+    private static long[] selectCoins(UTxOSet balance, long coins) {
+        long[] candidates = balance.select(true, coins, COIN_SELECTION_CANDIDATES, Long.MAX_VALUE);
+        int count = candidates.length / 3;
+        // remaining[i] is the sum of candidates i and on, the most the rest of the search can add
+        long[] remaining = new long[count + 1];
+        for (int i = count - 1; i >= 0; i--) {
+            remaining[i] = remaining[i + 1] + candidates[3 * i + 2];
+        }
+        boolean[] selected = new boolean[count];
+        if (selectExact(candidates, remaining, 0, coins, selected, new int[]{0})) {
+            long[] exact = new long[candidates.length];
+            int length = 0;
+            for (int i = 0; i < count; i++) {
+                if (selected[i]) {
+                    System.arraycopy(candidates, 3 * i, exact, length, 3);
+                    length += 3;
+                }
+            }
+            return Arrays.copyOf(exact, length);
+        }
+        return balance.select(true, Long.MAX_VALUE, Integer.MAX_VALUE, coins);
+    }
+
+    /** Depth first search including or excluding each candidate (largest first), pruned once the rest can't reach the target */
+    private static boolean selectExact(long[] candidates, long[] remaining, int i, long target, boolean[] selected, int[] tries) {
+        if (target == 0) {
+            return true;
+        }
+        if (remaining[i] < target || ++tries[0] > COIN_SELECTION_MAX_TRIES) {
+            return false;
+        }
+        long coins = candidates[3 * i + 2];
+        if (coins <= target) {
+            selected[i] = true;
+            if (selectExact(candidates, remaining, i + 1, target - coins, selected, tries)) {
+                return true;
+            }
+            selected[i] = false;
+        }
+        return selectExact(candidates, remaining, i + 1, target, selected, tries);
+    }
+
+    /**
+     * Creates a transaction merging the `maxInputs` smallest UTxOs of a fragmented address into one UTxO of the same
+     * address, for the UTxOConsolidator.
+     * @return null if no address has at least `minUTxOs` UTxOs
+     */
+    public Transaction createConsolidationTransaction(int minUTxOs, int maxInputs) {
+        Iterator<AddressDictionary.Entry> entries = fragmented.iterator();
+        while (entries.hasNext()) {
+            AddressDictionary.Entry entry = entries.next();
+            entries.remove(); // Added back if it still has many UTxOs once it gets the merged one
+            if (entry.balance.size() < minUTxOs) {
+                continue;
+            }
+            long[] smallest = entry.balance.select(false, Long.MAX_VALUE, maxInputs, Long.MAX_VALUE);
+            long sum = 0;
+            List<UTxO> inputs = new ArrayList<>(smallest.length / 3);
+            for (int i = 0; i < smallest.length; i += 3) {
+                inputs.add(new UTxO(entry.address, ids.toString(smallest[i], smallest[i + 1])));
+                sum += smallest[i + 2];
+            }
+            return new Transaction(inputs, List.of(new Transfer(entry.address, sum)));
+        }
+        return null;
+    }
+
+    public boolean hasTransaction(String transactionId) {
+        return transactionId != null && findTransaction(transactionId) != null;
+    }
+
+    /////////////////////////// Snapshots /////////////////////////
+    /**
+     * A consistent view of the ledger, along with the position of the ledger log it covers.
+     * It is only the number of transactions in history at the time it was taken, the transactions are copied from
+     * the history when it is read - on the caller's thread, while the writers go on.
+     */
+    public static class Snapshot {
+        final public long logPosition;
+        final private TransactionLedger ledger;
+        final private int count;
+        private List<Transaction> history = null;
+
+        Snapshot(TransactionLedger ledger, int count, long logPosition) {
+            this.ledger = ledger;
+            this.count = count;
+            this.logPosition = logPosition;
+        }
+
+        /** The transactions in history at the snapshot */
+        synchronized public List<Transaction> history() {
+            if (history == null) {
+                List<Transaction> transactions = new ArrayList<>(count);
+                ledger.history.forEachUntil(count, transaction -> transactions.add(ledger.toTransaction(transaction)));
+                history = transactions;
+            }
+            return history;
+        }
+
+        /**
+         * The unused UTxOs of the addresses handled by this shard at the snapshot. The balances change after it, so they
+         * are derived from the history: the outputs to these addresses that no transaction performed here used as an input.
+         */
+        public List<UTxO> unspent() {
+            List<Transaction> transactions = history();
+            Set<List<String>> spent = new HashSet<>();
+            for (Transaction transaction : transactions) {
+                if (!Objects.equals(transaction.getTransactionId(), GENESIS_TRANSACTION_ID)
+                        && ledger.zk.isResponsibleForAddress(transaction.getSourceAddress())) {
+                    transaction.getInputs().forEach(input -> spent.add(List.of(input.getAddress(), input.getTransactionId())));
+                }
+            }
+            // Like the balances, an address that gets two outputs of a transaction keeps the last one
+            Map<List<String>, UTxO> unspent = new LinkedHashMap<>();
+            for (Transaction transaction : transactions) {
+                for (Transfer transfer : transaction.getOutputs()) {
+                    List<String> key = List.of(transfer.getAddress(), transaction.getTransactionId());
+                    if (ledger.zk.isResponsibleForAddress(transfer.getAddress()) && !spent.contains(key)) {
+                        unspent.put(key, new UTxO(transfer.getAddress(), transaction.getTransactionId(), transfer.getCoins(), transaction.getTimestamp()));
+                    }
+                }
+            }
+            return new ArrayList<>(unspent.values());
+        }
+    }
+
+    /**
+     * Marks the point of the ledger a snapshot is taken at while no writer is in the middle of a transaction, which
+     * takes constant time. The snapshot is copied when it is read.
+     * @param logPosition Supplies the log position while the ledger is locked, every record logged before it is in the snapshot
+     */
+    public Snapshot takeSnapshot(LongSupplier logPosition) {
+        snapshotLock.writeLock().lock();
+        try {
+            return new Snapshot(this, history.count(), logPosition.getAsLong());
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /** Loads a snapshot into the (empty) ledger, called during recovery before any request is served */
+    public void restore(List<Transaction> transactions, List<UTxO> unspent) {
+        for (Transaction transaction : transactions) {
+            CompactTransaction compact = compact(transaction);
+            history.add(compact);
+            indexTransaction(transaction, compact);
+            if (Objects.equals(transaction.getTransactionId(), GENESIS_TRANSACTION_ID) || zk.isResponsibleForAddress(transaction.getSourceAddress())) {
+                shardHistory.add(compact);
+            }
+        }
+        for (UTxO uTxO : unspent) {
+            AddressDictionary.Entry entry = addresses.intern(uTxO.getAddress());
+            TransactionIds.Key id = ids.register(uTxO.getTransactionId());
+            long idHigh = id.high;
+            long idLow = id.low;
+            if (uTxO.getCoins() != null) {
+                addUnspent(entry, idHigh, idLow, uTxO.getCoins(), uTxO.getTimestamp());
+            } else {
+                // Snapshots taken before UTxOs carried their values, look it up once in the transaction
+                Transaction transaction = toTransaction(history.get(idHigh, idLow));
+                long coins = transaction.getOutputs().stream()
+                        .filter(t -> Objects.equals(t.getAddress(), uTxO.getAddress())).findFirst().get().getCoins();
+                addUnspent(entry, idHigh, idLow, coins, transaction.getTimestamp());
+            }
+        }
+    }
+
+    /**
+     * Iterates over the first `limit` transactions this shard is responsible for with a timestamp up to the snapshot,
+     * from the cursor (from the start if it is null). Sorted by timestamp, descending for a backward cursor.
+     * The history is walked lazily so it isn't copied, the caller makes sure no transaction at or below the snapshot
+     * is added anymore.
+     */
+    public Iterator<Transaction> iterateHistory(int limit, long snapshotTimestamp, HistoryCursor cursor) {
+        Stream<CompactTransaction> transactions = page(shardHistory, cursor).stream();
+        transactions = (cursor != null && cursor.backward)
+                ? transactions.dropWhile(transaction -> transaction.timestamp > snapshotTimestamp)
+                : transactions.takeWhile(transaction -> transaction.timestamp <= snapshotTimestamp);
+        return transactions
+                .limit(limit != -1 ? limit : Long.MAX_VALUE)
+                .map(this::toTransaction)
+                .iterator();
+    }
+
+    /**
+     * Lazy K-way merge of iterators that are each sorted by the order (the histories of the shards).
+     * A transaction is only pulled from an iterator once the previous one from it was returned.
+     * @return The first `limit` transactions of all iterators, sorted by the order
+     */
+    public static Iterator<Transaction> mergeHistories(List<? extends Iterator<Transaction>> histories, int limit, Comparator<Transaction> order) {
+        class Head {
+            final Iterator<Transaction> iterator;
+            Transaction transaction;
+            Head(Iterator<Transaction> iterator) {
+                this.iterator = iterator;
+                this.transaction = iterator.next();
+            }
+        }
+        PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, histories.size()), (h1, h2) -> order.compare(h1.transaction, h2.transaction));
+        for (Iterator<Transaction> history : histories) {
+            if (history.hasNext()) {
+                heads.add(new Head(history));
+            }
+        }
+        return new Iterator<Transaction>() {
+            int returned = 0;
+
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty() && (limit == -1 || returned < limit);
+            }
+
+            @Override
+            public Transaction next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Head head = heads.poll();
+                Transaction next = head.transaction;
+                returned++;
+                if (head.iterator.hasNext()) {
+                    head.transaction = head.iterator.next();
+                    heads.add(head);
+                }
+                return next;
+            }
+        };
     }
 }
@@ -1,35 +1,63 @@
 package transactionmanager;
 
 import atomicbroadcast.AtomicBroadcast;
+import atomiccommit.AtomicCommit;
+import cs236351.grpcservice.BroadcastMsg;
+import cs236351.grpcservice.LedgerLogRecord;
+import cs236351.grpcservice.LedgerSnapshotMsg;
 import grpcservice.RPCService;
+import grpcservice.RPCServiceClient;
 import grpcservice.RequestHandler;
+import grpcservice.RequestHandlerUtils;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import javassist.bytecode.stackmap.TypeData;
 import model.Request;
+import model.HistoryCursor;
 import model.Response;
 import model.Transaction;
 import model.Transfer;
 import org.apache.zookeeper.KeeperException;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import persistence.HistoryStore;
+import persistence.IdempotencyStore;
+import persistence.LedgerLog;
+import persistence.SnapshotStore;
 import zookeeper.Decision;
 import zookeeper.ZooKeeperClient;
 import zookeeper.ZooKeeperClientImpl;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import static constants.Constants.ENV_GRPC_PORT;
-import static constants.Constants.GENESIS_ADDRESS;
+import static constants.Constants.*;
 
 @Service
 public class TransactionManager {
@@ -41,6 +69,8 @@ public class TransactionManager {
     // My server and shard ID - so we don't have to ask for it every time
     private String myServerId;
     private String myShardId;
+    // The leader of every shard, kept up to date by a leader watch
+    final private Map<String, String> sequencers = new ConcurrentHashMap<>();
 
     // Request Handler Delegate - Used to forward requests to other servers
     final private RequestHandler delegate;
@@ -48,16 +78,55 @@ public class TransactionManager {
     final private RPCService rpcService;
     // Atomic Broadcast Service
     final private AtomicBroadcast atomicBroadcast;
+    // Atomic Commit Service - Used for atomic lists spanning multiple shards
+    final private AtomicCommit atomicCommit;
 
     // The Transaction Ledger (db)
     final private TransactionLedger ledger;
 
+    // Ledger persistence - only when ENV_LEDGER_LOG_DIR is set, otherwise the ledger lives in memory only
+    private LedgerLog ledgerLog = null;
+    private SnapshotStore snapshotStore = null;
+    final private AtomicLong recordsSinceSnapshot = new AtomicLong();
+    final private ExecutorService snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "LedgerSnapshotWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Open the history streams of the shards, which wait for the shards to reach the snapshot
+    final private ExecutorService historyReaders = ThreadMode.isVirtual() ? ThreadMode.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "HistoryReader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public TransactionManager() {
         this.zk = new ZooKeeperClientImpl();
-        this.ledger = new TransactionLedger(zk);
+        this.ledger = new TransactionLedger(zk, openHistoryStore());
         this.delegate = new RequestHandler(this);
         this.rpcService = new RPCService(this);
         this.atomicBroadcast = new AtomicBroadcast(this);
+        this.atomicCommit = new AtomicCommit(zk);
+    }
+
+    /**
+     * The store for the ledger's history set by ENV_HISTORY_STORE: direct buffers, memory-mapped files in the temp
+     * directory, or null to keep the history on the heap (the default)
+     */
+    private static HistoryStore openHistoryStore() {
+        String mode = System.getenv(ENV_HISTORY_STORE);
+        if (HISTORY_STORE_DIRECT.equalsIgnoreCase(mode)) {
+            return HistoryStore.direct(HISTORY_ARENA_SIZE);
+        }
+        if (HISTORY_STORE_MAPPED.equalsIgnoreCase(mode)) {
+            Path dir = Paths.get(System.getProperty("java.io.tmpdir"), String.format("history-%s", System.getenv(ENV_HOST_NAME)));
+            try {
+                return HistoryStore.mapped(dir, HISTORY_ARENA_SIZE);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, String.format("openHistoryStore: Failed to open %s, keeping the history on the heap", dir), e);
+            }
+        }
+        return null;
     }
 
     /**
@@ -73,7 +142,6 @@ public class TransactionManager {
         this.myShardId = zk.getShardId();
         Map<String, String> serversAddresses = new HashMap<>();
         Map<String, List<String>> shards = new HashMap<>();
-        Map<String, String> sequencers = new ConcurrentHashMap<>();
         try {
             List<String> servers = zk.getServers();
             for (String server : servers) {
@@ -96,13 +164,21 @@ public class TransactionManager {
         LOGGER.log(Level.INFO, String.format("- serversAddresses=[%s]", serversAddresses));
         LOGGER.log(Level.INFO, String.format("- sequencers=[%s]", sequencers));
 
+        // Rebuild the ledger from the snapshot and the log before serving anything
+        this.recoverLedger();
+
         // Same serverBuilder will be used by all services
         ServerBuilder<?> serverBuilder = ServerBuilder.forPort(Integer.parseInt(System.getenv(ENV_GRPC_PORT)));
+        if (ThreadMode.isVirtual()) {
+            // gRPC calls are handled on a new virtual thread each, instead of the default cached thread pool
+            serverBuilder.executor(ThreadMode.newVirtualThreadPerTaskExecutor());
+        }
 
         // Add services to the serverBuilder before continuing
         this.delegate.addServices(serverBuilder);
         this.rpcService.addServices(serverBuilder);
         this.atomicBroadcast.addServices(serverBuilder);
+        this.atomicCommit.addServices(serverBuilder);
 
         // Run the gRPC server in the background
         Server grpcServer = serverBuilder.build();
@@ -116,6 +192,7 @@ public class TransactionManager {
         this.delegate.setup(serversAddresses);
         this.rpcService.setup(serversAddresses);
         this.atomicBroadcast.setup(myServerId, myShardId, serversAddresses, shards, sequencers);
+        this.atomicCommit.setup(myServerId, myShardId, serversAddresses);
 
         // Wait for all servers to finish setup using the "initial barrier".
         final String initialBarrierId = "intial-setup";
@@ -135,7 +212,9 @@ public class TransactionManager {
         // Add Genesis Block to the server's storage (in case this server in the responsible shard)
         try {
             String genesisShardId = zk.getResponsibleShard(GENESIS_ADDRESS);
-            if (genesisShardId.equals(myShardId)) {
+            if (ledger.hasTransaction(GENESIS_TRANSACTION_ID)) {
+                LOGGER.log(Level.INFO, String.format("Genesis Transaction was recovered from disk."));
+            } else if (genesisShardId.equals(myShardId)) {
                 LOGGER.log(Level.INFO, String.format("My shard is responsible for Genesis Transaction. Adding it to the ledger."));
                 ledger.addGenesisBlockToLedger();
             } else {
@@ -150,58 +229,110 @@ public class TransactionManager {
             LOGGER.log(Level.SEVERE, String.format("Server %s failed to leave initial-setup barrier", myServerId), e);
         }
         LOGGER.log(Level.INFO, String.format("Server %s has left the initial barrier", myServerId));
+
+        if (UTXO_CONSOLIDATION_ON.equalsIgnoreCase(System.getenv(ENV_UTXO_CONSOLIDATION))) {
+            new UTxOConsolidator(ledger, this::isIdleLeader, this::submitConsolidation).start();
+        }
+    }
+
+    ////////////////////// UTxO Consolidation ///////////////////
+    // When a client request was last handled, consolidation only runs once the server is idle
+    volatile private long lastClientRequestMillis = 0;
+
+    private void onClientRequest() {
+        lastClientRequestMillis = System.currentTimeMillis();
+    }
+
+    private boolean isIdleLeader() {
+        if (!pendingRequests.isEmpty() || System.currentTimeMillis() - lastClientRequestMillis < CONSOLIDATION_IDLE_MS) {
+            return false;
+        }
+        return myServerId.equals(sequencers.get(myShardId));
+    }
+
+    /** Broadcasts a consolidation transaction to my shard, like a transaction sent by a client */
+    private CompletableFuture<Response.TransactionResp> submitConsolidation(Transaction transaction) {
+        String idempotencyKey = String.format("Consolidation-%s", transaction.getTransactionId());
+        Integer pendingReqId = currPendingReqId.incrementAndGet();
+        CompletableFuture<Response.TransactionResp> pendingRequest = newPendingRequest(pendingReqId,
+                reason -> new Response.TransactionResp(HttpStatus.SERVICE_UNAVAILABLE, reason, null));
+        failPendingRequestOnError(pendingReqId, atomicBroadcast.broadcastTransaction(myShardId, transaction, idempotencyKey, myServerId, pendingReqId));
+        return pendingRequest;
     }
 
     ////////////////////// Pending Requests ///////////////////////
-    volatile private Map<Integer, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    // Completed by the Executor once the request was executed
+    volatile private Map<Integer, CompletableFuture<Response>> pendingRequests = new ConcurrentHashMap<>();
     volatile private AtomicInteger currPendingReqId = new AtomicInteger();
 
-    private class PendingRequest {
-        private volatile Response resp = null;
-
-        private void finish(Response resp) {
-            synchronized (this) {
-                this.resp = resp;
-                this.notify();
+    /**
+     * A request that was broadcast but wasn't executed in time is answered with 503 and forgotten,
+     * the client may retry it under the same idempotency key.
+     * @param unavailable builds the response of the request's type from the reason it is unavailable
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends Response> CompletableFuture<T> newPendingRequest(int pendingReqId, Function<String, T> unavailable) {
+        CompletableFuture<Response> pendingRequest = new CompletableFuture<>();
+        pendingRequests.put(pendingReqId, pendingRequest);
+        return pendingRequest.orTimeout(PENDING_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS).handle((resp, e) -> {
+            if (e instanceof TimeoutException) {
+                pendingRequests.remove(pendingReqId);
+                LOGGER.log(Level.WARNING, String.format("Pending request %d wasn't executed within %d ms", pendingReqId, PENDING_REQUEST_TIMEOUT_MS));
+                return unavailable.apply(String.format("The request wasn't executed within %d ms, retry it", PENDING_REQUEST_TIMEOUT_MS));
+            }
+            if (e != null) {
+                throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
             }
+            return (T) resp;
+        });
+    }
+
+    private void finishPendingRequest(int pendingReqId, Response resp) {
+        CompletableFuture<Response> pendingRequest = pendingRequests.remove(pendingReqId);
+        if (pendingRequest != null) {
+            pendingRequest.complete(resp);
         }
+    }
 
-        private <T> T waitDone() {
-            synchronized (this) {
-                while (resp == null) {
-                    try {
-                        this.wait();
-                    } catch (InterruptedException e) {
-                        /* Nothing */
-                    }
-                }
+    /** Finishes the pending request once what it acknowledges is durable in the ledger log, fails it if logging failed */
+    private void finishPendingRequestWhenDurable(int pendingReqId, Response resp, CompletableFuture<Void> durable) {
+        this.failPendingRequestOnError(pendingReqId, durable);
+        durable.thenRun(() -> this.finishPendingRequest(pendingReqId, resp));
+    }
+
+    /** Fails the pending request if the broadcast failed, it won't be executed */
+    private void failPendingRequestOnError(int pendingReqId, CompletableFuture<Void> broadcast) {
+        broadcast.exceptionally(e -> {
+            CompletableFuture<Response> pendingRequest = pendingRequests.remove(pendingReqId);
+            if (pendingRequest != null) {
+                pendingRequest.completeExceptionally(e);
             }
-            return (T) this.resp;
-        }
+            return null;
+        });
     }
 
     /**
      * Request Handling:
      * Functions are called from either the REST server or from another Server using the RequestHandler service.
-     * They either perform locally or post a request to the atomic broadcast and wait until the request is completed.
+     * They either perform locally or post a request to the atomic broadcast, and return a future that is completed
+     * once the request is completed - no thread waits for it meanwhile.
      * Functions should return the response - not exception so calling server using gRPC can handle them correctly.
      */
-    public Response.TransactionResp handleTransaction(Request.TransactionRequest req) {
+    public CompletableFuture<Response.TransactionResp> handleTransaction(Request.TransactionRequest req) {
         LOGGER.log(Level.INFO, String.format("handleTransaction: Received request %s", req.toString()));
+        this.onClientRequest();
         if (zk.isResponsibleForAddress(req.inputs.get(0).getAddress())) {
             LOGGER.log(Level.INFO, String.format("handleTransaction: Will handle request"));
             Transaction transaction = new Transaction(req.inputs, req.outputs);
             String idempotencyKey = String.format("Transaction-%s", transaction.getTransactionId());
             Integer pendingReqId = currPendingReqId.incrementAndGet();
-            PendingRequest pendingRequest = new PendingRequest();
-            pendingRequests.put(pendingReqId, pendingRequest);
+            CompletableFuture<Response.TransactionResp> pendingRequest = newPendingRequest(pendingReqId,
+                reason -> new Response.TransactionResp(HttpStatus.SERVICE_UNAVAILABLE, reason, null));
             LOGGER.log(Level.INFO, String.format("handleTransaction: Broadcasting transaction [%s] to shard [%s] with key [%s]",
                     transaction.toString(), myShardId, idempotencyKey));
-            atomicBroadcast.broadcastTransaction(myShardId, transaction, idempotencyKey, myServerId, pendingReqId);
-            Response.TransactionResp resp = pendingRequest.waitDone();
-            pendingRequests.remove(pendingReqId);
-            LOGGER.log(Level.INFO, String.format("handleTransaction: Got response %s", resp.toString()));
-            return resp;
+            failPendingRequestOnError(pendingReqId, atomicBroadcast.broadcastTransaction(myShardId, transaction, idempotencyKey, myServerId, pendingReqId));
+            return pendingRequest.whenComplete((resp, e) ->
+                    LOGGER.log(Level.INFO, String.format("handleTransaction: Got response %s", resp)));
         } else {
             String responsibleShard = getResponsibleShard(req.inputs.get(0).getAddress());
             List<String> responsibleServers = getServersInShard(responsibleShard);
@@ -211,32 +342,32 @@ public class TransactionManager {
         }
     }
 
-    public Response.TransactionResp handleCoinTransfer(String sourceAddress, String targetAddress, long coins, String reqId) {
+    public CompletableFuture<Response.TransactionResp> handleCoinTransfer(String sourceAddress, String targetAddress, long coins, String reqId) {
         LOGGER.log(Level.INFO, String.format("handleCoinTransfer: Received request from %s to %s with %d coins and id %s",
                 sourceAddress, targetAddress, coins, reqId));
+        this.onClientRequest();
         if (zk.isResponsibleForAddress(sourceAddress)) {
             LOGGER.log(Level.INFO, String.format("handleCoinTransfer: Will handle request"));
             if (sourceAddress.equals(targetAddress)) {
                 LOGGER.log(Level.INFO, String.format("handleCoinTransfer: Source is the same as the Target %s", sourceAddress));
-                return new Response.TransactionResp(HttpStatus.BAD_REQUEST, String.format("Source is the same as the Target %s", sourceAddress), null);
+                return CompletableFuture.completedFuture(
+                        new Response.TransactionResp(HttpStatus.BAD_REQUEST, String.format("Source is the same as the Target %s", sourceAddress), null));
             }
             Response.TransactionResp transaction = ledger.createTransactionForCoinTransfer(sourceAddress, targetAddress, coins);
             if (transaction.statusCode.is2xxSuccessful()) {
                 LOGGER.log(Level.INFO, String.format("handleCoinTransfer: Managed to create a transaction"));
                 String idempotencyKey = String.format("CoinTransfer-%s-%s-%s-%d", reqId, sourceAddress, targetAddress, coins);
                 Integer pendingReqId = currPendingReqId.incrementAndGet();
-                PendingRequest pendingRequest = new PendingRequest();
-                pendingRequests.put(pendingReqId, pendingRequest);
+                CompletableFuture<Response.TransactionResp> pendingRequest = newPendingRequest(pendingReqId,
+                reason -> new Response.TransactionResp(HttpStatus.SERVICE_UNAVAILABLE, reason, null));
                 LOGGER.log(Level.INFO, String.format("handleCoinTransfer: Broadcasting transaction [%s] to shard [%s] with key [%s]",
                         transaction.transaction.toString(), myShardId, idempotencyKey));
-                atomicBroadcast.broadcastTransaction(myShardId, transaction.transaction, idempotencyKey, myServerId, pendingReqId);
-                Response.TransactionResp resp = pendingRequest.waitDone();
-                pendingRequests.remove(pendingReqId);
-                LOGGER.log(Level.INFO, String.format("handleCoinTransfer: Got response %s", resp.toString()));
-                return resp;
+                failPendingRequestOnError(pendingReqId, atomicBroadcast.broadcastTransaction(myShardId, transaction.transaction, idempotencyKey, myServerId, pendingReqId));
+                return pendingRequest.whenComplete((resp, e) ->
+                        LOGGER.log(Level.INFO, String.format("handleCoinTransfer: Got response %s", resp)));
             } else {
                 LOGGER.log(Level.INFO, String.format("handleCoinTransfer: Couldn't satisfy the Coin Transfer"));
-                return transaction;
+                return CompletableFuture.completedFuture(transaction);
             }
         } else {
             String responsibleShard = getResponsibleShard(sourceAddress);
@@ -247,31 +378,74 @@ public class TransactionManager {
         }
     }
 
-    public Response.TransactionListResp handleListEntireHistory(int limit) {
-        LOGGER.log(Level.INFO, String.format("handleListEntireHistory: Received request with limit %d", limit));
-        Integer pendingReqId = currPendingReqId.incrementAndGet();
-        PendingRequest pendingRequest = new PendingRequest();
-        pendingRequests.put(pendingReqId, pendingRequest);
+    /**
+     * The history is read at a snapshot timestamp, a global timestamp larger than every timestamp handed out so far.
+     * A marker with the snapshot is broadcast to all shards, and each shard streams its transactions up to the snapshot
+     * once it applied the marker - everything sequenced after the marker gets a larger timestamp.
+     * The page of the history from the cursor (from the start if it is null) is streamed, the caller must close the
+     * response's stream.
+     */
+    public CompletableFuture<Response.TransactionStreamResp> handleListEntireHistory(int limit, HistoryCursor cursor) {
+        LOGGER.log(Level.INFO, String.format("handleListEntireHistory: Received request with limit %d, cursor %s", limit, cursor));
+        long snapshotTimestamp = zk.getGlobalTimestamp();
+        Map<String, List<String>> shards;
         try {
-            atomicBroadcast.broadcastListEntireHistory(zk.getShards().keySet().stream().collect(Collectors.toList()), limit, myServerId, pendingReqId);
-            Response.TransactionListResp resp = pendingRequest.waitDone();
-            pendingRequests.remove(pendingReqId);
-            LOGGER.log(Level.INFO, String.format("handleListEntireHistory: Got response %s", resp.toString()));
-            return resp;
+            shards = zk.getShards();
         } catch (InterruptedException | KeeperException e) {
             e.printStackTrace();
-            LOGGER.log(Level.INFO, String.format("handleListEntireHistory: Failed broadcast!!"));
-            return new Response.TransactionListResp(HttpStatus.BAD_REQUEST, "Couldn't Broadcast the ListEntireHistory", null);
+            shards = null;
         }
+        if (snapshotTimestamp < 0 || shards == null) {
+            LOGGER.log(Level.INFO, String.format("handleListEntireHistory: Failed to take a snapshot!!"));
+            return CompletableFuture.completedFuture(new Response.TransactionStreamResp(HttpStatus.BAD_REQUEST, "Couldn't take a snapshot of the history", null));
+        }
+        Map<String, List<String>> shardServers = shards;
+        return atomicBroadcast.broadcastSnapshotMarker(new ArrayList<>(shardServers.keySet()), snapshotTimestamp, myServerId, currPendingReqId.incrementAndGet())
+                .thenApplyAsync(v -> this.streamSnapshot(shardServers, limit, snapshotTimestamp, cursor), historyReaders)
+                .exceptionally(e -> {
+                    LOGGER.log(Level.INFO, String.format("handleListEntireHistory: Failed broadcast!!"));
+                    return new Response.TransactionStreamResp(HttpStatus.BAD_REQUEST, "Couldn't Broadcast the ListEntireHistory", null);
+                });
+    }
+
+    private Response.TransactionStreamResp streamSnapshot(Map<String, List<String>> shards, int limit, long snapshotTimestamp, HistoryCursor cursor) {
+        List<RPCServiceClient.HistoryStream> shardHistories = new ArrayList<>();
+        try {
+            for (Map.Entry<String, List<String>> entry : shards.entrySet()) {
+                LOGGER.log(Level.INFO, String.format("streamSnapshot: Streaming history of %s at %d", entry.getKey(), snapshotTimestamp));
+                shardHistories.add(rpcService.client.streamHistory(entry.getValue(), limit, snapshotTimestamp, cursor));
+            }
+        } catch (IOException e) {
+            shardHistories.forEach(RPCServiceClient.HistoryStream::close);
+            LOGGER.log(Level.INFO, String.format("streamSnapshot: Failed!!"));
+            return new Response.TransactionStreamResp(HttpStatus.BAD_REQUEST, "Error!", null);
+        }
+        // Each shard's history is already sorted by timestamp, they are merged as the response is written
+        boolean backward = cursor != null && cursor.backward;
+        Iterator<Transaction> merged = TransactionLedger.mergeHistories(shardHistories, limit,
+                backward ? TransactionLedger.TIMESTAMP_ORDER.reversed() : TransactionLedger.TIMESTAMP_ORDER);
+        Stream<Transaction> collectedTransactions = StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false)
+                .onClose(() -> shardHistories.forEach(RPCServiceClient.HistoryStream::close));
+        if (backward) {
+            // A backward page is merged from its end, so it is collected and reversed
+            List<Transaction> page;
+            try (Stream<Transaction> transactions = collectedTransactions) {
+                page = transactions.collect(Collectors.toList());
+            }
+            Collections.reverse(page);
+            collectedTransactions = page.stream();
+        }
+        return new Response.TransactionStreamResp(HttpStatus.OK, "Collected Entire History", collectedTransactions);
     }
 
-    public Response.TransactionListResp handleAtomicTxList(List<Request.TransactionRequest> atomicList) {
+    public CompletableFuture<Response.TransactionListResp> handleAtomicTxList(List<Request.TransactionRequest> atomicList) {
         LOGGER.log(Level.INFO, String.format("handleAtomicTxList: Received request %s", atomicList.toString()));
+        this.onClientRequest();
         String sourceAddress = atomicList.get(0).inputs.get(0).getAddress();
         if (zk.isResponsibleForAddress(sourceAddress)) {
             Integer pendingReqId = currPendingReqId.incrementAndGet();
-            PendingRequest pendingRequest = new PendingRequest();
-            pendingRequests.put(pendingReqId, pendingRequest);
+            CompletableFuture<Response.TransactionListResp> pendingRequest = newPendingRequest(pendingReqId,
+                    reason -> new Response.TransactionListResp(HttpStatus.SERVICE_UNAVAILABLE, reason, null));
             LOGGER.log(Level.INFO, String.format("handleAtomicTxList: Broadcasting atomic-transactions-list [%s] to shard [%s]",
                     atomicList, myShardId));
             // Get relevant shards
@@ -288,11 +462,9 @@ public class TransactionManager {
             // Broadcast
             LOGGER.log(Level.INFO, String.format("handleAtomicTxList: Broadcasting atomic list [%s] to shards [%s] with key [%s]",
                     transactions.toString(), relevantShards.toString(), idempotencyKey));
-            atomicBroadcast.broadcastAtomicTxList(relevantShards, transactions, idempotencyKey, myServerId, pendingReqId);
-            Response.TransactionListResp resp = pendingRequest.waitDone();
-            pendingRequests.remove(pendingReqId);
-            LOGGER.log(Level.INFO, String.format("handleAtomicTxList: Got response %s", resp.toString()));
-            return resp;
+            failPendingRequestOnError(pendingReqId, atomicBroadcast.broadcastAtomicTxList(relevantShards, transactions, idempotencyKey, myServerId, pendingReqId));
+            return pendingRequest.whenComplete((resp, e) ->
+                    LOGGER.log(Level.INFO, String.format("handleAtomicTxList: Got response %s", resp)));
         } else {
             String responsibleShard = getResponsibleShard(sourceAddress);
             List<String> responsibleServers = getServersInShard(responsibleShard);
@@ -302,11 +474,11 @@ public class TransactionManager {
         }
     }
 
-    public Response.UnusedUTxOListResp handleListAddrUTxO(String address) {
+    public CompletableFuture<Response.UnusedUTxOListResp> handleListAddrUTxO(String address) {
         LOGGER.log(Level.INFO, String.format("handleListAddrUTxO: listing UTxOs for address %s", address));
         if (zk.isResponsibleForAddress(address)) {
             LOGGER.log(Level.INFO, "handleListAddrUTxO: Will handle request");
-            return new Response.UnusedUTxOListResp(HttpStatus.OK, "OK", new ArrayList<>(ledger.listUTxOsForAddress(address)));
+            return CompletableFuture.completedFuture(new Response.UnusedUTxOListResp(HttpStatus.OK, "OK", new ArrayList<>(ledger.listUTxOsForAddress(address))));
         }
         String responsibleShard = getResponsibleShard(address);
         List<String> responsibleServers = getServersInShard(responsibleShard);
@@ -315,17 +487,18 @@ public class TransactionManager {
         return delegate.client.delegateHandleListAddrUTxO(responsibleServers, address);
     }
 
-    public Response.TransactionListResp handleListAddrTransactions(String sourceAddress, int limit) {
-        LOGGER.log(Level.INFO, String.format("handleListAddrTransactions: listing transactions for address %s. Limit %d", sourceAddress, limit));
+    /** Lists a page of the address's transactions from the cursor, from the start if it is null */
+    public CompletableFuture<Response.TransactionListResp> handleListAddrTransactions(String sourceAddress, int limit, HistoryCursor cursor) {
+        LOGGER.log(Level.INFO, String.format("handleListAddrTransactions: listing transactions for address %s. Limit %d, cursor %s", sourceAddress, limit, cursor));
         if (zk.isResponsibleForAddress(sourceAddress)) {
             LOGGER.log(Level.INFO, String.format("handleListAddrTransactions: Will handle request"));
-            return new Response.TransactionListResp(HttpStatus.OK, "OK", new ArrayList<>(ledger.listTransactionsForAddress(sourceAddress, limit)));
+            return CompletableFuture.completedFuture(new Response.TransactionListResp(HttpStatus.OK, "OK", new ArrayList<>(ledger.listTransactionsForAddress(sourceAddress, limit, cursor))));
         }
         String responsibleShard = getResponsibleShard(sourceAddress);
         List<String> responsibleServers = getServersInShard(responsibleShard);
         LOGGER.log(Level.INFO, String.format("handleListAddrTransactions: Won't handle request, will send to responsible shard: %s at servers: %s",
                 responsibleShard, responsibleServers.toString()));
-        return delegate.client.delegateHandleListAddrTransactions(responsibleServers, sourceAddress, limit);
+        return delegate.client.delegateHandleListAddrTransactions(responsibleServers, sourceAddress, limit, cursor);
     }
 
     /**
@@ -333,14 +506,18 @@ public class TransactionManager {
      * Functions are called using gRPC from other servers. Used for submitting a transaction,
      * checking if an atomic list can be submitted or giving the entire history.
      */
-    public void gRPCRecordSubmittedTransaction(Transaction transaction) {
+    /** Completed once the recorded transaction is durable in the ledger log */
+    public CompletableFuture<Void> gRPCRecordSubmittedTransaction(Transaction transaction) {
         LOGGER.log(Level.INFO, String.format("gRPCRecordSubmittedTransaction: Recording %s", transaction.toString()));
+        zk.observeTimestamp(transaction.getTimestamp());
         ledger.recordTransaction(transaction);
+        return this.logRecord(LedgerLogRecord.newBuilder().setRecorded(RequestHandlerUtils.createTransactionMsg(transaction)).build());
     }
 
-    public List<Transaction> gRPCGetEntireHistory(int limit) {
-        LOGGER.log(Level.INFO, String.format("gRPCGetEntireHistory: Called with %d", limit));
-        return ledger.getEntireHistory(limit);
+    /** Completed with the history up to the snapshot once this server applied the snapshot's marker */
+    public CompletableFuture<Iterator<Transaction>> gRPCStreamHistory(int limit, long snapshotTimestamp, HistoryCursor cursor) {
+        LOGGER.log(Level.INFO, String.format("gRPCStreamHistory: Called with %d at %d, cursor %s", limit, snapshotTimestamp, cursor));
+        return this.awaitWatermark(snapshotTimestamp).thenApply(v -> ledger.iterateHistory(limit, snapshotTimestamp, cursor));
     }
 
 
@@ -356,68 +533,98 @@ public class TransactionManager {
      */
 
     /**
-     * All finished requests with the responses we created for them
+     * The idempotency keys of all finished requests, for IDEMPOTENCY_RETENTION_TIMESTAMPS past the timestamp they were
+     * executed at, so every replica keeps a key for the same requests.
+     * Replaced by one backed by an on-disk table when the ledger is recovered - next to the ledger log, or in a temp
+     * directory if the ledger isn't persisted. A store in memory only would forget keys it evicts.
      */
-    volatile private Map<String, Response> doneRequests = new ConcurrentHashMap<>();
+    volatile private IdempotencyStore doneRequests = new IdempotencyStore(IDEMPOTENCY_RETENTION_TIMESTAMPS, IDEMPOTENCY_MAX_KEYS_IN_MEMORY);
 
-    public void processTransactionLocally(Transaction trans, String idempotencyKey, String origServerId, int pendingReqId) {
+    /**
+     * An applied packet is logged before its response is returned, the response waits for the log to be durable.
+     * @return true if the transaction was applied to the ledger
+     */
+    public boolean processTransactionLocally(BroadcastMsg packet, Transaction trans, String idempotencyKey, String origServerId, int pendingReqId) {
         LOGGER.log(Level.INFO, String.format("processTransaction: Received transaction %s with key %s from %s with pendingReqId %d",
                 trans.toString(), idempotencyKey, origServerId, pendingReqId));
-        if (doneRequests.containsKey(idempotencyKey)) {
+        zk.observeTimestamp(trans.getTimestamp());
+        if (doneRequests.contains(idempotencyKey, trans.getTimestamp())) {
             LOGGER.log(Level.INFO, String.format("processTransaction: Request with key %s already processed", idempotencyKey));
             if (origServerId.equals(myServerId)) {
-                LOGGER.log(Level.INFO, String.format("processTransaction: I will return the original response"));
-                Response resp = doneRequests.get(idempotencyKey);
-                resp.statusCode = HttpStatus.CONFLICT;
-                resp.reason = "Transaction already processed!!";
-                this.pendingRequests.get(pendingReqId).finish(resp);
+                LOGGER.log(Level.INFO, String.format("processTransaction: I will return the CONFLICT response"));
+                this.finishPendingRequest(pendingReqId, new Response.TransactionResp(HttpStatus.CONFLICT, "Transaction already processed!!", null));
             } else {
                 LOGGER.log(Level.INFO, String.format("processTransaction: Already processed and not originated by me, ignoring."));
             }
+            return false;
         } else {
             LOGGER.log(Level.INFO, String.format("processTransaction: Need to process transaction"));
             Response.TransactionResp resp = this.tryProcessTransactionLocally(trans);
+            CompletableFuture<Void> durable = CompletableFuture.completedFuture(null);
             if (resp.statusCode.is2xxSuccessful()) {
                 LOGGER.log(Level.INFO, String.format("processTransaction: Transaction processed successfully"));
-                this.doneRequests.put(idempotencyKey, resp);
+                long ticket = this.doneRequests.addPending(idempotencyKey, trans.getTimestamp());
+                durable = this.logAppliedPacket(packet, ticket);
             } else {
                 LOGGER.log(Level.INFO, String.format("processTransaction: Transaction failed!!"));
             }
             if (myServerId.equals(origServerId)) {
                 LOGGER.log(Level.INFO, String.format("processTransaction: Transaction processed, returning %s", resp.toString()));
-                this.pendingRequests.get(pendingReqId).finish(resp);
+                this.finishPendingRequestWhenDurable(pendingReqId, resp, durable);
             }
+            return resp.statusCode.is2xxSuccessful();
         }
     }
 
-    public void processAtomicTxListLocally(List<Transaction> transactions, String idempotencyKey, String origServerId, int pendingReqId) {
+    /**
+     * Atomic lists whose transactions are all handled by this shard are already ordered by our sequencer, so they are
+     * validated and applied directly in execution order at the timestamp the sequencer assigned.
+     * Lists spanning multiple shards go through the atomic commit in ZooKeeper.
+     * A committed list is logged (at the timestamp it was committed at) before its response is returned.
+     * @return The atomic commit decision, with the timestamp the list was committed at
+     */
+    public Decision processAtomicTxListLocally(BroadcastMsg packet, List<Transaction> transactions, long assignedTimestamp, String idempotencyKey, String origServerId, int pendingReqId) {
         LOGGER.log(Level.INFO, String.format("processAtomicTxListLocally: Received atomicList %s with key %s from %s with pendingReqId %d",
                 transactions.toString(), idempotencyKey, origServerId, pendingReqId));
-        if (doneRequests.containsKey(idempotencyKey)) {
+        if (doneRequests.contains(idempotencyKey, assignedTimestamp)) {
             LOGGER.log(Level.INFO, String.format("processAtomicTxListLocally: Request with key %s already processed", idempotencyKey));
             if (origServerId.equals(myServerId)) {
                 LOGGER.log(Level.INFO, String.format("processAtomicTxListLocally: I will return the CONFLICT response"));
-                Response resp = doneRequests.get(idempotencyKey);
-                resp.statusCode = HttpStatus.CONFLICT;
-                resp.reason = "Atomic Transaction List already processed!!";
-                this.pendingRequests.get(pendingReqId).finish(resp);
+                this.finishPendingRequest(pendingReqId, new Response.TransactionListResp(HttpStatus.CONFLICT, "Atomic Transaction List already processed!!", null));
             } else {
                 LOGGER.log(Level.INFO, String.format("processAtomicTxListLocally: Already processed and not originated by me, ignoring."));
             }
+            return new Decision(false);
         } else {
             LOGGER.log(Level.INFO, String.format("processAtomicTxListLocally: Need to process transaction"));
-            boolean canProcessMyTransactions = validateRelevantTransactions(transactions);
             List<String> relevantShards = getRelevantShardsForTransactions(transactions);
-            LOGGER.log(Level.INFO, String.format("processAtomicTxListLocally: Can Process my transactions is %b", canProcessMyTransactions));
             Decision shouldPerformTxnList = new Decision(false); // a flag for "are we (the application servers) performing this list or not?"
-            try {
-                shouldPerformTxnList = zk.atomicCommitWait(idempotencyKey, origServerId, canProcessMyTransactions, relevantShards);
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, "processAtomicTxListLocally: failed to perform atomicCommitWait", e);
+            String commitId = null;
+            if (relevantShards.size() == 1 && relevantShards.get(0).equals(myShardId)) {
+                // Single shard: every replica executes the list at the same point, no need to coordinate
+                zk.observeTimestamp(assignedTimestamp);
+                transactions.forEach(transaction -> transaction.setTimestamp(assignedTimestamp));
+                boolean canProcessMyTransactions = validateRelevantTransactions(transactions, true);
+                LOGGER.log(Level.INFO, String.format("processAtomicTxListLocally: Single shard list, can process my transactions is %b", canProcessMyTransactions));
+                shouldPerformTxnList = new Decision(canProcessMyTransactions, assignedTimestamp);
+            } else {
+                boolean canProcessMyTransactions = validateRelevantTransactions(transactions, false);
+                LOGGER.log(Level.INFO, String.format("processAtomicTxListLocally: Can Process my transactions is %b", canProcessMyTransactions));
+                // The leader of the first voting shard coordinates, the commit is unique per broadcast request
+                String atomicCommitId = String.format("%s-%s-%d", idempotencyKey, origServerId, pendingReqId);
+                try {
+                    String coordinatorId = zk.getShardLeader(relevantShards.get(0));
+                    shouldPerformTxnList = atomicCommit.commit(atomicCommitId, coordinatorId, canProcessMyTransactions, relevantShards);
+                    commitId = atomicCommitId;
+                } catch (InterruptedException | KeeperException e) {
+                    LOGGER.log(Level.WARNING, "processAtomicTxListLocally: failed to perform the atomic commit", e);
+                }
             }
             Response.TransactionListResp resp;
+            CompletableFuture<Void> durable = CompletableFuture.completedFuture(null);
             if (shouldPerformTxnList.decision) {
                 LOGGER.log(Level.INFO, String.format("processAtomicTxListLocally: Atomic Commit Passed, processing transactions locally. timestamp %d", shouldPerformTxnList.timestamp));
+                zk.observeTimestamp(shouldPerformTxnList.timestamp);
                 for (Transaction transaction : transactions) {
                     transaction.setTimestamp(shouldPerformTxnList.timestamp);
                     if (zk.isResponsibleForAddress(transaction.getSourceAddress())) {
@@ -430,64 +637,232 @@ public class TransactionManager {
                     }
                 }
                 resp = new Response.TransactionListResp(HttpStatus.CREATED, "Atomic List processed successfully", transactions);
-                this.doneRequests.put(idempotencyKey, resp);
+                // Done at the commit timestamp, which is the one it is logged and replayed with
+                long ticket = this.doneRequests.addPending(idempotencyKey, shouldPerformTxnList.timestamp);
+                // The list was committed at the decision's timestamp, which is the sequencer's only for single shard lists
+                durable = this.logAppliedPacket(packet.toBuilder().setAssignedTimestamp(shouldPerformTxnList.timestamp).build(), ticket);
             } else {
                 LOGGER.log(Level.INFO, "processAtomicTxListLocally: Atomic Commit failed!!");
                 resp = new Response.TransactionListResp(HttpStatus.BAD_REQUEST, "Can't process Atomic List!", null);
             }
+            if (commitId != null) {
+                // Once the list is logged this server no longer needs the decision recorded in ZooKeeper
+                String decidedCommitId = commitId;
+                durable.thenRunAsync(() -> atomicCommit.release(decidedCommitId));
+            }
             if (myServerId.equals(origServerId)) {
                 LOGGER.log(Level.INFO, String.format("processAtomicTxListLocally: Transaction processed, returning %s", resp.toString()));
-                this.pendingRequests.get(pendingReqId).finish(resp);
+                this.finishPendingRequestWhenDurable(pendingReqId, resp, durable);
             }
+            return shouldPerformTxnList;
         }
     }
 
-    public void processListEntireHistoryLocally(int limit, String origServerId, int pendingReqId) {
-        LOGGER.log(Level.INFO, String.format("processListEntireHistoryLocally: Received request with limit %d from %s with pendingReqId %d",
-                limit, origServerId, pendingReqId));
+    /**
+     * Applied Watermark:
+     * Every transaction of this shard with a timestamp up to the watermark was applied. It is advanced by the snapshot
+     * markers, packets sequenced after a marker get larger timestamps than its snapshot.
+     */
+    private long appliedWatermark = 0;
+    private final TreeMap<Long, CompletableFuture<Void>> watermarkWaiters = new TreeMap<>();
+
+    public void processSnapshotMarkerLocally(long snapshotTimestamp) {
+        LOGGER.log(Level.INFO, String.format("processSnapshotMarkerLocally: Applied snapshot %d", snapshotTimestamp));
+        // In case this server becomes the sequencer
+        zk.observeTimestamp(snapshotTimestamp);
+        List<CompletableFuture<Void>> reached;
+        synchronized (watermarkWaiters) {
+            if (snapshotTimestamp <= appliedWatermark) {
+                return;
+            }
+            appliedWatermark = snapshotTimestamp;
+            Map<Long, CompletableFuture<Void>> reachedWaiters = watermarkWaiters.headMap(snapshotTimestamp, true);
+            reached = new ArrayList<>(reachedWaiters.values());
+            reachedWaiters.clear();
+        }
+        reached.forEach(waiter -> waiter.complete(null));
+    }
+
+    private CompletableFuture<Void> awaitWatermark(long timestamp) {
+        synchronized (watermarkWaiters) {
+            if (timestamp <= appliedWatermark) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return watermarkWaiters.computeIfAbsent(timestamp, ts -> new CompletableFuture<>());
+        }
+    }
+
+    /**
+     * Ledger Persistence:
+     * Every change to the ledger is appended to the ledger log after it is applied - packets the Executor applied
+     * successfully (in the order they were executed) and transactions recorded from other shards. A change is only
+     * acknowledged once the log forced it to disk.
+     * Every LEDGER_SNAPSHOT_INTERVAL records the ledger is snapshot, and the log before the snapshot is dropped.
+     * On startup the latest snapshot is loaded and the log after it is replayed.
+     * The idempotency key of a packet is written to the idempotency table only once the packet is durable, and the
+     * table is forced before the log is truncated, so every key in the table has its packet on disk and every logged
+     * packet's key survives the log.
+     * @param ticket The ticket the packet's idempotency key was added pending with
+     */
+    private CompletableFuture<Void> logAppliedPacket(BroadcastMsg packet, long ticket) {
+        IdempotencyStore done = doneRequests;
+        CompletableFuture<Void> durable = this.logRecord(LedgerLogRecord.newBuilder().setPacket(packet).build());
+        durable.thenRun(() -> done.persistThrough(ticket));
+        return durable;
+    }
+
+    /** @return Completed once the record is on disk, right away if the ledger isn't persisted */
+    private CompletableFuture<Void> logRecord(LedgerLogRecord record) {
+        if (ledgerLog == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long end;
         try {
-            String barrierId = String.format("ListEntireHistoryBrr-from(%s)-Id(%d)", origServerId, pendingReqId);
-            List<String> shards = zk.getShards().keySet().stream().collect(Collectors.toList());
-            LOGGER.log(Level.INFO, String.format("processListEntireHistoryLocally: Entering Barrier %s", barrierId));
-            zk.enterBarrier(barrierId, shards, origServerId);
-            LOGGER.log(Level.INFO, String.format("processListEntireHistoryLocally: Entered Barrier %s", barrierId));
-            List<Transaction> collectedTransactions = new ArrayList<>();
-            if (myServerId.equals(origServerId)) {
-                LOGGER.log(Level.INFO, String.format("processListEntireHistoryLocally: I am originator, collecting histories from all shards."));
-                for (Map.Entry<String, List<String>> entry : zk.getShards().entrySet()) {
-                    LOGGER.log(Level.INFO, String.format("processListEntireHistoryLocally: Getting history from %s", entry.getKey()));
-                    List<Transaction> transactionList = rpcService.client.getEntireHistory(entry.getValue(), limit);
-                    collectedTransactions.addAll(transactionList);
-                }
-                LOGGER.log(Level.INFO, String.format("processListEntireHistoryLocally: Received %d transactions in history", collectedTransactions.size()));
-                collectedTransactions = collectedTransactions.stream()
-                        .sorted((t1,t2) -> (int) (t1.getTimestamp() - t2.getTimestamp()))
-                        .limit(limit != -1 ? limit : collectedTransactions.size())
-                        .collect(Collectors.toList());
+            end = ledgerLog.append(record.toByteArray());
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "logRecord: Failed to append to the ledger log", e);
+            return CompletableFuture.failedFuture(e);
+        }
+        if (recordsSinceSnapshot.incrementAndGet() >= LEDGER_SNAPSHOT_INTERVAL) {
+            recordsSinceSnapshot.set(0);
+            this.snapshotLedger();
+        }
+        return ledgerLog.whenDurable(end);
+    }
+
+    private void snapshotLedger() {
+        // Only mark the snapshot here, copy, serialize and write it in the background
+        TransactionLedger.Snapshot snapshot = ledger.takeSnapshot(ledgerLog::position);
+        // Keys of the packets before the snapshot, they must be in the table before the log drops the packets
+        IdempotencyStore done = doneRequests;
+        long keysTicket = done.lastTicket();
+        snapshotWriter.execute(() -> {
+            LedgerSnapshotMsg msg = LedgerSnapshotMsg.newBuilder()
+                    .setLogPosition(snapshot.logPosition)
+                    .addAllHistory(snapshot.history().stream().map(RequestHandlerUtils::createTransactionMsg).collect(Collectors.toList()))
+                    .addAllUnspent(snapshot.unspent().stream().map(RequestHandlerUtils::createUTxOMsg).collect(Collectors.toList()))
+                    .build();
+            try {
+                snapshotStore.write(snapshot.logPosition, msg.toByteArray());
+                ledgerLog.whenDurable(snapshot.logPosition).join();
+                done.persistThrough(keysTicket);
+                done.force();
+                ledgerLog.truncateBefore(snapshot.logPosition);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "snapshotLedger: Failed to write the ledger snapshot", e);
             }
-            LOGGER.log(Level.INFO, String.format("processListEntireHistoryLocally: Leaving Barrier %s", barrierId));
-            zk.leaveBarrier(barrierId);
-            LOGGER.log(Level.INFO, String.format("processListEntireHistoryLocally: Left Barrier %s", barrierId));
-            if (myServerId.equals(origServerId)) {
-                LOGGER.log(Level.INFO, String.format("processListEntireHistoryLocally: Finished collecting transactions: %s", collectedTransactions.toString()));
-                this.pendingRequests.get(pendingReqId).finish(new Response.TransactionListResp(HttpStatus.OK, "Collected Entire History", collectedTransactions));
+        });
+    }
+
+    /** Keys are done at timestamps, the table is named for it so a table of an older format isn't read */
+    private static IdempotencyStore openIdempotencyStore(Path dir) throws IOException {
+        return new IdempotencyStore(IDEMPOTENCY_RETENTION_TIMESTAMPS, IDEMPOTENCY_MAX_KEYS_IN_MEMORY,
+                dir.resolve("idempotency-timestamps.table"), IDEMPOTENCY_TABLE_SLOTS);
+    }
+
+    private void recoverLedger() {
+        String logDir = System.getenv(ENV_LEDGER_LOG_DIR);
+        if (logDir == null) {
+            LOGGER.log(Level.INFO, String.format("recoverLedger: %s isn't set, the ledger won't be persisted", ENV_LEDGER_LOG_DIR));
+            try {
+                doneRequests = openIdempotencyStore(Files.createTempDirectory("idempotency"));
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "recoverLedger: Failed to create the idempotency table, keys are kept in memory only", e);
             }
-        } catch (KeeperException | InterruptedException | IOException e) {
-            e.printStackTrace();
-            if (myServerId.equals(origServerId)) {
-                LOGGER.log(Level.INFO, String.format("processListEntireHistoryLocally: Failed!!"));
-                this.pendingRequests.get(pendingReqId).finish(new Response.TransactionListResp(HttpStatus.BAD_REQUEST, "Error!", null));
+            return;
+        }
+        // The shard is part of the path, a server that comes back in another shard starts with an empty ledger
+        Path dir = Paths.get(logDir, System.getenv(ENV_HOST_NAME), myShardId);
+        try {
+            snapshotStore = new SnapshotStore(dir);
+            doneRequests = openIdempotencyStore(dir);
+            long from = 0;
+            byte[] snapshotBytes = snapshotStore.readLatest();
+            if (snapshotBytes != null) {
+                LedgerSnapshotMsg snapshot = LedgerSnapshotMsg.parseFrom(snapshotBytes);
+                ledger.restore(
+                        snapshot.getHistoryList().stream().map(RequestHandlerUtils::createTransaction).collect(Collectors.toList()),
+                        snapshot.getUnspentList().stream().map(RequestHandlerUtils::createUTxO).collect(Collectors.toList()));
+                from = snapshot.getLogPosition();
+                LOGGER.log(Level.INFO, String.format("recoverLedger: Loaded snapshot with %d transactions at log position %d", snapshot.getHistoryCount(), from));
+            }
+            if (!ledger.hasTransaction(GENESIS_TRANSACTION_ID) && myShardId.equals(getResponsibleShard(GENESIS_ADDRESS))) {
+                ledger.addGenesisBlockToLedger();
+            }
+            ledgerLog = new LedgerLog(dir, LEDGER_LOG_SEGMENT_SIZE, LEDGER_LOG_FLUSH_INTERVAL_MS);
+            // Recorded transactions only add UTxOs, so they are applied before the packets (which may spend them)
+            List<BroadcastMsg> packets = new ArrayList<>();
+            ledgerLog.replay(from, bytes -> {
+                try {
+                    LedgerLogRecord record = LedgerLogRecord.parseFrom(bytes);
+                    if (record.hasRecorded()) {
+                        Transaction transaction = RequestHandlerUtils.createTransaction(record.getRecorded());
+                        zk.observeTimestamp(transaction.getTimestamp());
+                        ledger.recordTransaction(transaction);
+                    } else if (record.hasPacket()) {
+                        packets.add(record.getPacket());
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "recoverLedger: Skipping a corrupted log record", e);
+                }
+            });
+            for (BroadcastMsg packet : packets) {
+                this.replayPacket(packet);
+            }
+            LOGGER.log(Level.INFO, String.format("recoverLedger: Replayed %d packets from the ledger log", packets.size()));
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "recoverLedger: Failed to recover the ledger, it won't be persisted", e);
+            ledgerLog = null;
+        }
+    }
+
+    /** Re-applies a logged packet, it was applied successfully before so it isn't validated again */
+    private void replayPacket(BroadcastMsg packet) {
+        List<Transaction> transactions = new ArrayList<>();
+        if (packet.hasTransaction()) {
+            transactions.add(RequestHandlerUtils.createTransaction(packet.getTransaction()));
+        } else if (packet.hasTransactionsList()) {
+            packet.getTransactionsList().getTransactionsList().stream().map(RequestHandlerUtils::createTransaction).forEach(transactions::add);
+        }
+        zk.observeTimestamp(packet.getAssignedTimestamp());
+        for (Transaction transaction : transactions) {
+            transaction.setTimestamp(packet.getAssignedTimestamp());
+            if (zk.isResponsibleForAddress(transaction.getSourceAddress()) && !ledger.hasTransaction(transaction.getTransactionId())) {
+                ledger.performTransaction(transaction);
             }
         }
+        // Replayed from the log, so the key goes to the table right away
+        doneRequests.add(packet.getIdempotencyKey(), packet.getAssignedTimestamp());
     }
 
     /**
      * General useful helper functions
+     * Timestamps are handed out by the ZooKeeper client's TimestampOracle from locally leased ranges.
      */
     public long getNewTimestamp() {
         return zk.getTimestamp();
     }
 
+    /** Returns the first of `count` contiguous timestamps, or -1 if no range could be leased */
+    public long getNewTimestamps(int count) {
+        return zk.getTimestamps(count);
+    }
+
+    /** Makes sure that every timestamp handed out from now on is larger than the given one */
+    public void observeTimestamp(long timestamp) {
+        zk.observeTimestamp(timestamp);
+    }
+
+    /** @return Whether the server is still registered, assumed alive when ZooKeeper can't tell */
+    public boolean isServerAlive(String serverId) {
+        try {
+            return zk.isServerAlive(serverId);
+        } catch (InterruptedException | KeeperException e) {
+            e.printStackTrace();
+            return true;
+        }
+    }
+
     private String getResponsibleShard(String address) {
         try {
             return zk.getResponsibleShard(address);
@@ -533,11 +908,11 @@ public class TransactionManager {
         }
     }
 
-    private boolean validateRelevantTransactions(List<Transaction> transactions) {
+    private boolean validateRelevantTransactions(List<Transaction> transactions, boolean checkTimestamps) {
         return !transactions.stream()
                 .filter(transaction -> zk.isResponsibleForAddress(transaction.getSourceAddress()))
                 .map(t -> {
-                    Response resp = ledger.canProcessTransaction(t, false);
+                    Response resp = ledger.canProcessTransaction(t, checkTimestamps);
                     LOGGER.log(Level.INFO, String.format("validateRelevantTransactions: Trans - %s returned %s - %s",
                             t.toString(), resp.statusCode.toString(), resp.reason));
                     return resp;
@@ -0,0 +1,134 @@
+package transactionmanager;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * The ledger's history by transaction id: an open-addressing hash table (linear probing) of the transactions
+ * themselves, matched by the two longs of their id, so there is no key object or map entry per transaction.
+ * Transactions are never removed. Writers are serialized, readers don't lock - they only retry under the read lock
+ * if a writer changed the table meanwhile.
+ * The transactions are also kept in the order they were added, so a snapshot is just a count of them and is copied
+ * later without holding up the writers.
+ */
+final class TransactionTable {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int CHUNK_SIZE = 1024;
+
+    private final StampedLock lock = new StampedLock();
+    private CompactTransaction[] table = new CompactTransaction[INITIAL_CAPACITY];
+    private int size = 0;
+    // The transactions in the order they were added, in chunks of CHUNK_SIZE. Entries below count never change
+    private volatile CompactTransaction[][] chunks = new CompactTransaction[1][CHUNK_SIZE];
+    private volatile int count = 0;
+
+    /** @return null if there is no transaction with the id */
+    CompactTransaction get(long idHigh, long idLow) {
+        long stamp = lock.tryOptimisticRead();
+        CompactTransaction found = find(table, idHigh, idLow);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = find(table, idHigh, idLow);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /** @return false if there already is a transaction with its id */
+    boolean add(CompactTransaction transaction) {
+        long stamp = lock.writeLock();
+        try {
+            if (find(table, transaction.idHigh, transaction.idLow) != null) {
+                return false;
+            }
+            if ((size + 1) * 4L > table.length * 3L) {
+                CompactTransaction[] old = table;
+                table = new CompactTransaction[old.length * 2];
+                for (CompactTransaction t : old) {
+                    if (t != null) {
+                        insert(table, t);
+                    }
+                }
+            }
+            insert(table, transaction);
+            size++;
+            append(transaction);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void forEach(Consumer<CompactTransaction> action) {
+        long stamp = lock.readLock();
+        try {
+            for (CompactTransaction t : table) {
+                if (t != null) {
+                    action.accept(t);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** @return How many transactions were added so far, the transactions below it are read by forEachUntil */
+    int count() {
+        return count;
+    }
+
+    /** Calls the action on the first `count` transactions in the order they were added, without locking */
+    void forEachUntil(int count, Consumer<CompactTransaction> action) {
+        CompactTransaction[][] chunks = this.chunks;
+        for (int i = 0; i < count; i++) {
+            action.accept(chunks[i / CHUNK_SIZE][i % CHUNK_SIZE]);
+        }
+    }
+
+    static int slot(long idHigh, long idLow, int mask) {
+        return (int) (((idHigh ^ idLow) * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    /** Probes at most the whole table, an optimistic reader may see it while it changes */
+    private static CompactTransaction find(CompactTransaction[] table, long idHigh, long idLow) {
+        int mask = table.length - 1;
+        int i = slot(idHigh, idLow, mask);
+        for (int probes = 0; probes < table.length; probes++, i = (i + 1) & mask) {
+            CompactTransaction t = table[i];
+            if (t == null) {
+                return null;
+            }
+            if (t.idHigh == idHigh && t.idLow == idLow) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    private void append(CompactTransaction transaction) {
+        CompactTransaction[][] chunks = this.chunks;
+        int chunk = count / CHUNK_SIZE;
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, 2 * chunks.length);
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new CompactTransaction[CHUNK_SIZE];
+        }
+        chunks[chunk][count % CHUNK_SIZE] = transaction;
+        this.chunks = chunks;
+        count++;
+    }
+
+    private static void insert(CompactTransaction[] table, CompactTransaction transaction) {
+        int mask = table.length - 1;
+        int i = slot(transaction.idHigh, transaction.idLow, mask);
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = transaction;
+    }
+}
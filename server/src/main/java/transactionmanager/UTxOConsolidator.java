@@ -0,0 +1,75 @@
+package transactionmanager;
+
+import constants.Constants;
+import model.Response;
+import model.Transaction;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * UTxO Consolidation:
+ * Merges the smallest UTxOs of an address with many of them into a single UTxO, with a transaction from the address
+ * to itself that is broadcast like any other transaction.
+ * Opt-in (ENV_UTXO_CONSOLIDATION), and rate limited so it doesn't compete with the clients - every
+ * CONSOLIDATION_INTERVAL_MS at most one consolidation is submitted, only if the previous one finished and only
+ * while `shouldRun` holds (this server leads its shard and didn't handle a client request for a while).
+ */
+class UTxOConsolidator {
+    private static final Logger LOGGER = Logger.getLogger(UTxOConsolidator.class.getName());
+
+    private final TransactionLedger ledger;
+    private final BooleanSupplier shouldRun;
+    private final Function<Transaction, CompletableFuture<Response.TransactionResp>> submit;
+    private final AtomicBoolean inFlight = new AtomicBoolean(false);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "UTxOConsolidator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    UTxOConsolidator(TransactionLedger ledger, BooleanSupplier shouldRun, Function<Transaction, CompletableFuture<Response.TransactionResp>> submit) {
+        this.ledger = ledger;
+        this.shouldRun = shouldRun;
+        this.submit = submit;
+    }
+
+    void start() {
+        LOGGER.log(Level.INFO, String.format("Consolidating addresses with at least %d UTxOs, up to %d at a time",
+                Constants.CONSOLIDATION_MIN_UTXOS, Constants.CONSOLIDATION_MAX_INPUTS));
+        scheduler.scheduleWithFixedDelay(this::consolidateOne, Constants.CONSOLIDATION_INTERVAL_MS, Constants.CONSOLIDATION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void consolidateOne() {
+        try {
+            if (inFlight.get() || !shouldRun.getAsBoolean()) {
+                return;
+            }
+            Transaction transaction = ledger.createConsolidationTransaction(Constants.CONSOLIDATION_MIN_UTXOS, Constants.CONSOLIDATION_MAX_INPUTS);
+            if (transaction == null) {
+                return;
+            }
+            LOGGER.log(Level.INFO, String.format("consolidateOne: Merging %d UTxOs of %s", transaction.getInputs().size(), transaction.getSourceAddress()));
+            inFlight.set(true);
+            submit.apply(transaction).whenComplete((resp, e) -> {
+                inFlight.set(false);
+                if (e != null || !resp.statusCode.is2xxSuccessful()) {
+                    // Most likely a client spent one of the UTxOs first, the address is picked again later
+                    LOGGER.log(Level.INFO, String.format("consolidateOne: Consolidation of %s failed: %s",
+                            transaction.getSourceAddress(), e != null ? e.getMessage() : resp.reason));
+                }
+            });
+        } catch (RuntimeException e) {
+            // An exception would cancel the scheduled task
+            inFlight.set(false);
+            LOGGER.log(Level.WARNING, "consolidateOne: Failed", e);
+        }
+    }
+}
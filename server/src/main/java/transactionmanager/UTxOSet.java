@@ -0,0 +1,340 @@
+package transactionmanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The unused UTxOs of an address, packed in primitive arrays rather than an object and a map entry per UTxO.
+ * An open-addressing hash table (linear probing) keyed by the two longs of the id of the transaction that created
+ * the UTxO, holding its coins and timestamp.
+ * Coin selection needs the UTxOs by value, so once a set has INDEXED_SIZE UTxOs they are also kept in buckets by the
+ * bit length of their coins and only the buckets that can hold the selection are scanned. Smaller sets are scanned whole.
+ * Changed under the address's lock, which writers also hold the set's write lock under. Lookups, the size and the
+ * total don't lock - like TransactionTable they only retry under the read lock if a writer changed the set meanwhile.
+ * Listing and selecting take the read lock for the length of the call, which doesn't pin a virtual thread's carrier.
+ */
+final class UTxOSet {
+    private static final int FIELDS = 4; // idHigh, idLow, coins, timestamp
+    private static final int MIN_CAPACITY = 2;
+    private static final int INDEXED_SIZE = 64;
+    private static final int BUCKETS = Long.SIZE;
+    private static final long[] NO_SLOTS = new long[0];
+    private static final boolean[] NOT_USED = new boolean[0];
+
+    /** Receives each UTxO of the set */
+    interface Visitor {
+        void visit(long idHigh, long idLow, long coins, long timestamp);
+    }
+
+    private final StampedLock lock = new StampedLock();
+    // The fields of slot i are at [FIELDS * i] on
+    private long[] slots = NO_SLOTS;
+    private boolean[] used = NOT_USED;
+    private int size = 0;
+    private long total = 0;
+
+    // The value index, null while the set is small: the slots in each bucket, how many there are and the position of each slot in its bucket
+    private int[][] buckets;
+    private int[] bucketSizes;
+    private int[] bucketPositions;
+
+    int size() {
+        long stamp = lock.tryOptimisticRead();
+        int found = size;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    long total() {
+        long stamp = lock.tryOptimisticRead();
+        long found = total;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = total;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /** Adds a UTxO, replacing the one with the same id if there is one */
+    void add(long idHigh, long idLow, long coins, long timestamp) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(slots, used, idHigh, idLow);
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+            if ((size + 1) * 4L > used.length * 3L) {
+                resize(Math.max(MIN_CAPACITY, used.length * 2));
+            }
+            insert(idHigh, idLow, coins, timestamp);
+            if (buckets == null && size >= INDEXED_SIZE) {
+                buildIndex();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** @return false if there is no UTxO with the id */
+    boolean remove(long idHigh, long idLow) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(slots, used, idHigh, idLow);
+            if (slot < 0) {
+                return false;
+            }
+            removeSlot(slot);
+            if (buckets != null && size < INDEXED_SIZE / 2) {
+                buckets = null;
+                bucketSizes = null;
+                bucketPositions = null;
+            }
+            if (used.length > MIN_CAPACITY && size * 8L < used.length) {
+                resize(used.length / 2);
+            }
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copies the coins and the timestamp of the UTxO to value[0] and value[1]
+     * @return false if there is no UTxO with the id
+     */
+    boolean get(long idHigh, long idLow, long[] value) {
+        long stamp = lock.tryOptimisticRead();
+        boolean found = get(slots, used, idHigh, idLow, value);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = get(slots, used, idHigh, idLow, value);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /** An optimistic reader may see the arrays of two different capacities while the set resizes, it then finds nothing */
+    private static boolean get(long[] slots, boolean[] used, long idHigh, long idLow, long[] value) {
+        if (slots.length != FIELDS * used.length) {
+            return false;
+        }
+        int slot = find(slots, used, idHigh, idLow);
+        if (slot < 0) {
+            return false;
+        }
+        value[0] = slots[FIELDS * slot + 2];
+        value[1] = slots[FIELDS * slot + 3];
+        return true;
+    }
+
+    void forEach(Visitor visitor) {
+        long stamp = lock.readLock();
+        try {
+            for (int i = 0; i < used.length; i++) {
+                if (used[i]) {
+                    visitor.visit(slots[FIELDS * i], slots[FIELDS * i + 1], coins(i), slots[FIELDS * i + 3]);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Picks the largest (or the smallest) UTxOs that aren't larger than `atMost`, in that order, until there are
+     * `maxCount` of them or they sum to at least `untilSum`.
+     * @return The idHigh, idLow and coins of each picked UTxO, one after the other
+     */
+    long[] select(boolean largestFirst, long atMost, int maxCount, long untilSum) {
+        long stamp = lock.readLock();
+        try {
+            return selectLocked(largestFirst, atMost, maxCount, untilSum);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private long[] selectLocked(boolean largestFirst, long atMost, int maxCount, long untilSum) {
+        List<Integer> candidates = new ArrayList<>();
+        if (buckets == null) {
+            for (int i = 0; i < used.length; i++) {
+                if (used[i] && coins(i) <= atMost) {
+                    candidates.add(i);
+                }
+            }
+        } else {
+            // The UTxOs of a bucket are all larger than those of the buckets below it, so the buckets are scanned
+            // in order until the ones scanned hold the whole selection
+            int top = bucket(atMost);
+            long sum = 0;
+            for (int n = 0; n <= top && candidates.size() < maxCount && sum < untilSum; n++) {
+                int bucket = largestFirst ? top - n : n;
+                for (int k = 0; k < bucketSizes[bucket]; k++) {
+                    int slot = buckets[bucket][k];
+                    if (coins(slot) <= atMost) {
+                        candidates.add(slot);
+                        sum += coins(slot);
+                    }
+                }
+            }
+        }
+        Comparator<Integer> byValue = Comparator.comparingLong(this::coins);
+        candidates.sort(largestFirst ? byValue.reversed() : byValue);
+        int count = 0;
+        long sum = 0;
+        while (count < candidates.size() && count < maxCount && sum < untilSum) {
+            sum += coins(candidates.get(count++));
+        }
+        long[] picked = new long[3 * count];
+        for (int i = 0; i < count; i++) {
+            int slot = candidates.get(i);
+            picked[3 * i] = slots[FIELDS * slot];
+            picked[3 * i + 1] = slots[FIELDS * slot + 1];
+            picked[3 * i + 2] = coins(slot);
+        }
+        return picked;
+    }
+
+    private long coins(int slot) {
+        return slots[FIELDS * slot + 2];
+    }
+
+    private static int home(long idHigh, long idLow, int mask) {
+        return TransactionTable.slot(idHigh, idLow, mask);
+    }
+
+    /** Bit length of the coins, non-positive values share bucket 0 */
+    private static int bucket(long coins) {
+        return coins <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(coins);
+    }
+
+    /** Probes at most the whole table, an optimistic reader may see it while it changes */
+    private static int find(long[] slots, boolean[] used, long idHigh, long idLow) {
+        if (used.length == 0) {
+            return -1;
+        }
+        int mask = used.length - 1;
+        int i = home(idHigh, idLow, mask);
+        for (int probes = 0; probes < used.length && used[i]; probes++, i = (i + 1) & mask) {
+            if (slots[FIELDS * i] == idHigh && slots[FIELDS * i + 1] == idLow) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long idHigh, long idLow, long coins, long timestamp) {
+        int mask = used.length - 1;
+        int i = home(idHigh, idLow, mask);
+        while (used[i]) {
+            i = (i + 1) & mask;
+        }
+        used[i] = true;
+        slots[FIELDS * i] = idHigh;
+        slots[FIELDS * i + 1] = idLow;
+        slots[FIELDS * i + 2] = coins;
+        slots[FIELDS * i + 3] = timestamp;
+        size++;
+        total += coins;
+        if (buckets != null) {
+            addToBucket(i);
+        }
+    }
+
+    /** Empties the slot and shifts the UTxOs probed after it back, so a lookup never stops at the hole it leaves */
+    private void removeSlot(int slot) {
+        if (buckets != null) {
+            removeFromBucket(slot);
+        }
+        size--;
+        total -= coins(slot);
+        used[slot] = false;
+        int mask = used.length - 1;
+        int hole = slot;
+        for (int i = (slot + 1) & mask; used[i]; i = (i + 1) & mask) {
+            // The UTxO at i may move back to the hole unless its home slot is after the hole
+            int home = home(slots[FIELDS * i], slots[FIELDS * i + 1], mask);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                move(i, hole);
+                hole = i;
+            }
+        }
+    }
+
+    private void move(int from, int to) {
+        System.arraycopy(slots, FIELDS * from, slots, FIELDS * to, FIELDS);
+        used[to] = true;
+        used[from] = false;
+        if (buckets != null) {
+            int position = bucketPositions[from];
+            bucketPositions[to] = position;
+            buckets[bucket(coins(to))][position] = to;
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldSlots = slots;
+        boolean[] oldUsed = used;
+        boolean indexed = buckets != null;
+        slots = new long[FIELDS * capacity];
+        used = new boolean[capacity];
+        size = 0;
+        total = 0;
+        buckets = null;
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i]) {
+                insert(oldSlots[FIELDS * i], oldSlots[FIELDS * i + 1], oldSlots[FIELDS * i + 2], oldSlots[FIELDS * i + 3]);
+            }
+        }
+        if (indexed) {
+            buildIndex();
+        }
+    }
+
+    private void buildIndex() {
+        buckets = new int[BUCKETS][];
+        bucketSizes = new int[BUCKETS];
+        bucketPositions = new int[used.length];
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                addToBucket(i);
+            }
+        }
+    }
+
+    private void addToBucket(int slot) {
+        int bucket = bucket(coins(slot));
+        if (buckets[bucket] == null) {
+            buckets[bucket] = new int[MIN_CAPACITY];
+        } else if (bucketSizes[bucket] == buckets[bucket].length) {
+            buckets[bucket] = Arrays.copyOf(buckets[bucket], 2 * bucketSizes[bucket]);
+        }
+        bucketPositions[slot] = bucketSizes[bucket];
+        buckets[bucket][bucketSizes[bucket]++] = slot;
+    }
+
+    private void removeFromBucket(int slot) {
+        int bucket = bucket(coins(slot));
+        int position = bucketPositions[slot];
+        int last = buckets[bucket][--bucketSizes[bucket]];
+        buckets[bucket][position] = last;
+        bucketPositions[last] = position;
+    }
+}
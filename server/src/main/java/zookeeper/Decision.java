@@ -1,8 +1,6 @@
 package zookeeper;
 
-import java.io.Serializable;
-
-public class Decision implements Serializable {
+public class Decision {
     public Boolean decision;
     public long timestamp;
 
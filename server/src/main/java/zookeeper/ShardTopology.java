@@ -0,0 +1,63 @@
+package zookeeper;
+
+import com.google.common.hash.Hashing;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable snapshot of the shards in the system and the servers registered in each of them.
+ * A new snapshot is built and swapped in whenever ZooKeeper notifies us that the shards changed,
+ * so routing an address to its shard never needs to go to ZooKeeper.
+ */
+class ShardTopology {
+    static final ShardTopology EMPTY = new ShardTopology(new HashMap<>());
+
+    /** Maximal number of cached address->shard routes before the cache is reset */
+    private static final int MAX_CACHED_ROUTES = 1 << 16;
+
+    /** All shard ids sorted */
+    private final List<String> shards;
+    /** Servers in each shard, sorted */
+    private final Map<String, List<String>> serversInShards;
+    /** Bounded address->shard cache, belongs to this snapshot so it is dropped with it */
+    private final Map<String, String> routes = new ConcurrentHashMap<>();
+
+    ShardTopology(Map<String, List<String>> serversInShards) {
+        List<String> shards = new ArrayList<>(serversInShards.keySet());
+        Collections.sort(shards);
+        Map<String, List<String>> servers = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : serversInShards.entrySet()) {
+            List<String> sorted = new ArrayList<>(entry.getValue());
+            Collections.sort(sorted);
+            servers.put(entry.getKey(), Collections.unmodifiableList(sorted));
+        }
+        this.shards = Collections.unmodifiableList(shards);
+        this.serversInShards = Collections.unmodifiableMap(servers);
+    }
+
+    List<String> getShards() {
+        return shards;
+    }
+
+    List<String> getServersInShard(String shardId) {
+        return serversInShards.getOrDefault(shardId, Collections.emptyList());
+    }
+
+    Map<String, List<String>> getServersInShards() {
+        return serversInShards;
+    }
+
+    /** Uses consistentHash to find the shard responsible for the address */
+    String getResponsibleShard(String address) {
+        String shard = routes.get(address);
+        if (shard == null) {
+            shard = shards.get(Hashing.consistentHash(address.hashCode(), shards.size()));
+            if (routes.size() >= MAX_CACHED_ROUTES) {
+                routes.clear();
+            }
+            routes.put(address, shard);
+        }
+        return shard;
+    }
+}
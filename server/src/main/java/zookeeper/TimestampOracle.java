@@ -0,0 +1,170 @@
+package zookeeper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongUnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timestamp Oracle:
+ * Leases ranges of timestamps from ZooKeeper (one atomic write per range) and hands them out locally.
+ * The next range is leased in the background once the current one is running low, so the common path
+ * never waits for ZooKeeper.
+ *
+ * Ranges are leased from a single global counter, so a newly leased range is larger than every timestamp
+ * handed out (by any server) before it was leased. This is used to keep timestamps consistent with causality:
+ *   - observe(ts) is called on each timestamp we learn of, so the next timestamps we hand out are larger.
+ *   - nextGlobalTimestamp() bypasses the local range, for when the timestamp must be larger than any
+ *     timestamp that was handed out in the system so far (atomic commit of multiple shards).
+ */
+public class TimestampOracle {
+    private static final Logger LOGGER = Logger.getLogger(TimestampOracle.class.getName());
+
+    /** A leased range of timestamps [next, end) */
+    private static class Lease {
+        final AtomicLong next;
+        final long end;
+
+        Lease(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+
+        long remaining() {
+            return end - next.get();
+        }
+    }
+
+    /** Leases `count` timestamps in ZooKeeper and returns the first one, or -1 on failure */
+    private final LongUnaryOperator leaser;
+    private final int leaseSize;
+    private final int refillThreshold;
+
+    private volatile Lease current = new Lease(0, 0);
+    private volatile Lease prefetched = null;
+    // The largest timestamp observed, every timestamp handed out from now on is larger
+    private final AtomicLong floor = new AtomicLong(-1);
+    private final AtomicBoolean refilling = new AtomicBoolean(false);
+    private final ExecutorService refiller = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "TimestampOracleRefill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public TimestampOracle(LongUnaryOperator leaser, int leaseSize) {
+        this.leaser = leaser;
+        this.leaseSize = leaseSize;
+        this.refillThreshold = leaseSize / 4;
+    }
+
+    /** @return A new unique timestamp, or -1 if no range could be leased */
+    public long nextTimestamp() {
+        return nextTimestamps(1);
+    }
+
+    /** @return The first of `count` new contiguous unique timestamps, or -1 if no range could be leased */
+    public long nextTimestamps(int count) {
+        while (true) {
+            Lease lease = current;
+            long first = lease.next.getAndAdd(count);
+            if (first + count <= lease.end) {
+                if (lease.end - (first + count) <= refillThreshold) {
+                    prefetch();
+                }
+                return first;
+            }
+            synchronized (this) {
+                if (current == lease && !installPrefetched(count)) {
+                    Lease fresh = lease(Math.max(leaseSize, count));
+                    if (fresh == null) {
+                        return -1;
+                    }
+                    current = fresh;
+                }
+            }
+        }
+    }
+
+    /** @return A timestamp larger than any timestamp handed out in the system so far, or -1 on failure */
+    public long nextGlobalTimestamp() {
+        return leaser.applyAsLong(1);
+    }
+
+    /** Makes sure that every timestamp handed out from now on is larger than the given one */
+    public void observe(long timestamp) {
+        floor.accumulateAndGet(timestamp, Math::max);
+        Lease lease = current;
+        if (timestamp < lease.end) {
+            lease.next.accumulateAndGet(timestamp + 1, Math::max);
+            return;
+        }
+        synchronized (this) {
+            lease = current;
+            if (timestamp < lease.end) {
+                lease.next.accumulateAndGet(timestamp + 1, Math::max);
+                return;
+            }
+            // The timestamp was leased by someone else after our range, any range leased from now on is larger
+            if (!installPrefetched(1)) {
+                Lease fresh = lease(leaseSize);
+                if (fresh == null) {
+                    return;
+                }
+                current = fresh;
+            }
+            LOGGER.log(Level.INFO, String.format("Observed timestamp %d, moved to range [%d, %d)", timestamp, current.next.get(), current.end));
+        }
+    }
+
+    /**
+     * Replaces the current range with the prefetched one if it has `count` timestamps above the current range and
+     * the observed floor. A prefetched range that isn't above them was leased before a timestamp we observed, or
+     * before the current range (a prefetch that finished after the range ran out), so it is dropped.
+     */
+    private boolean installPrefetched(int count) {
+        Lease lease = prefetched;
+        if (lease != null && lease.next.get() <= Math.max(floor.get(), current.end - 1)) {
+            prefetched = null;
+            return false;
+        }
+        if (lease == null || lease.remaining() < count) {
+            return false;
+        }
+        prefetched = null;
+        current = lease;
+        return true;
+    }
+
+    /** @return true if a range was leased ahead of the current one */
+    boolean isPrefetched() {
+        return prefetched != null;
+    }
+
+    private void prefetch() {
+        if (prefetched != null || !refilling.compareAndSet(false, true)) {
+            return;
+        }
+        refiller.execute(() -> {
+            try {
+                if (prefetched == null) {
+                    prefetched = lease(leaseSize);
+                }
+            } finally {
+                refilling.set(false);
+            }
+        });
+    }
+
+    private Lease lease(int count) {
+        long start = leaser.applyAsLong(count);
+        if (start < 0) {
+            LOGGER.log(Level.SEVERE, String.format("Failed to lease %d timestamps", count));
+            return null;
+        }
+        LOGGER.log(Level.INFO, String.format("Leased timestamps [%d, %d)", start, start + count));
+        return new Lease(start, start + count);
+    }
+}
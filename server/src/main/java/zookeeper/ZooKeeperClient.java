@@ -26,8 +26,15 @@ public interface ZooKeeperClient {
     String getResponsibleShard(String address) throws InterruptedException, KeeperException;
 
     Decision atomicCommitWait(String atomicTxnListId, String initiatorServer, boolean vote, List<String> votingShards) throws Exception;
+    Decision recordDecision(String commitId, Decision decision, List<String> participants) throws InterruptedException, KeeperException, IOException, ClassNotFoundException;
+    Decision readDecision(String commitId) throws InterruptedException, KeeperException, IOException, ClassNotFoundException;
+    void releaseDecision(String commitId, String serverId) throws InterruptedException, KeeperException;
+    boolean isServerAlive(String serverId) throws InterruptedException, KeeperException;
 
     long getTimestamp();
+    long getTimestamps(int count);
+    long getGlobalTimestamp();
+    void observeTimestamp(long timestamp);
 
     void enterBarrier(String barrierId, List<String> shards, String initiatorServerId) throws KeeperException, InterruptedException, IOException;
     void setDecision(String barrierId, boolean decision, long timestamp) throws InterruptedException, KeeperException, IOException;
@@ -1,6 +1,5 @@
 package zookeeper;
 
-import com.google.common.hash.Hashing;
 import constants.Constants;
 import javassist.bytecode.stackmap.TypeData;
 import org.apache.zookeeper.*;
@@ -8,6 +7,9 @@ import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
@@ -16,7 +18,19 @@ import java.util.logging.Logger;
 
 import static java.lang.Thread.sleep;
 
-class NodeData implements Serializable {
+/**
+ * Data stored in the znodes: the address of a server, or a vote/decision of an atomic commit.
+ * Encoded in a fixed binary layout instead of Java serialization, so znodes stay small and no classes are
+ * instantiated when reading them:
+ *   [version:1][flags:1][timestamp:8, if it has a decision][address length:2][address UTF-8, if it has an address]
+ */
+class NodeData {
+    static final byte VERSION = 1;
+    private static final int HAS_ADDRESS = 1;
+    private static final int HAS_DECISION = 1 << 1;
+    private static final int HAS_DECISION_VALUE = 1 << 2; // a decision without a value means 'no decision yet'
+    private static final int DECISION_VALUE = 1 << 3;
+
     private String address;
     private Decision decision = null;
 
@@ -42,18 +56,53 @@ class NodeData implements Serializable {
         this.setAddress(address);
     }
 
-    public static byte[] convertToBytes(NodeData obj) throws IOException {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-             ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            out.writeObject(obj);
-            return bos.toByteArray();
+    public static byte[] convertToBytes(NodeData obj) {
+        byte[] address = obj.address == null ? null : obj.address.getBytes(StandardCharsets.UTF_8);
+        int flags = 0;
+        int size = 2;
+        if (obj.decision != null) {
+            flags |= HAS_DECISION;
+            if (obj.decision.decision != null) {
+                flags |= HAS_DECISION_VALUE | (obj.decision.decision ? DECISION_VALUE : 0);
+            }
+            size += Long.BYTES;
+        }
+        if (address != null) {
+            flags |= HAS_ADDRESS;
+            size += Short.BYTES + address.length;
         }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(VERSION).put((byte) flags);
+        if (obj.decision != null) {
+            buffer.putLong(obj.decision.timestamp);
+        }
+        if (address != null) {
+            buffer.putShort((short) address.length).put(address);
+        }
+        return buffer.array();
     }
 
-    public static NodeData convertFromBytes(byte[] bytes) throws IOException, ClassNotFoundException {
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-             ObjectInputStream in = new ObjectInputStream(bis)) {
-            return (NodeData) in.readObject();
+    public static NodeData convertFromBytes(byte[] bytes) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported NodeData version %d", version));
+            }
+            int flags = buffer.get();
+            NodeData nodeData = new NodeData();
+            if ((flags & HAS_DECISION) != 0) {
+                Boolean value = (flags & HAS_DECISION_VALUE) != 0 ? (flags & DECISION_VALUE) != 0 : null;
+                nodeData.decision = new Decision(value, buffer.getLong());
+            }
+            if ((flags & HAS_ADDRESS) != 0) {
+                byte[] address = new byte[Short.toUnsignedInt(buffer.getShort())];
+                buffer.get(address);
+                nodeData.address = new String(address, StandardCharsets.UTF_8);
+            }
+            return nodeData;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated NodeData", e);
         }
     }
 }
@@ -73,6 +122,12 @@ public class ZooKeeperClientImpl implements ZooKeeperClient, Watcher {
     final private String serversPath = "/servers";
     final private String barriersPath = "/barriers";
     final private String counterPath = "/counter";
+    final private String decisionsPath = "/decisions";
+
+    // Snapshot of the shards and their servers, swapped whenever ZooKeeper notifies that they changed
+    private volatile ShardTopology topology = ShardTopology.EMPTY;
+
+    final private TimestampOracle timestampOracle = new TimestampOracle(this::leaseTimestamps, Constants.TIMESTAMP_LEASE_SIZE);
 
     public ZooKeeperClientImpl(String zkConnection) {
         this.zkConnection = zkConnection;
@@ -99,18 +154,46 @@ public class ZooKeeperClientImpl implements ZooKeeperClient, Watcher {
     }
 
     /**
-     * @return Returns all shard ids sorted
+     * @return Returns all shard ids sorted, from the cached topology
      * @throws InterruptedException
      * @throws KeeperException
      */
     public List<String> getAllShards() throws InterruptedException, KeeperException {
-        List<String> shards = zk.getChildren(shardsPath, null); // we don't need a watch here so watcher=null
-        Collections.sort(shards);
-        return shards;
+        return topology.getShards();
     }
 
+    /**
+     * @return Returns the servers in the shard sorted, from the cached topology
+     */
     public List<String> getServersInShard(String shardId) throws InterruptedException, KeeperException {
-        return getServersInShardWithWatcher(shardId, null);
+        return topology.getServersInShard(shardId);
+    }
+
+    /**
+     * Watches the shards and the servers in them for refreshTopology. A single instance, since ZooKeeper only keeps
+     * one watch per node and watcher - a new watcher on every refresh would pile up watches on the nodes.
+     */
+    private final Watcher topologyWatcher = event -> {
+        if (event.getType() == Event.EventType.NodeChildrenChanged) {
+            refreshTopology();
+        }
+    };
+
+    /**
+     * Reads the shards and their servers from ZooKeeper and swaps in a new topology snapshot.
+     * Leaves a watch on each of the read nodes, so it runs again whenever a shard or a server in it changes.
+     */
+    synchronized private void refreshTopology() {
+        try {
+            Map<String, List<String>> serversInShards = new HashMap<>();
+            for (String shard : zk.getChildren(shardsPath, topologyWatcher)) {
+                serversInShards.put(shard, zk.getChildren(shardsPath + "/" + shard, topologyWatcher));
+            }
+            this.topology = new ShardTopology(serversInShards);
+            LOGGER.log(Level.INFO, String.format("Shard topology changed: %s", serversInShards));
+        } catch (KeeperException | InterruptedException e) {
+            LOGGER.log(Level.SEVERE, "Failed to refresh the shard topology", e);
+        }
     }
 
     private List<String> getServersInShardWithWatcher(String shardId, Watcher watcher) throws InterruptedException, KeeperException {
@@ -165,6 +248,8 @@ public class ZooKeeperClientImpl implements ZooKeeperClient, Watcher {
             this.registerServer(System.getenv(Constants.ENV_HOST_NAME));
             /** Wait for all other Servers to be registered */
             this.waitForAllServersToRegister();
+            /** Cache the shards topology */
+            this.refreshTopology();
         } catch (InterruptedException | KeeperException e) {
             LOGGER.log(Level.SEVERE, "ZK client setup failed.", e);
         }
@@ -182,6 +267,8 @@ public class ZooKeeperClientImpl implements ZooKeeperClient, Watcher {
         createNodeIfNotExists(barriersPath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
         // Create counter path ("/counter")
         createNodeIfNotExists(counterPath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        // Create decisions path ("/decisions")
+        createNodeIfNotExists(decisionsPath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
         // Create shard nodes ("/shards/:shardId")
         for (int i = 0; i < this.numShards; i++) {
             createNodeIfNotExists(shardsPath + "/shard-" + i, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
@@ -382,6 +469,7 @@ public class ZooKeeperClientImpl implements ZooKeeperClient, Watcher {
 
     /**
      * getResponsibleShard uses consistentHash to find the shard responsible for the client's address.
+     * Uses the cached topology, so it never blocks on ZooKeeper.
      *
      * @param address: the client's address
      * @return the shardId responsible for the client's address
@@ -390,9 +478,7 @@ public class ZooKeeperClientImpl implements ZooKeeperClient, Watcher {
      */
     @Override
     public String getResponsibleShard(String address) throws InterruptedException, KeeperException {
-        List<String> shards = getAllShards();
-        int bucket = Hashing.consistentHash(address.hashCode(), shards.size());
-        return shards.get(bucket);
+        return topology.getResponsibleShard(address);
     }
 
     /**
@@ -454,7 +540,7 @@ public class ZooKeeperClientImpl implements ZooKeeperClient, Watcher {
             LOGGER.log(Level.INFO, String.format("atomicCommitWait: I am initiator"));
             List<Decision> votes = new ArrayList<>();
             for (String shard : votingShards) {
-                for (String serverInShard : getServersInShard(shard)) {
+                for (String serverInShard : getServersInShardWithWatcher(shard, null)) { // must match the barrier's view
                     // read shard vote
                     byte[] data = zk.getData(barriersPath + "/" + atomicTxnListId + "/" + serverInShard, false, null);
                     NodeData nodeData = NodeData.convertFromBytes(data);
@@ -466,7 +552,8 @@ public class ZooKeeperClientImpl implements ZooKeeperClient, Watcher {
             long timestamp = -1;
             boolean canCommit = votes.stream().allMatch(val -> val.decision);
             if (canCommit) {
-                timestamp = getTimestamp();
+                // Must be larger than the timestamps of the inputs in all the voting shards, not just in mine
+                timestamp = timestampOracle.nextGlobalTimestamp();
                 LOGGER.log(Level.INFO, String.format("atomicCommitWait: We are committing with timestamp %d", timestamp));
             }
             setDecision(atomicTxnListId, canCommit, timestamp);
@@ -481,6 +568,81 @@ public class ZooKeeperClientImpl implements ZooKeeperClient, Watcher {
         return decision;
     }
 
+    /**
+     * Durably records the decision of an atomic commit, unless a decision was already recorded for it.
+     * The node is created only once, so the coordinator deciding and a participant aborting after the coordinator
+     * died can't both win.
+     * Each participant gets a child node, which it deletes once it applied the decision (see releaseDecision).
+     *
+     * @param participants The servers of the voting shards
+     * @return The recorded decision - the given one, or the one recorded before it
+     */
+    @Override
+    public Decision recordDecision(String commitId, Decision decision, List<String> participants) throws InterruptedException, KeeperException, IOException, ClassNotFoundException {
+        String decisionPath = decisionsPath + "/" + commitId;
+        List<Op> ops = new ArrayList<>();
+        ops.add(Op.create(decisionPath, NodeData.convertToBytes(new NodeData(decision.decision, decision.timestamp)), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        for (String participant : participants) {
+            ops.add(Op.create(decisionPath + "/" + participant, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        }
+        try {
+            zk.multi(ops);
+            return decision;
+        } catch (KeeperException.NodeExistsException e) {
+            LOGGER.log(Level.INFO, String.format("recordDecision: Decision for %s was already recorded", commitId));
+            return readDecision(commitId);
+        }
+    }
+
+    /**
+     * @return The decision recorded for the atomic commit, or null if it wasn't decided yet
+     */
+    @Override
+    public Decision readDecision(String commitId) throws InterruptedException, KeeperException, IOException, ClassNotFoundException {
+        try {
+            return NodeData.convertFromBytes(zk.getData(decisionsPath + "/" + commitId, false, null)).getDecision();
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Called by a participant once it applied the decision, it no longer needs the record.
+     * The decision is deleted once no live participant still needs it. Dead participants don't count, a restarted
+     * server registers under a new id and recovers from its own log and its shard.
+     */
+    @Override
+    public void releaseDecision(String commitId, String serverId) throws InterruptedException, KeeperException {
+        String decisionPath = decisionsPath + "/" + commitId;
+        try {
+            zk.delete(decisionPath + "/" + serverId, -1);
+        } catch (KeeperException.NoNodeException e) {
+            // Released before, or not a participant when the decision was recorded
+        }
+        try {
+            for (String participant : zk.getChildren(decisionPath, false)) {
+                if (!isServerAlive(participant)) {
+                    try {
+                        zk.delete(decisionPath + "/" + participant, -1);
+                    } catch (KeeperException.NoNodeException e) {
+                        // Removed by another participant
+                    }
+                }
+            }
+            zk.delete(decisionPath, -1);
+            LOGGER.log(Level.INFO, String.format("releaseDecision: All participants applied %s, deleted its decision", commitId));
+        } catch (KeeperException.NoNodeException e) {
+            // Deleted by another participant
+        } catch (KeeperException.NotEmptyException e) {
+            LOGGER.log(Level.FINE, String.format("releaseDecision: Decision on %s is still needed by other participants", commitId));
+        }
+    }
+
+    @Override
+    public boolean isServerAlive(String serverId) throws InterruptedException, KeeperException {
+        return zk.exists(serversPath + "/" + serverId, false) != null;
+    }
+
 //    @Override
 //    public boolean atomicCommitWait(String atomicTxnListId, boolean vote, String[] shards) throws InterruptedException, KeeperException {
 //        String myShardId = getShardForServer(serverId);
@@ -526,29 +688,54 @@ public class ZooKeeperClientImpl implements ZooKeeperClient, Watcher {
     }
 
     /**
-     * @return A new unique timestamp as int.
+     * @return A new unique timestamp, handed out locally from the range leased by the TimestampOracle.
      */
     @Override
     public long getTimestamp() {
-        // create sequential node
-        long index = -1;
-        String indexStr = "";
-        try {
-            String id = zk.create(counterPath + "/child-", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
-            indexStr = id.replaceFirst("^.*child-", "");
-            index = Long.parseLong(indexStr);
-        } catch (KeeperException | InterruptedException e) {
-            LOGGER.log(Level.SEVERE, "Failed to create counter node", e);
-            return -1;
-        }
+        return timestampOracle.nextTimestamp();
+    }
 
-        try {
-            zk.delete(counterPath + "/child-" + indexStr, 0);
-        } catch (InterruptedException | KeeperException e) {
-            LOGGER.log(Level.WARNING, String.format("Failed to delete counter node after generating timestamp. Node path: %s/child-$s", counterPath, indexStr), e);
-        }
+    /**
+     * @return The first of `count` contiguous unique timestamps, handed out locally from the range leased by the TimestampOracle.
+     */
+    @Override
+    public long getTimestamps(int count) {
+        return timestampOracle.nextTimestamps(count);
+    }
+
+    /**
+     * @return A timestamp larger than any timestamp handed out in the system so far.
+     */
+    @Override
+    public long getGlobalTimestamp() {
+        return timestampOracle.nextGlobalTimestamp();
+    }
 
-        return index + 1;
+    @Override
+    public void observeTimestamp(long timestamp) {
+        timestampOracle.observe(timestamp);
+    }
+
+    /**
+     * Leases `count` timestamps by advancing the counter stored in the counter node.
+     * Uses a versioned setData so it is a single atomic write, retried if another server leased concurrently.
+     * @return The first leased timestamp, or -1 on failure.
+     */
+    private long leaseTimestamps(long count) {
+        while (true) {
+            try {
+                Stat stat = new Stat();
+                byte[] data = zk.getData(counterPath, false, stat);
+                long first = (data == null || data.length < Long.BYTES) ? 1 : ByteBuffer.wrap(data).getLong();
+                zk.setData(counterPath, ByteBuffer.allocate(Long.BYTES).putLong(first + count).array(), stat.getVersion());
+                return first;
+            } catch (KeeperException.BadVersionException e) {
+                LOGGER.log(Level.FINEST, "Counter node was updated concurrently, retrying the lease");
+            } catch (KeeperException | InterruptedException e) {
+                LOGGER.log(Level.SEVERE, "Failed to lease timestamps from counter node", e);
+                return -1;
+            }
+        }
     }
 
     private void createNodeIfNotExists(String path, byte[] data, List<ACL> acl, CreateMode createMode) throws InterruptedException, KeeperException {
@@ -592,11 +779,7 @@ public class ZooKeeperClientImpl implements ZooKeeperClient, Watcher {
 
     @Override
     public Map<String, List<String>> getShards() throws InterruptedException, KeeperException {
-        Map<String, List<String>> shards = new HashMap<>();
-        for (String shard : getAllShards()) {
-            shards.put(shard, getServersInShard(shard));
-        }
-        return shards;
+        return topology.getServersInShards();
     }
 
     public void setShardId(String shardId) {
@@ -0,0 +1,254 @@
+package atomicbroadcast;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.Empty;
+import constants.Constants;
+import cs236351.grpcservice.BroadcastMsg;
+import cs236351.grpcservice.ExecuteBatch;
+import cs236351.grpcservice.ExecuteBatchList;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+public class AtomicBroadcastTest {
+    private static final String SHARD = "shard-0";
+    private static final String SEQUENCER = "server-1";
+    private static final List<String> REPLICAS = List.of("server-2", "server-3");
+    private static final long TIMEOUT_MS = 5000;
+
+    /** Keeps what a service answered */
+    private static class Answer<T> implements StreamObserver<T> {
+        final CompletableFuture<T> value = new CompletableFuture<>();
+
+        @Override
+        public void onNext(T value) {
+            this.value.complete(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            value.completeExceptionally(t);
+        }
+
+        @Override
+        public void onCompleted() {}
+    }
+
+    /** A batch the sequencer sent to a replica, answered by the test */
+    private static class Sent {
+        final ExecuteBatch batch;
+        final StreamObserver<Empty> observer;
+
+        Sent(ExecuteBatch batch, StreamObserver<Empty> observer) {
+            this.batch = batch;
+            this.observer = observer;
+        }
+
+        void ack() {
+            observer.onNext(Empty.newBuilder().build());
+            observer.onCompleted();
+        }
+
+        void fail() {
+            observer.onError(Status.UNAVAILABLE.asRuntimeException());
+        }
+    }
+
+    /** A sequencer whose batches to each replica are kept until the test answers them */
+    private static class Shard {
+        final AtomicBroadcast sequencer = new AtomicBroadcast(null);
+        final Map<String, BlockingQueue<Sent>> sent = new HashMap<>();
+        final Map<String, Boolean> alive = new ConcurrentHashMap<>();
+
+        Shard() {
+            Map<String, BiConsumer<ExecuteBatch, StreamObserver<Empty>>> stubs = new HashMap<>();
+            for (String replica : REPLICAS) {
+                BlockingQueue<Sent> queue = new LinkedBlockingQueue<>();
+                sent.put(replica, queue);
+                alive.put(replica, true);
+                stubs.put(replica, (batch, observer) -> queue.add(new Sent(batch, observer)));
+            }
+            sequencer.setup(SEQUENCER, SHARD, Map.of(SHARD, SEQUENCER), stubs, alive::get);
+        }
+
+        /** @return The next batch sent to the replica */
+        Sent take(String replica) throws InterruptedException {
+            Sent next = sent.get(replica).poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            Assertions.assertNotNull(next);
+            return next;
+        }
+    }
+
+    private static ExecuteBatch batch(String sequencerId, long seqNo) {
+        return ExecuteBatch.newBuilder()
+                .setSeqNo(seqNo)
+                .setSequencerId(sequencerId)
+                .addMsgs(BroadcastMsg.newBuilder().setOrigServerId(sequencerId).setPendingReqId((int) seqNo).setSnapshotMarker(seqNo))
+                .build();
+    }
+
+    private static List<Long> drain(BlockingQueue<ExecuteBatch> packetsQueue) {
+        List<ExecuteBatch> batches = new ArrayList<>();
+        packetsQueue.drainTo(batches);
+        List<Long> seqNos = new ArrayList<>();
+        batches.forEach(batch -> seqNos.add(batch.getSeqNo()));
+        return seqNos;
+    }
+
+    private static AtomicBroadcast newReplica(String myServerId, Map<String, String> sequencers) {
+        AtomicBroadcast replica = new AtomicBroadcast(null);
+        replica.setup(myServerId, SHARD, sequencers, Map.of(), serverId -> true);
+        return replica;
+    }
+
+    /** @return Whether the replica accepted the batch */
+    private static boolean deliver(AtomicBroadcast replica, ExecuteBatch batch) {
+        Answer<Empty> answer = new Answer<>();
+        replica.executeMsgBatch(batch, answer);
+        return !answer.value.isCompletedExceptionally();
+    }
+
+    @Test
+    @DisplayName("Test Batch Committed By A Quorum")
+    void testQuorumCommit() throws InterruptedException {
+        Shard shard = new Shard();
+        AtomicBroadcast.Sequencer sequencer = shard.sequencer.sequencer;
+        sequencer.sequence(batch(SEQUENCER, 1));
+        Sent toSecond = shard.take("server-2");
+        Sent toThird = shard.take("server-3");
+        Assertions.assertTrue(shard.sequencer.packetsQueue.isEmpty());
+
+        // The sequencer and one replica are a majority of three
+        toSecond.ack();
+        Assertions.assertEquals(List.of(1L), drain(shard.sequencer.packetsQueue));
+        // Retained until the other replica acks it too, a failed send is sent again
+        toThird.fail();
+        Assertions.assertEquals(1, sequencer.retainedSince(1).size());
+        Sent retried = shard.take("server-3");
+        Assertions.assertEquals(1, retried.batch.getSeqNo());
+        retried.ack();
+        Assertions.assertTrue(sequencer.retainedSince(1).isEmpty());
+        Assertions.assertEquals(Constants.SEQUENCER_RETAINED_BATCHES, sequencer.retained.availablePermits());
+        Assertions.assertTrue(shard.sequencer.packetsQueue.isEmpty());
+    }
+
+    @Test
+    @DisplayName("Test Batches Committed Out Of Order")
+    void testOutOfOrderCommit() throws InterruptedException {
+        Shard shard = new Shard();
+        AtomicBroadcast.Sequencer sequencer = shard.sequencer.sequencer;
+        sequencer.sequence(batch(SEQUENCER, 1));
+        sequencer.sequence(batch(SEQUENCER, 2));
+        Sent first = shard.take("server-2");
+        Sent second = shard.take("server-2");
+        Assertions.assertEquals(2, second.batch.getSeqNo());
+
+        // Batch 2 reaches its quorum first, but isn't executed before batch 1
+        second.ack();
+        Assertions.assertTrue(shard.sequencer.packetsQueue.isEmpty());
+        first.ack();
+        Assertions.assertEquals(List.of(1L, 2L), drain(shard.sequencer.packetsQueue));
+    }
+
+    @Test
+    @DisplayName("Test Replica That Left The Shard")
+    void testDeparted() throws InterruptedException {
+        Shard shard = new Shard();
+        AtomicBroadcast.Sequencer sequencer = shard.sequencer.sequencer;
+        sequencer.sequence(batch(SEQUENCER, 1));
+        shard.take("server-2").ack();
+        shard.alive.put("server-3", false);
+        shard.take("server-3").fail();
+        Assertions.assertTrue(sequencer.retainedSince(1).isEmpty());
+
+        // Nothing is sent to it anymore, nor retained for it
+        sequencer.sequence(batch(SEQUENCER, 2));
+        shard.take("server-2").ack();
+        Assertions.assertTrue(shard.sent.get("server-3").isEmpty());
+        Assertions.assertTrue(sequencer.retainedSince(2).isEmpty());
+        Assertions.assertEquals(List.of(1L, 2L), drain(shard.sequencer.packetsQueue));
+    }
+
+    @Test
+    @DisplayName("Test Replica Fetches The Batches It Missed")
+    void testFetch() throws InterruptedException {
+        Shard shard = new Shard();
+        for (long seqNo = 1; seqNo <= 3; seqNo++) {
+            shard.sequencer.sequencer.sequence(batch(SEQUENCER, seqNo));
+        }
+        AtomicBroadcast replica = newReplica("server-2", Map.of(SHARD, SEQUENCER));
+        // The first fetch fails, the replica tries again
+        AtomicInteger fetches = new AtomicInteger();
+        replica.fetchSinceStubs.put(SEQUENCER, req -> {
+            if (fetches.incrementAndGet() == 1) {
+                return Futures.immediateFailedFuture(Status.UNAVAILABLE.asRuntimeException());
+            }
+            SettableFuture<ExecuteBatchList> resp = SettableFuture.create();
+            shard.sequencer.fetchSince(req, new StreamObserver<ExecuteBatchList>() {
+                @Override
+                public void onNext(ExecuteBatchList value) {
+                    resp.set(value);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    resp.setException(t);
+                }
+
+                @Override
+                public void onCompleted() {}
+            });
+            return resp;
+        });
+
+        // Batches 1 and 2 got lost on their way
+        Assertions.assertTrue(deliver(replica, batch(SEQUENCER, 3)));
+        List<Long> delivered = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ExecuteBatch next = replica.packetsQueue.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            Assertions.assertNotNull(next);
+            delivered.add(next.getSeqNo());
+        }
+        Assertions.assertEquals(List.of(1L, 2L, 3L), delivered);
+        Assertions.assertEquals(2, fetches.get());
+        // Sent again by the sequencer, already delivered
+        Assertions.assertTrue(deliver(replica, batch(SEQUENCER, 1)));
+        Assertions.assertTrue(replica.packetsQueue.isEmpty());
+    }
+
+    @Test
+    @DisplayName("Test Replica Refuses Batches")
+    void testRefused() {
+        Map<String, String> sequencers = new ConcurrentHashMap<>(Map.of(SHARD, SEQUENCER));
+        AtomicBroadcast replica = newReplica("server-2", sequencers);
+        // Nothing is missing, nothing is fetched
+        replica.fetchSinceStubs.put(SEQUENCER, req -> Futures.immediateFuture(ExecuteBatchList.getDefaultInstance()));
+        Assertions.assertTrue(deliver(replica, batch(SEQUENCER, 1)));
+        Assertions.assertFalse(deliver(replica, batch("server-3", 2)));
+        // Too far ahead to be buffered
+        Assertions.assertFalse(deliver(replica, batch(SEQUENCER, 2 + Constants.SEQUENCER_MAX_REORDERED_BATCHES)));
+        Assertions.assertTrue(deliver(replica, batch(SEQUENCER, 1 + Constants.SEQUENCER_MAX_REORDERED_BATCHES)));
+        Assertions.assertEquals(List.of(1L), drain(replica.packetsQueue));
+
+        // ZooKeeper named a new sequencer, it numbers its batches from 1 and the former one's are late
+        sequencers.put(SHARD, "server-3");
+        Assertions.assertTrue(deliver(replica, batch("server-3", 1)));
+        Assertions.assertFalse(deliver(replica, batch(SEQUENCER, 2)));
+        Assertions.assertEquals(List.of(1L), drain(replica.packetsQueue));
+    }
+}
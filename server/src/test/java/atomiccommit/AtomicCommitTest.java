@@ -0,0 +1,148 @@
+package atomiccommit;
+
+import com.google.protobuf.Empty;
+import cs236351.grpcservice.DecisionMsg;
+import cs236351.grpcservice.PrepareMsg;
+import cs236351.grpcservice.VoteMsg;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import zookeeper.Decision;
+import zookeeper.StubZooKeeperClient;
+import zookeeper.ZooKeeperClient;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class AtomicCommitTest {
+    private static final String ME = "server-0";
+    private static final String COORDINATOR = "server-1";
+    private static final List<String> SHARDS = List.of("shard-0", "shard-1");
+
+    /** Keeps what a service answered */
+    private static class Answer<T> implements StreamObserver<T> {
+        final CompletableFuture<T> value = new CompletableFuture<>();
+
+        @Override
+        public void onNext(T value) {
+            this.value.complete(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            value.completeExceptionally(t);
+        }
+
+        @Override
+        public void onCompleted() {}
+    }
+
+    private static AtomicCommit newAtomicCommit(ZooKeeperClient zk) {
+        AtomicCommit atomicCommit = new AtomicCommit(zk);
+        atomicCommit.setup(ME, "shard-0", Map.of());
+        return atomicCommit;
+    }
+
+    private static DecisionMsg decision(String commitId, boolean decision, long timestamp) {
+        return DecisionMsg.newBuilder().setCommitId(commitId).setDecision(decision).setTimestamp(timestamp).build();
+    }
+
+    @Test
+    @DisplayName("Test Coordinating My Own Shard")
+    void testCoordinator() {
+        StubZooKeeperClient zk = new StubZooKeeperClient();
+        AtomicCommit atomicCommit = newAtomicCommit(zk);
+
+        Decision commit = atomicCommit.commit("commit", ME, true, List.of("shard-0"));
+        Assertions.assertTrue(commit.decision);
+        Assertions.assertTrue(commit.timestamp > 0);
+        Assertions.assertTrue(zk.readDecision("commit").decision);
+
+        Decision abort = atomicCommit.commit("abort", ME, false, List.of("shard-0"));
+        Assertions.assertFalse(abort.decision);
+        Assertions.assertEquals(0, abort.timestamp);
+        Assertions.assertFalse(zk.readDecision("abort").decision);
+    }
+
+    @Test
+    @DisplayName("Test Decision Before The Local Vote")
+    void testEarlyDecision() {
+        AtomicCommit atomicCommit = newAtomicCommit(new StubZooKeeperClient());
+        Answer<Empty> decided = new Answer<>();
+        atomicCommit.decide(decision("commit", true, 7), decided);
+        Assertions.assertTrue(decided.value.isDone());
+
+        Decision commit = atomicCommit.commit("commit", COORDINATOR, true, SHARDS);
+        Assertions.assertTrue(commit.decision);
+        Assertions.assertEquals(7, commit.timestamp);
+    }
+
+    @Test
+    @DisplayName("Test Prepare Waits For The Local Vote")
+    void testPrepare() {
+        AtomicCommit atomicCommit = newAtomicCommit(new StubZooKeeperClient());
+        Answer<VoteMsg> vote = new Answer<>();
+        atomicCommit.prepare(PrepareMsg.newBuilder().setCommitId("commit").build(), vote);
+        Assertions.assertFalse(vote.value.isDone());
+
+        atomicCommit.decide(decision("commit", false, 0), new Answer<>());
+        Assertions.assertFalse(atomicCommit.commit("commit", COORDINATOR, false, SHARDS).decision);
+        VoteMsg answered = vote.value.join();
+        Assertions.assertEquals("shard-0", answered.getShardId());
+        Assertions.assertFalse(answered.getVote());
+    }
+
+    @Test
+    @DisplayName("Test Recovering The Decision From ZooKeeper")
+    void testRecovery() {
+        String deadCoordinator = "server-2";
+        StubZooKeeperClient zk = new StubZooKeeperClient() {
+            @Override
+            public boolean isServerAlive(String serverId) {
+                return !serverId.equals(deadCoordinator);
+            }
+        };
+        AtomicCommit atomicCommit = newAtomicCommit(zk);
+        // The coordinator recorded its decision but didn't send it
+        zk.recordDecision("recorded", new Decision(true, 9), List.of(ME, COORDINATOR));
+
+        CompletableFuture<Decision> recorded = CompletableFuture.supplyAsync(() -> atomicCommit.commit("recorded", COORDINATOR, true, SHARDS));
+        CompletableFuture<Decision> aborted = CompletableFuture.supplyAsync(() -> atomicCommit.commit("aborted", deadCoordinator, true, SHARDS));
+        Assertions.assertTrue(recorded.join().decision);
+        Assertions.assertEquals(9, recorded.join().timestamp);
+        Assertions.assertFalse(aborted.join().decision);
+        // A coordinator deciding late finds the abort
+        Assertions.assertFalse(zk.recordDecision("aborted", new Decision(true, 10), List.of(ME)).decision);
+    }
+
+    @Test
+    @DisplayName("Test Releasing The Decision Once Applied")
+    void testRelease() {
+        String deadParticipant = "server-2";
+        StubZooKeeperClient zk = new StubZooKeeperClient() {
+            @Override
+            public List<String> getServersInShard(String shardId) {
+                return shardId.equals("shard-0") ? List.of(ME) : List.of(COORDINATOR, deadParticipant);
+            }
+
+            @Override
+            public boolean isServerAlive(String serverId) {
+                return !serverId.equals(deadParticipant);
+            }
+        };
+        AtomicCommit atomicCommit = newAtomicCommit(zk);
+        Decision commit = atomicCommit.commit("commit", ME, true, List.of("shard-0"));
+        Assertions.assertTrue(commit.decision);
+        atomicCommit.release("commit");
+        Assertions.assertNull(zk.readDecision("commit"));
+
+        // Kept until every live participant applied it
+        zk.recordDecision("shared", new Decision(true, 11), zk.getServersInShard("shard-1"));
+        zk.releaseDecision("shared", ME);
+        Assertions.assertTrue(zk.readDecision("shared").decision);
+        zk.releaseDecision("shared", COORDINATOR);
+        Assertions.assertNull(zk.readDecision("shared"));
+    }
+}
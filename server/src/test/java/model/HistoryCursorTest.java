@@ -0,0 +1,43 @@
+package model;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+public class HistoryCursorTest {
+
+    private static String encode(String plain) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(plain.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @DisplayName("Test HistoryCursor Encoding")
+    void testEncoding() {
+        Transaction transaction = new Transaction("0123456789ABCDEF0123456789ABCDEF", 42, "a", null, null);
+        HistoryCursor after = HistoryCursor.decode(HistoryCursor.after(transaction).encode());
+        Assertions.assertEquals(42, after.timestamp);
+        Assertions.assertEquals(transaction.getTransactionId(), after.transactionId);
+        Assertions.assertFalse(after.backward);
+
+        HistoryCursor before = HistoryCursor.decode(HistoryCursor.before(transaction).encode());
+        Assertions.assertEquals(42, before.timestamp);
+        Assertions.assertTrue(before.backward);
+
+        // Any id goes, the id is the rest of the cursor
+        HistoryCursor colons = HistoryCursor.decode(new HistoryCursor(0, "Genesis:Tx", false).encode());
+        Assertions.assertEquals("Genesis:Tx", colons.transactionId);
+        Assertions.assertFalse(HistoryCursor.after(transaction).encode().contains("="));
+    }
+
+    @Test
+    @DisplayName("Test HistoryCursor Invalid Cursors")
+    void testInvalid() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> HistoryCursor.decode("not base64!"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> HistoryCursor.decode(encode("c:42:id")));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> HistoryCursor.decode(encode("a:42")));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> HistoryCursor.decode(encode("a:later:id")));
+    }
+}
@@ -0,0 +1,208 @@
+package multipaxos;
+
+import com.google.protobuf.ByteString;
+import constants.Constants;
+import cs236351.multipaxos.Accept;
+import cs236351.multipaxos.Ack;
+import cs236351.multipaxos.Prepare;
+import cs236351.multipaxos.Promise;
+import cs236351.multipaxos.RoundNo;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class MultiPaxosTest {
+    private static final List<String> REPLICAS = List.of("server-1", "server-2", "server-3");
+    private static final long TIMEOUT_MS = 10000;
+
+    /** The replicas of a shard, talking over in-process gRPC. Each test names its own so their servers don't collide. */
+    private static class Shard {
+        final Map<String, MultiPaxos> replicas = new HashMap<>();
+        final Map<String, List<ByteString>> delivered = new HashMap<>();
+        final List<Server> servers = new ArrayList<>();
+
+        Shard(String name) throws IOException {
+            Map<String, String> addresses = new HashMap<>();
+            for (String replica : REPLICAS) {
+                addresses.put(replica, name + "-" + replica);
+            }
+            for (String replica : REPLICAS) {
+                List<ByteString> values = Collections.synchronizedList(new ArrayList<>());
+                MultiPaxos multiPaxos = new MultiPaxos(values::add);
+                multiPaxos.setup(replica, addresses.get(replica), addresses, null,
+                        address -> InProcessChannelBuilder.forName(address).build());
+                InProcessServerBuilder server = InProcessServerBuilder.forName(addresses.get(replica));
+                multiPaxos.addServices(server);
+                servers.add(server.build().start());
+                replicas.put(replica, multiPaxos);
+                delivered.put(replica, values);
+            }
+        }
+
+        MultiPaxos get(String replica) {
+            return replicas.get(replica);
+        }
+
+        /** @return The values the replica delivered, once there are `count` of them */
+        List<ByteString> awaitDelivered(String replica, int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            List<ByteString> values = delivered.get(replica);
+            while (values.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            synchronized (values) {
+                return new ArrayList<>(values);
+            }
+        }
+
+        void close() {
+            servers.forEach(Server::shutdownNow);
+        }
+    }
+
+    private static ByteString value(String value) {
+        return ByteString.copyFromUtf8(value);
+    }
+
+    private static RoundNo round(int no, int id) {
+        return RoundNo.newBuilder().setNo(no).setId(id).build();
+    }
+
+    private static Accept accept(RoundNo round, int instanceNo, String value) {
+        return Accept.newBuilder().setRoundNo(round).setInstanceNo(instanceNo).setValue(value(value)).build();
+    }
+
+    private static Prepare prepare(RoundNo round, int instanceNo) {
+        return Prepare.newBuilder().setRoundNo(round).setInstanceNo(instanceNo).build();
+    }
+
+    private static void await(CompletableFuture<Void> chosen) throws Exception {
+        chosen.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    @DisplayName("Test Phase 1 Recovers Accepted Values")
+    void testRecoverAccepted() throws Exception {
+        Shard shard = new Shard("recover");
+        // Chosen by another proposer, which died before committing it
+        for (String replica : List.of("server-2", "server-3")) {
+            shard.get(replica).acceptor.accept(accept(round(1, 2), 1, "old")).join();
+        }
+        await(shard.get("server-1").propose(value("new")));
+        for (String replica : REPLICAS) {
+            Assertions.assertEquals(List.of(value("old"), value("new")), shard.awaitDelivered(replica, 2));
+        }
+        shard.close();
+    }
+
+    @Test
+    @DisplayName("Test Phase 1 Fills Gaps With No-ops")
+    void testFillGaps() throws Exception {
+        Shard shard = new Shard("gaps");
+        // Nothing was accepted in instance 1
+        for (String replica : List.of("server-2", "server-3")) {
+            shard.get(replica).acceptor.accept(accept(round(1, 2), 2, "late")).join();
+        }
+        await(shard.get("server-1").propose(value("new")));
+        for (String replica : REPLICAS) {
+            // The no-op isn't delivered
+            Assertions.assertEquals(List.of(value("late"), value("new")), shard.awaitDelivered(replica, 2));
+        }
+        Assertions.assertEquals(4, shard.get("server-1").learner.firstUndelivered());
+        shard.close();
+    }
+
+    @Test
+    @DisplayName("Test Displaced Values Are Proposed Again")
+    void testDisplaced() throws Exception {
+        Shard shard = new Shard("displaced");
+        await(shard.get("server-1").propose(value("first")));
+        // A competing proposer got a quorum to accept its value in the next instance, in a higher round
+        for (String replica : List.of("server-2", "server-3")) {
+            shard.get(replica).acceptor.accept(accept(round(5, 3), 2, "other")).join();
+        }
+        // Refused in the old round, so the leader runs phase 1 again and finds the other value chosen in its instance
+        await(shard.get("server-1").propose(value("mine")));
+        Assertions.assertEquals(List.of(value("first"), value("other"), value("mine")), shard.awaitDelivered("server-1", 3));
+        shard.close();
+    }
+
+    @Test
+    @DisplayName("Test Acceptor Replays Its Log")
+    void testAcceptorReplay() throws IOException {
+        Path dir = Files.createTempDirectory("acceptor");
+        Acceptor acceptor = new Acceptor();
+        acceptor.open(dir);
+        Assertions.assertEquals(Ack.YES, acceptor.prepare(prepare(round(2, 1), 1)).join().getAck());
+        acceptor.accept(accept(round(2, 1), 1, "a")).join();
+        acceptor.accept(accept(round(3, 2), 2, "b")).join();
+
+        Acceptor recovered = new Acceptor();
+        Assertions.assertFalse(recovered.isOpened());
+        recovered.open(dir);
+        Assertions.assertTrue(recovered.isOpened());
+        Assertions.assertEquals(2, recovered.lastAccepted());
+        // The promise made by accepting in round 3.2 is kept
+        Promise no = recovered.prepare(prepare(round(3, 1), 1)).join();
+        Assertions.assertEquals(Ack.NO, no.getAck());
+        Assertions.assertEquals(round(3, 2), no.getGoodRoundNo());
+        Promise yes = recovered.prepare(prepare(round(4, 1), 1)).join();
+        Assertions.assertEquals(Ack.YES, yes.getAck());
+        Assertions.assertEquals(2, yes.getInstanceNo());
+        Assertions.assertEquals(List.of(accept(round(2, 1), 1, "a"), accept(round(3, 2), 2, "b")), yes.getAcceptedList());
+    }
+
+    @Test
+    @DisplayName("Test Leader Catches Up Before Phase 1")
+    void testCatchUp() throws Exception {
+        Shard shard = new Shard("catchup");
+        // The other replicas delivered far enough for their acceptors to prune instances server-1 didn't learn
+        int chosen = Constants.MULTIPAXOS_RETAINED_INSTANCES + 100;
+        for (String replica : List.of("server-2", "server-3")) {
+            for (int i = 1; i <= chosen; i++) {
+                shard.get(replica).learner.learn(i, value("v" + i));
+            }
+        }
+        Assertions.assertEquals(Ack.NO, shard.get("server-2").acceptor.prepare(prepare(round(9, 1), 1)).join().getAck());
+
+        await(shard.get("server-1").propose(value("new")));
+        List<ByteString> delivered = shard.awaitDelivered("server-1", chosen + 1);
+        Assertions.assertEquals(chosen + 1, delivered.size());
+        Assertions.assertEquals(value("v1"), delivered.get(0));
+        Assertions.assertEquals(value("new"), delivered.get(chosen));
+        shard.close();
+    }
+
+    @Test
+    @DisplayName("Test Leader Too Far Behind Fails Its Proposals")
+    void testTooFarBehind() throws Exception {
+        Shard shard = new Shard("behind");
+        // Not even the learners hold the first instances anymore
+        int chosen = Constants.MULTIPAXOS_LEARNER_RETAINED_INSTANCES + 100;
+        for (String replica : List.of("server-2", "server-3")) {
+            for (int i = 1; i <= chosen; i++) {
+                shard.get(replica).learner.learn(i, value("v" + i));
+            }
+        }
+        ExecutionException failed = Assertions.assertThrows(ExecutionException.class,
+                () -> await(shard.get("server-1").propose(value("new"))));
+        Assertions.assertTrue(failed.getCause() instanceof IllegalStateException);
+        Assertions.assertEquals(1, shard.get("server-1").learner.firstUndelivered());
+        shard.close();
+    }
+}
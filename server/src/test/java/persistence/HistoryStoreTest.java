@@ -0,0 +1,54 @@
+package persistence;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class HistoryStoreTest {
+    private static final int ARENA_SIZE = 64;
+
+    /** Appends records of growing length, some larger than an arena, and reads them all back */
+    private static void roundTrip(HistoryStore store) {
+        List<String> records = new ArrayList<>();
+        List<Long> addresses = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            String record = "r".repeat(i * 3);
+            records.add(record);
+            addresses.add(store.append(record.getBytes(StandardCharsets.UTF_8)));
+        }
+        for (int i = 0; i < records.size(); i++) {
+            Assertions.assertEquals(records.get(i), new String(store.read(addresses.get(i)), StandardCharsets.UTF_8));
+        }
+        // Records don't span arenas, the arena is in the high 32 bits of the address
+        Assertions.assertEquals(0, addresses.get(0) >>> 32);
+        Assertions.assertTrue(addresses.get(addresses.size() - 1) >>> 32 > 1);
+    }
+
+    @Test
+    @DisplayName("Test HistoryStore Direct Arenas")
+    void testDirect() {
+        roundTrip(HistoryStore.direct(ARENA_SIZE));
+    }
+
+    @Test
+    @DisplayName("Test HistoryStore Mapped Arenas")
+    void testMapped() throws IOException {
+        Path dir = Files.createTempDirectory("history");
+        roundTrip(HistoryStore.mapped(dir, ARENA_SIZE));
+
+        // The store is scratch space, a new one starts empty
+        HistoryStore reopened = HistoryStore.mapped(dir, ARENA_SIZE);
+        try (Stream<Path> files = Files.list(dir)) {
+            Assertions.assertEquals(0, files.count());
+        }
+        Assertions.assertEquals(0, reopened.append(new byte[]{1}));
+    }
+}
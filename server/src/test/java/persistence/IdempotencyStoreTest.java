@@ -0,0 +1,109 @@
+package persistence;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class IdempotencyStoreTest {
+    private static final long RETENTION = 10;
+
+    @Test
+    @DisplayName("Test IdempotencyStore Expiry")
+    void testExpiry() {
+        IdempotencyStore store = new IdempotencyStore(RETENTION, 100);
+        Assertions.assertFalse(store.contains("key", 0));
+        store.add("key", 5);
+        Assertions.assertTrue(store.contains("key", 5));
+        Assertions.assertTrue(store.contains("key", 5 + RETENTION));
+        Assertions.assertFalse(store.contains("key", 6 + RETENTION));
+
+        // Adding it again starts its window over
+        store.add("key", 20);
+        Assertions.assertTrue(store.contains("key", 20 + RETENTION));
+    }
+
+    @Test
+    @DisplayName("Test IdempotencyStore Keys Evicted From Memory")
+    void testEviction() throws IOException {
+        IdempotencyStore memory = new IdempotencyStore(RETENTION, 2);
+        Path file = Files.createTempDirectory("idempotency").resolve("keys.table");
+        IdempotencyStore backed = new IdempotencyStore(RETENTION, 2, file, 64);
+        for (String key : new String[]{"a", "b", "c"}) {
+            memory.add(key, 1);
+            backed.add(key, 1);
+        }
+        Assertions.assertFalse(memory.contains("a", 1));
+        Assertions.assertTrue(memory.contains("c", 1));
+        Assertions.assertTrue(backed.contains("a", 1));
+
+        IdempotencyStore reopened = new IdempotencyStore(RETENTION, 2, file, 64);
+        Assertions.assertTrue(reopened.contains("a", 1 + RETENTION));
+        Assertions.assertFalse(reopened.contains("a", 2 + RETENTION));
+    }
+
+    @Test
+    @DisplayName("Test IdempotencyStore Table Wraparound")
+    void testWraparound() throws IOException {
+        Path file = Files.createTempDirectory("idempotency").resolve("keys.table");
+        // Nothing stays in memory, other than keys the table has no room for
+        IdempotencyStore store = new IdempotencyStore(RETENTION, 0, file, 4);
+        for (int i = 0; i < 4; i++) {
+            store.add("old-" + i, 1);
+        }
+        store.add("overflow", 2);
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertTrue(store.contains("old-" + i, 5));
+        }
+        Assertions.assertTrue(store.contains("overflow", 5));
+
+        // The table is full of keys that didn't expire, the key that didn't fit is only in memory
+        IdempotencyStore reopened = new IdempotencyStore(RETENTION, 0, file, 4);
+        Assertions.assertTrue(reopened.contains("old-0", 5));
+        Assertions.assertFalse(reopened.contains("overflow", 5));
+
+        // Once they expire their slots are reused, probing past the end of the table back to its start
+        long later = 2 + RETENTION;
+        for (int i = 0; i < 4; i++) {
+            reopened.add("new-" + i, later);
+        }
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertTrue(reopened.contains("new-" + i, later));
+            Assertions.assertFalse(reopened.contains("old-" + i, later));
+        }
+    }
+
+    @Test
+    @DisplayName("Test IdempotencyStore Pending Keys")
+    void testPending() throws IOException {
+        Path file = Files.createTempDirectory("idempotency").resolve("keys.table");
+        IdempotencyStore store = new IdempotencyStore(RETENTION, 0, file, 64);
+        Assertions.assertEquals(0, store.lastTicket());
+        long first = store.addPending("first", 1);
+        long second = store.addPending("second", 2);
+        Assertions.assertEquals(second, store.lastTicket());
+        Assertions.assertTrue(store.contains("first", 1));
+        Assertions.assertTrue(store.contains("second", 2));
+        // Not in the table until they are persisted
+        Assertions.assertFalse(new IdempotencyStore(RETENTION, 0, file, 64).contains("first", 1));
+
+        store.persistThrough(first);
+        store.force();
+        IdempotencyStore reopened = new IdempotencyStore(RETENTION, 0, file, 64);
+        Assertions.assertTrue(reopened.contains("first", 1));
+        Assertions.assertFalse(reopened.contains("second", 2));
+        Assertions.assertTrue(store.contains("second", 2 + RETENTION));
+        Assertions.assertFalse(store.contains("second", 3 + RETENTION));
+
+        // Adding a key again takes a later ticket
+        long again = store.addPending("first", 3);
+        store.persistThrough(second);
+        Assertions.assertTrue(new IdempotencyStore(RETENTION, 0, file, 64).contains("second", 2));
+        Assertions.assertTrue(store.contains("first", 3 + RETENTION));
+        store.persistThrough(again);
+        Assertions.assertTrue(new IdempotencyStore(RETENTION, 0, file, 64).contains("first", 3 + RETENTION));
+    }
+}
@@ -0,0 +1,153 @@
+package persistence;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class LedgerLogTest {
+    private static final int SEGMENT_SIZE = 4096;
+    // Long enough that only the test flushes
+    private static final long NO_FLUSH_MS = 3600000;
+
+    private static List<String> replay(LedgerLog log, long from) throws IOException {
+        List<String> records = new ArrayList<>();
+        log.replay(from, bytes -> records.add(new String(bytes, StandardCharsets.UTF_8)));
+        return records;
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static Path onlySegment(Path dir) throws IOException {
+        List<Path> segments = segments(dir);
+        Assertions.assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    @Test
+    @DisplayName("Test LedgerLog Replay After Reopen")
+    void testReopen() throws IOException {
+        Path dir = Files.createTempDirectory("ledger-log");
+        LedgerLog log = new LedgerLog(dir, SEGMENT_SIZE, NO_FLUSH_MS);
+        long first = log.append("a".getBytes(StandardCharsets.UTF_8));
+        long end = log.append("bc".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(2 * Integer.BYTES + 1, first);
+        Assertions.assertEquals(first + 2 * Integer.BYTES + 2, end);
+        log.close();
+
+        LedgerLog reopened = new LedgerLog(dir, SEGMENT_SIZE, NO_FLUSH_MS);
+        Assertions.assertEquals(end, reopened.position());
+        Assertions.assertEquals(List.of("a", "bc"), replay(reopened, 0));
+        Assertions.assertEquals(List.of("bc"), replay(reopened, first));
+        reopened.append("d".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(List.of("a", "bc", "d"), replay(reopened, 0));
+        reopened.close();
+    }
+
+    @Test
+    @DisplayName("Test LedgerLog Torn Tail")
+    void testTornTail() throws IOException {
+        Path dir = Files.createTempDirectory("ledger-log");
+        LedgerLog log = new LedgerLog(dir, SEGMENT_SIZE, NO_FLUSH_MS);
+        log.append("a".getBytes(StandardCharsets.UTF_8));
+        long end = log.append("b".getBytes(StandardCharsets.UTF_8));
+        log.close();
+        // A crash in the middle of the next append: its header is written, only part of its bytes are
+        try (RandomAccessFile file = new RandomAccessFile(onlySegment(dir).toFile(), "rw")) {
+            file.seek(end);
+            file.writeInt(100);
+            file.writeInt(12345);
+            file.write("partial".getBytes(StandardCharsets.UTF_8));
+        }
+
+        LedgerLog reopened = new LedgerLog(dir, SEGMENT_SIZE, NO_FLUSH_MS);
+        Assertions.assertEquals(end, reopened.position());
+        Assertions.assertEquals(List.of("a", "b"), replay(reopened, 0));
+        // The torn record is overwritten by the next append
+        reopened.append("c".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(List.of("a", "b", "c"), replay(reopened, 0));
+        reopened.close();
+    }
+
+    @Test
+    @DisplayName("Test LedgerLog CRC Mismatch")
+    void testChecksum() throws IOException {
+        Path dir = Files.createTempDirectory("ledger-log");
+        LedgerLog log = new LedgerLog(dir, SEGMENT_SIZE, NO_FLUSH_MS);
+        long first = log.append("a".getBytes(StandardCharsets.UTF_8));
+        log.append("b".getBytes(StandardCharsets.UTF_8));
+        log.append("c".getBytes(StandardCharsets.UTF_8));
+        log.close();
+        // Flip the byte of the second record, replay stops right before it
+        try (RandomAccessFile file = new RandomAccessFile(onlySegment(dir).toFile(), "rw")) {
+            file.seek(first + 2 * Integer.BYTES);
+            file.write('x');
+        }
+
+        LedgerLog reopened = new LedgerLog(dir, SEGMENT_SIZE, NO_FLUSH_MS);
+        Assertions.assertEquals(first, reopened.position());
+        Assertions.assertEquals(List.of("a"), replay(reopened, 0));
+        reopened.close();
+    }
+
+    @Test
+    @DisplayName("Test LedgerLog Durability")
+    void testWhenDurable() throws IOException {
+        Path dir = Files.createTempDirectory("ledger-log");
+        LedgerLog log = new LedgerLog(dir, SEGMENT_SIZE, NO_FLUSH_MS);
+        long first = log.append("a".getBytes(StandardCharsets.UTF_8));
+        CompletableFuture<Void> durable = log.whenDurable(first);
+        Assertions.assertFalse(durable.isDone());
+
+        log.flush();
+        Assertions.assertTrue(durable.isDone());
+        Assertions.assertTrue(log.whenDurable(first).isDone());
+
+        long second = log.append("b".getBytes(StandardCharsets.UTF_8));
+        CompletableFuture<Void> closed = log.whenDurable(second);
+        Assertions.assertFalse(closed.isDone());
+        log.close();
+        Assertions.assertTrue(closed.isDone());
+    }
+
+    @Test
+    @DisplayName("Test LedgerLog Segments")
+    void testSegments() throws IOException {
+        Path dir = Files.createTempDirectory("ledger-log");
+        LedgerLog log = new LedgerLog(dir, 64, NO_FLUSH_MS);
+        List<Long> ends = new ArrayList<>();
+        List<String> records = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            String record = String.format("record-%d-%s", i, "x".repeat(20));
+            records.add(record);
+            ends.add(log.append(record.getBytes(StandardCharsets.UTF_8)));
+        }
+        Assertions.assertEquals(10, segments(dir).size());
+        Assertions.assertEquals(records, replay(log, 0));
+        Assertions.assertEquals(records.subList(5, 10), replay(log, ends.get(4)));
+
+        log.truncateBefore(ends.get(4));
+        Assertions.assertEquals(5, segments(dir).size());
+        Assertions.assertEquals(records.subList(5, 10), replay(log, ends.get(4)));
+        log.close();
+
+        LedgerLog reopened = new LedgerLog(dir, 64, NO_FLUSH_MS);
+        Assertions.assertEquals(ends.get(9), reopened.position());
+        Assertions.assertEquals(records.subList(5, 10), replay(reopened, ends.get(4)));
+        reopened.close();
+    }
+}
@@ -0,0 +1,34 @@
+package persistence;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+public class SnapshotStoreTest {
+
+    @Test
+    @DisplayName("Test SnapshotStore Latest Snapshot")
+    void testLatest() throws IOException {
+        Path dir = Files.createTempDirectory("snapshots");
+        SnapshotStore store = new SnapshotStore(dir);
+        Assertions.assertNull(store.readLatest());
+
+        store.write(100, "first".getBytes(StandardCharsets.UTF_8));
+        store.write(2000, "second".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals("second", new String(store.readLatest(), StandardCharsets.UTF_8));
+        try (Stream<Path> files = Files.list(dir)) {
+            Assertions.assertEquals(1, files.count());
+        }
+
+        // A snapshot that was being written when the server crashed isn't read
+        Files.write(dir.resolve(String.format("%020d.snap.tmp", 3000)), "torn".getBytes(StandardCharsets.UTF_8));
+        SnapshotStore reopened = new SnapshotStore(dir);
+        Assertions.assertEquals("second", new String(reopened.readLatest(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,36 @@
+package transactionmanager;
+
+import model.Transaction;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class CompactTransactionTest {
+
+    @Test
+    @DisplayName("Test CompactTransaction Timestamp Order")
+    void testTimestampOrder() {
+        TransactionIds ids = new TransactionIds();
+        Random random = new Random(236351);
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            // Few timestamps, so many ties are broken by the id, and digests with their top bit set
+            String id = String.format("%016X%016X", random.nextLong(), random.nextLong());
+            transactions.add(new Transaction(id, random.nextInt(5), "a", null, null));
+        }
+        for (Transaction t1 : transactions) {
+            TransactionIds.Key id1 = ids.key(t1.getTransactionId());
+            CompactTransaction c1 = CompactTransaction.probe(t1.getTimestamp(), id1.high, id1.low);
+            for (Transaction t2 : transactions) {
+                TransactionIds.Key id2 = ids.key(t2.getTransactionId());
+                CompactTransaction c2 = CompactTransaction.probe(t2.getTimestamp(), id2.high, id2.low);
+                Assertions.assertEquals(Integer.signum(TransactionLedger.TIMESTAMP_ORDER.compare(t1, t2)),
+                        Integer.signum(CompactTransaction.TIMESTAMP_ORDER.compare(c1, c2)));
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package transactionmanager;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class TransactionIdsTest {
+    private static final String DIGEST = "0123456789ABCDEFFEDCBA9876543210";
+
+    private static String hex(TransactionIds.Key key) {
+        return String.format("%016X%016X", key.high, key.low);
+    }
+
+    @Test
+    @DisplayName("Test TransactionIds Digests")
+    void testDigest() {
+        TransactionIds ids = new TransactionIds();
+        Assertions.assertTrue(TransactionIds.isDigest(DIGEST));
+        Assertions.assertFalse(TransactionIds.isDigest(DIGEST.toLowerCase()));
+        Assertions.assertFalse(TransactionIds.isDigest(DIGEST.substring(1)));
+        Assertions.assertFalse(TransactionIds.isDigest("GenesisTxId"));
+
+        TransactionIds.Key key = ids.register(DIGEST);
+        Assertions.assertEquals(0x0123456789ABCDEFL, key.high);
+        Assertions.assertEquals(0xFEDCBA9876543210L, key.low);
+        Assertions.assertEquals(key, ids.key(DIGEST));
+        Assertions.assertEquals(DIGEST, ids.toString(key.high, key.low));
+        // A digest doesn't need registering to be looked up
+        TransactionIds.Key unregistered = ids.key("FFFFFFFFFFFFFFFF0000000000000000");
+        Assertions.assertEquals("FFFFFFFFFFFFFFFF0000000000000000", ids.toString(unregistered.high, unregistered.low));
+    }
+
+    @Test
+    @DisplayName("Test TransactionIds Irregular Ids")
+    void testIrregular() {
+        TransactionIds ids = new TransactionIds();
+        TransactionIds.Key genesis = ids.register("GenesisTxId");
+        Assertions.assertEquals(genesis, ids.register("GenesisTxId"));
+        Assertions.assertEquals(genesis, ids.key("GenesisTxId"));
+        Assertions.assertEquals("GenesisTxId", ids.toString(genesis.high, genesis.low));
+        Assertions.assertNotEquals(genesis, ids.register("genesistxid"));
+
+        // An id that was never registered isn't found at another id's key
+        TransactionIds.Key unknown = ids.key("UnknownTxId");
+        Assertions.assertNotEquals(genesis, unknown);
+        Assertions.assertNotEquals("UnknownTxId", ids.toString(unknown.high, unknown.low));
+    }
+
+    @Test
+    @DisplayName("Test TransactionIds Digest At An Irregular Key")
+    void testDisplacedDigest() {
+        TransactionIds ids = new TransactionIds();
+        TransactionIds.Key genesis = ids.register("GenesisTxId");
+        // The digest that would be stored at the genesis transaction's key gets a key of its own
+        String digest = hex(genesis);
+        TransactionIds.Key displaced = ids.register(digest);
+        Assertions.assertNotEquals(genesis, displaced);
+        Assertions.assertEquals(displaced, ids.key(digest));
+        Assertions.assertEquals(displaced, ids.register(digest));
+        Assertions.assertEquals(digest, ids.toString(displaced.high, displaced.low));
+        Assertions.assertEquals("GenesisTxId", ids.toString(genesis.high, genesis.low));
+        Assertions.assertEquals(genesis, ids.key("GenesisTxId"));
+    }
+}
@@ -0,0 +1,286 @@
+package transactionmanager;
+
+import grpcservice.RequestHandlerUtils;
+import model.HistoryCursor;
+import model.Response;
+import model.Transaction;
+import model.Transfer;
+import model.UTxO;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import persistence.HistoryStore;
+import zookeeper.StubZooKeeperClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static constants.Constants.GENESIS_ADDRESS;
+import static constants.Constants.GENESIS_TRANSACTION_ID;
+
+public class TransactionLedgerTest {
+    // Addresses of other shards start with it
+    private static final String OTHER_SHARD = "other-";
+
+    private static TransactionLedger newLedger() {
+        TransactionLedger ledger = new TransactionLedger(new StubZooKeeperClient(address -> !address.startsWith(OTHER_SHARD)));
+        ledger.addGenesisBlockToLedger();
+        return ledger;
+    }
+
+    /** Performs a transfer the ledger picks the inputs for, like the Executor does */
+    private static Transaction transfer(TransactionLedger ledger, String source, String target, long coins, long timestamp) {
+        Transaction transaction = ledger.createTransactionForCoinTransfer(source, target, coins).transaction;
+        transaction.setTimestamp(timestamp);
+        ledger.performTransaction(transaction);
+        return transaction;
+    }
+
+    /** The coins of each UTxO of the address by the id of its transaction */
+    private static Map<String, Long> unspent(TransactionLedger ledger, String address) {
+        Map<String, Long> unspent = new TreeMap<>();
+        ledger.listUTxOsForAddress(address).forEach(utxo -> unspent.put(utxo.getTransactionId(), utxo.getCoins()));
+        return unspent;
+    }
+
+    private static List<Transaction> history(TransactionLedger ledger) {
+        List<Transaction> history = new ArrayList<>();
+        ledger.iterateHistory(-1, Long.MAX_VALUE, null).forEachRemaining(history::add);
+        return history;
+    }
+
+    @Test
+    @DisplayName("Test Validation With UTxO Values")
+    void testValidation() {
+        TransactionLedger ledger = newLedger();
+        Transaction funding = transfer(ledger, GENESIS_ADDRESS, "a", 100, 1);
+        Assertions.assertEquals(List.of(new UTxO("a", funding.getTransactionId())), ledger.listUTxOsForAddress("a"));
+        Assertions.assertEquals(100, ledger.listUTxOsForAddress("a").get(0).getCoins());
+        Assertions.assertEquals(1, ledger.listUTxOsForAddress("a").get(0).getTimestamp());
+
+        List<UTxO> inputs = List.of(new UTxO("a", funding.getTransactionId()));
+        Transaction valid = new Transaction(null, 2, null, inputs, List.of(new Transfer("b", 60), new Transfer("a", 40)));
+        Assertions.assertEquals(HttpStatus.CREATED, ledger.canProcessTransaction(valid, true).statusCode);
+        Transaction unbalanced = new Transaction(null, 2, null, inputs, List.of(new Transfer("b", 60)));
+        Assertions.assertEquals(HttpStatus.BAD_REQUEST, ledger.canProcessTransaction(unbalanced, true).statusCode);
+        // Can't spend a UTxO at or before the timestamp it was created at
+        Transaction early = new Transaction(null, 1, null, inputs, List.of(new Transfer("b", 100)));
+        Assertions.assertEquals(HttpStatus.BAD_REQUEST, ledger.canProcessTransaction(early, true).statusCode);
+        Assertions.assertEquals(HttpStatus.CREATED, ledger.canProcessTransaction(early, false).statusCode);
+
+        ledger.performTransaction(valid);
+        Assertions.assertEquals(HttpStatus.BAD_REQUEST, ledger.canProcessTransaction(valid, true).statusCode);
+        Assertions.assertEquals(40, ledger.listUTxOsForAddress("a").get(0).getCoins());
+    }
+
+    @Test
+    @DisplayName("Test Restoring UTxOs Without Values")
+    void testRestoreWithoutValues() {
+        TransactionLedger ledger = newLedger();
+        Transaction funding = transfer(ledger, GENESIS_ADDRESS, "a", 100, 1);
+        TransactionLedger.Snapshot snapshot = ledger.takeSnapshot(() -> 0);
+
+        // Snapshots taken before UTxOs carried their values only name the transaction
+        TransactionLedger restored = new TransactionLedger(new StubZooKeeperClient());
+        restored.restore(snapshot.history(), List.of(new UTxO("a", funding.getTransactionId())));
+        Assertions.assertEquals(unspent(ledger, "a"), unspent(restored, "a"));
+        Assertions.assertEquals(1, restored.listUTxOsForAddress("a").get(0).getTimestamp());
+    }
+
+    /** The coins of the inputs of a transfer from a source holding the UTxOs in `unspent` */
+    private static List<Long> inputCoins(Transaction transaction, Map<String, Long> unspent) {
+        return transaction.getInputs().stream().map(input -> unspent.get(input.getTransactionId())).sorted().collect(Collectors.toList());
+    }
+
+    @Test
+    @DisplayName("Test Coin Selection")
+    void testCoinSelection() {
+        TransactionLedger ledger = newLedger();
+        long timestamp = 1;
+        for (long coins : new long[]{50, 30, 20, 7}) {
+            transfer(ledger, GENESIS_ADDRESS, "a", coins, timestamp++);
+        }
+        Map<String, Long> unspent = unspent(ledger, "a");
+
+        // 50 + 7 is exact, there is no change
+        Response.TransactionResp exact = ledger.createTransactionForCoinTransfer("a", "b", 57);
+        Assertions.assertEquals(HttpStatus.OK, exact.statusCode);
+        Assertions.assertEquals(List.of(7L, 50L), inputCoins(exact.transaction, unspent));
+        Assertions.assertEquals(List.of(new Transfer("b", 57)), exact.transaction.getOutputs());
+
+        // No subset sums to 96, the largest UTxOs are taken until they cover it
+        Response.TransactionResp largest = ledger.createTransactionForCoinTransfer("a", "b", 96);
+        Assertions.assertEquals(List.of(20L, 30L, 50L), inputCoins(largest.transaction, unspent));
+        Assertions.assertEquals(List.of(new Transfer("b", 96), new Transfer("a", 4)), largest.transaction.getOutputs());
+
+        Response.TransactionResp all = ledger.createTransactionForCoinTransfer("a", "b", 107);
+        Assertions.assertEquals(4, all.transaction.getInputs().size());
+        Assertions.assertEquals(1, all.transaction.getOutputs().size());
+        Assertions.assertEquals(HttpStatus.BAD_REQUEST, ledger.createTransactionForCoinTransfer("a", "b", 108).statusCode);
+        Assertions.assertEquals(HttpStatus.BAD_REQUEST, ledger.createTransactionForCoinTransfer("a", "b", -1).statusCode);
+        Assertions.assertEquals(HttpStatus.BAD_REQUEST, ledger.createTransactionForCoinTransfer("nobody", "b", 1).statusCode);
+
+        exact.transaction.setTimestamp(timestamp);
+        ledger.performTransaction(exact.transaction);
+        Assertions.assertEquals(List.of(20L, 30L), unspent(ledger, "a").values().stream().sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    @DisplayName("Test Compact Round Trip")
+    void testCompactRoundTrip() {
+        TransactionLedger ledger = newLedger();
+        Transaction genesis = ledger.listTransactionsForAddress(GENESIS_ADDRESS, -1, null).get(0);
+        Assertions.assertEquals(GENESIS_TRANSACTION_ID, genesis.getTransactionId());
+        Transaction first = transfer(ledger, GENESIS_ADDRESS, "a", 100, 1);
+        Assertions.assertEquals(List.of(new UTxO(GENESIS_ADDRESS, GENESIS_TRANSACTION_ID)), first.getInputs());
+        Transaction second = transfer(ledger, "a", "b", 30, 2);
+        // From another shard, with an id that isn't a digest and inputs from transactions this shard doesn't have
+        Transaction recorded = new Transaction("Consolidation:1", 3, OTHER_SHARD + "y",
+                List.of(new UTxO(OTHER_SHARD + "y", "SomeOtherTxId"), new UTxO(OTHER_SHARD + "y", "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF")),
+                List.of(new Transfer("b", 10)));
+        ledger.recordTransaction(recorded);
+
+        Assertions.assertEquals(List.of(genesis, first), ledger.listTransactionsForAddress(GENESIS_ADDRESS, -1, null));
+        Assertions.assertEquals(List.of(first, second), ledger.listTransactionsForAddress("a", -1, null));
+        Assertions.assertEquals(List.of(second, recorded), ledger.listTransactionsForAddress("b", -1, null));
+        Assertions.assertTrue(ledger.hasTransaction("Consolidation:1"));
+        Assertions.assertFalse(ledger.hasTransaction("SomeOtherTxId"));
+        Assertions.assertEquals(Map.of(second.getTransactionId(), 30L, "Consolidation:1", 10L), unspent(ledger, "b"));
+    }
+
+    @Test
+    @DisplayName("Test History In A HistoryStore")
+    void testHistoryStore() {
+        TransactionLedger ledger = new TransactionLedger(new StubZooKeeperClient(), HistoryStore.direct(256));
+        ledger.addGenesisBlockToLedger();
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            transactions.add(transfer(ledger, GENESIS_ADDRESS, "a", i, i));
+        }
+        transactions.add(transfer(ledger, "a", "b", 55, 21));
+
+        Assertions.assertEquals(transactions, ledger.listTransactionsForAddress("a", -1, null));
+        Assertions.assertEquals(transactions.subList(20, 21), ledger.listTransactionsForAddress("b", -1, null));
+        Assertions.assertEquals(210 - 55, unspent(ledger, "a").values().stream().mapToLong(Long::longValue).sum());
+        // Read again, from the transactions last read from the store
+        Assertions.assertEquals(transactions.get(0), ledger.listTransactionsForAddress("a", 1, null).get(0));
+    }
+
+    /** A ledger where address a took part in transactions at timestamps 1 to 6, two of them at 3 like in an atomic list */
+    private static TransactionLedger pagedLedger() {
+        TransactionLedger ledger = newLedger();
+        transfer(ledger, GENESIS_ADDRESS, "a", 10, 1);
+        transfer(ledger, "a", "b", 1, 2);
+        transfer(ledger, "a", "c", 1, 3);
+        transfer(ledger, "a", "d", 1, 3);
+        transfer(ledger, "a", "e", 1, 4);
+        transfer(ledger, GENESIS_ADDRESS, "a", 5, 5);
+        transfer(ledger, "a", "f", 2, 6);
+        return ledger;
+    }
+
+    @Test
+    @DisplayName("Test Address History Paging")
+    void testAddressPaging() {
+        TransactionLedger ledger = pagedLedger();
+        List<Transaction> all = ledger.listTransactionsForAddress("a", -1, null);
+        Assertions.assertEquals(7, all.size());
+        Assertions.assertEquals(all.get(2).getTimestamp(), all.get(3).getTimestamp());
+        Assertions.assertTrue(TransactionLedger.TIMESTAMP_ORDER.compare(all.get(2), all.get(3)) < 0);
+
+        List<Transaction> forward = new ArrayList<>();
+        List<Transaction> page = ledger.listTransactionsForAddress("a", 2, null);
+        while (!page.isEmpty()) {
+            Assertions.assertTrue(page.size() <= 2);
+            forward.addAll(page);
+            page = ledger.listTransactionsForAddress("a", 2, HistoryCursor.after(page.get(page.size() - 1)));
+        }
+        Assertions.assertEquals(all, forward);
+
+        // Each page backward is still sorted by timestamp
+        List<Transaction> backward = new ArrayList<>();
+        page = ledger.listTransactionsForAddress("a", 2, HistoryCursor.before(all.get(all.size() - 1)));
+        while (!page.isEmpty()) {
+            Assertions.assertTrue(TransactionLedger.TIMESTAMP_ORDER.compare(page.get(0), page.get(page.size() - 1)) <= 0);
+            backward.addAll(0, page);
+            page = ledger.listTransactionsForAddress("a", 2, HistoryCursor.before(page.get(0)));
+        }
+        Assertions.assertEquals(all.subList(0, all.size() - 1), backward);
+    }
+
+    @Test
+    @DisplayName("Test Shard History Paging")
+    void testHistoryPaging() {
+        TransactionLedger ledger = pagedLedger();
+        List<Transaction> all = history(ledger);
+        Assertions.assertEquals(8, all.size());
+        long snapshotTimestamp = 4;
+
+        List<Transaction> forward = new ArrayList<>();
+        Iterator<Transaction> page = ledger.iterateHistory(3, snapshotTimestamp, null);
+        while (page.hasNext()) {
+            while (page.hasNext()) {
+                forward.add(page.next());
+            }
+            page = ledger.iterateHistory(3, snapshotTimestamp, HistoryCursor.after(forward.get(forward.size() - 1)));
+        }
+        Assertions.assertTrue(forward.stream().allMatch(transaction -> transaction.getTimestamp() <= snapshotTimestamp));
+        Assertions.assertEquals(all.subList(0, forward.size()), forward);
+        Assertions.assertEquals(6, forward.size());
+
+        // Backward from the newest transaction, the ones after the snapshot are skipped
+        List<Transaction> backward = new ArrayList<>();
+        page = ledger.iterateHistory(3, snapshotTimestamp, HistoryCursor.before(all.get(all.size() - 1)));
+        while (page.hasNext()) {
+            while (page.hasNext()) {
+                backward.add(page.next());
+            }
+            page = ledger.iterateHistory(3, snapshotTimestamp, HistoryCursor.before(backward.get(backward.size() - 1)));
+        }
+        Collections.reverse(backward);
+        Assertions.assertEquals(forward, backward);
+    }
+
+    @Test
+    @DisplayName("Test Snapshot Then Restore")
+    void testSnapshotRestore() {
+        TransactionLedger ledger = newLedger();
+        transfer(ledger, GENESIS_ADDRESS, "a", 500, 1);
+        transfer(ledger, "a", "b", 200, 2);
+        transfer(ledger, "a", OTHER_SHARD + "x", 50, 3);
+        // Coins another shard gave b
+        Transaction recorded = new Transaction(null, 4, OTHER_SHARD + "y",
+                List.of(new UTxO(OTHER_SHARD + "y", "0123456789ABCDEF0123456789ABCDEF")),
+                List.of(new Transfer("b", 10), new Transfer(OTHER_SHARD + "y", 5)));
+        ledger.recordTransaction(recorded);
+
+        TransactionLedger.Snapshot snapshot = ledger.takeSnapshot(() -> 42);
+        // Written after the snapshot, replayed from the log after restoring it
+        List<Transaction> later = List.of(transfer(ledger, "b", "a", 100, 5), transfer(ledger, "a", "c", 1, 6));
+        Assertions.assertEquals(42, snapshot.logPosition);
+        Assertions.assertEquals(5, snapshot.history().size());
+
+        // The way TransactionManager writes and reads it
+        TransactionLedger restored = new TransactionLedger(new StubZooKeeperClient(address -> !address.startsWith(OTHER_SHARD)));
+        restored.restore(
+                snapshot.history().stream().map(RequestHandlerUtils::createTransactionMsg).map(RequestHandlerUtils::createTransaction).collect(Collectors.toList()),
+                snapshot.unspent().stream().map(RequestHandlerUtils::createUTxOMsg).map(RequestHandlerUtils::createUTxO).collect(Collectors.toList()));
+        Assertions.assertTrue(restored.hasTransaction(recorded.getTransactionId()));
+        Assertions.assertTrue(unspent(restored, OTHER_SHARD + "x").isEmpty());
+        later.forEach(restored::performTransaction);
+
+        for (String address : List.of(GENESIS_ADDRESS, "a", "b", "c", OTHER_SHARD + "x", OTHER_SHARD + "y")) {
+            Assertions.assertEquals(unspent(ledger, address), unspent(restored, address));
+            Assertions.assertEquals(ledger.listTransactionsForAddress(address, -1, null), restored.listTransactionsForAddress(address, -1, null));
+        }
+        Assertions.assertEquals(history(ledger), history(restored));
+        Assertions.assertEquals(349, unspent(restored, "a").values().stream().mapToLong(Long::longValue).sum());
+        Assertions.assertEquals(110, unspent(restored, "b").values().stream().mapToLong(Long::longValue).sum());
+    }
+}
@@ -0,0 +1,69 @@
+package transactionmanager;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TransactionTableTest {
+
+    private static CompactTransaction transaction(long idHigh, long idLow) {
+        return new CompactTransaction(idHigh, idLow, idHigh, 0, new int[0], new long[0], new int[0], new long[0]);
+    }
+
+    @Test
+    @DisplayName("Test TransactionTable Lookups")
+    void testGet() {
+        TransactionTable table = new TransactionTable();
+        Assertions.assertNull(table.get(1, 1));
+        // Ids whose two longs xor to the same value have the same home slot
+        for (long i = 1; i <= 8; i++) {
+            Assertions.assertTrue(table.add(transaction(i, i)));
+        }
+        Assertions.assertFalse(table.add(transaction(3, 3)));
+        for (long i = 1; i <= 8; i++) {
+            Assertions.assertEquals(i, table.get(i, i).idHigh);
+        }
+        Assertions.assertNull(table.get(9, 9));
+
+        // Past the initial capacity
+        for (long i = 100; i < 5100; i++) {
+            table.add(transaction(i, 31 * i + 7));
+        }
+        for (long i = 100; i < 5100; i++) {
+            Assertions.assertEquals(31 * i + 7, table.get(i, 31 * i + 7).idLow);
+        }
+        Assertions.assertEquals(3, table.get(3, 3).idHigh);
+        Set<Long> visited = new HashSet<>();
+        table.forEach(transaction -> visited.add(transaction.idHigh));
+        Assertions.assertEquals(5008, visited.size());
+    }
+
+    @Test
+    @DisplayName("Test TransactionTable Insertion Order")
+    void testForEachUntil() {
+        TransactionTable table = new TransactionTable();
+        for (long i = 0; i < 3000; i++) {
+            table.add(transaction(i, 31 * i + 7));
+        }
+        Assertions.assertFalse(table.add(transaction(0, 7)));
+        int count = table.count();
+        Assertions.assertEquals(3000, count);
+
+        // Transactions added after the count was taken aren't visited
+        for (long i = 3000; i < 4000; i++) {
+            table.add(transaction(i, 31 * i + 7));
+        }
+        List<Long> visited = new ArrayList<>();
+        table.forEachUntil(count, transaction -> visited.add(transaction.idHigh));
+        Assertions.assertEquals(3000, visited.size());
+        for (int i = 0; i < visited.size(); i++) {
+            Assertions.assertEquals(i, visited.get(i));
+        }
+        Assertions.assertEquals(4000, table.count());
+    }
+}
@@ -0,0 +1,113 @@
+package transactionmanager;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class UTxOSetTest {
+
+    /** The coins of the picked UTxOs, in the order they were picked */
+    private static List<Long> coins(long[] picked) {
+        List<Long> coins = new ArrayList<>();
+        for (int i = 0; i < picked.length; i += 3) {
+            coins.add(picked[i + 2]);
+        }
+        return coins;
+    }
+
+    @Test
+    @DisplayName("Test UTxOSet Backward Shift Delete")
+    void testRemove() {
+        UTxOSet set = new UTxOSet();
+        long[] value = new long[2];
+        // The two longs of each id xor to 0, so they all have the same home slot and are probed one after the other
+        for (long i = 1; i <= 6; i++) {
+            set.add(i, i, 10 * i, i);
+        }
+        Assertions.assertTrue(set.remove(3, 3));
+        Assertions.assertTrue(set.remove(1, 1));
+        Assertions.assertFalse(set.remove(1, 1));
+        for (long i = 1; i <= 6; i++) {
+            Assertions.assertEquals(i != 1 && i != 3, set.get(i, i, value));
+        }
+        Assertions.assertTrue(set.get(6, 6, value));
+        Assertions.assertEquals(60, value[0]);
+        Assertions.assertEquals(6, value[1]);
+
+        // Against a map, through resizes both ways
+        Random random = new Random(236351);
+        Map<Long, Long> expected = new HashMap<>();
+        UTxOSet randomSet = new UTxOSet();
+        for (int step = 0; step < 20000; step++) {
+            long id = random.nextInt(step < 10000 ? 2000 : 200);
+            if (random.nextInt(3) == 0 || step >= 15000) {
+                Assertions.assertEquals(expected.remove(id) != null, randomSet.remove(id, 31 * id + 7));
+            } else {
+                long coins = 1 + random.nextInt(1000);
+                expected.put(id, coins);
+                randomSet.add(id, 31 * id + 7, coins, step);
+            }
+        }
+        Assertions.assertEquals(expected.size(), randomSet.size());
+        for (long id = 0; id < 2000; id++) {
+            Assertions.assertEquals(expected.containsKey(id), randomSet.get(id, 31 * id + 7, value));
+            if (expected.containsKey(id)) {
+                Assertions.assertEquals(expected.get(id), value[0]);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test UTxOSet Running Balance")
+    void testTotal() {
+        UTxOSet set = new UTxOSet();
+        Assertions.assertEquals(0, set.total());
+        set.add(1, 2, 100, 1);
+        set.add(3, 4, 50, 2);
+        Assertions.assertEquals(150, set.total());
+        // Adding the same id replaces it
+        set.add(1, 2, 70, 3);
+        Assertions.assertEquals(2, set.size());
+        Assertions.assertEquals(120, set.total());
+        set.remove(3, 4);
+        Assertions.assertEquals(70, set.total());
+        set.remove(1, 2);
+        Assertions.assertEquals(0, set.size());
+        Assertions.assertEquals(0, set.total());
+
+        List<Long> visited = new ArrayList<>();
+        set.add(5, 6, 7, 8);
+        set.forEach((idHigh, idLow, coins, timestamp) -> visited.addAll(List.of(idHigh, idLow, coins, timestamp)));
+        Assertions.assertEquals(List.of(5L, 6L, 7L, 8L), visited);
+    }
+
+    @Test
+    @DisplayName("Test UTxOSet Value Buckets")
+    void testSelect() {
+        UTxOSet set = new UTxOSet();
+        // Enough UTxOs to be indexed by value
+        for (long coins = 1; coins <= 100; coins++) {
+            set.add(coins, coins * 31, coins, coins);
+        }
+        Assertions.assertEquals(List.of(50L, 49L, 48L), coins(set.select(true, 50, 3, Long.MAX_VALUE)));
+        Assertions.assertEquals(List.of(1L, 2L, 3L), coins(set.select(false, Long.MAX_VALUE, 3, Long.MAX_VALUE)));
+        Assertions.assertEquals(List.of(100L, 99L), coins(set.select(true, Long.MAX_VALUE, Integer.MAX_VALUE, 150)));
+        Assertions.assertEquals(List.of(), coins(set.select(true, 0, 3, Long.MAX_VALUE)));
+        long[] picked = set.select(true, 64, 1, Long.MAX_VALUE);
+        Assertions.assertArrayEquals(new long[]{64, 64 * 31, 64}, picked);
+
+        // Small again, scanned whole
+        for (long coins = 1; coins <= 90; coins++) {
+            set.remove(coins, coins * 31);
+        }
+        Assertions.assertEquals(10, set.size());
+        Assertions.assertEquals(List.of(95L, 94L), coins(set.select(true, 95, 2, Long.MAX_VALUE)));
+        Assertions.assertEquals(List.of(91L, 92L), coins(set.select(false, Long.MAX_VALUE, Integer.MAX_VALUE, 150)));
+    }
+}
@@ -0,0 +1,33 @@
+package zookeeper;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+public class NodeDataTest {
+
+    @Test
+    @DisplayName("Test NodeData Encoding")
+    void testEncoding() throws IOException {
+        NodeData address = NodeData.convertFromBytes(NodeData.convertToBytes(new NodeData("10.0.0.1:8980")));
+        Assertions.assertEquals("10.0.0.1:8980", address.getAddress());
+        Assertions.assertNull(address.getDecision());
+
+        NodeData decision = NodeData.convertFromBytes(NodeData.convertToBytes(new NodeData(true, 42)));
+        Assertions.assertNull(decision.getAddress());
+        Assertions.assertTrue(decision.getDecision().decision);
+        Assertions.assertEquals(42, decision.getDecision().timestamp);
+
+        NodeData vote = NodeData.convertFromBytes(NodeData.convertToBytes(new NodeData(false)));
+        Assertions.assertFalse(vote.getDecision().decision);
+
+        NodeData noDecision = NodeData.convertFromBytes(NodeData.convertToBytes(new NodeData((Boolean) null)));
+        Assertions.assertNull(noDecision.getDecision().decision);
+
+        byte[] unknownVersion = NodeData.convertToBytes(new NodeData("10.0.0.1:8980"));
+        unknownVersion[0] = NodeData.VERSION + 1;
+        Assertions.assertThrows(IOException.class, () -> NodeData.convertFromBytes(unknownVersion));
+    }
+}
@@ -0,0 +1,166 @@
+package zookeeper;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * In-memory ZooKeeperClient for the tests: a single server whose shard is responsible for the addresses the
+ * predicate accepts, a local timestamp counter and the decisions recorded and not released yet. Barriers are not used by the
+ * tested code paths.
+ */
+public class StubZooKeeperClient implements ZooKeeperClient {
+    private static final String SERVER_ID = "server-0";
+    private static final String SHARD_ID = "shard-0";
+
+    private final Predicate<String> responsible;
+    private final AtomicLong timestamps = new AtomicLong(1);
+    private final Map<String, Decision> decisions = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> pendingParticipants = new ConcurrentHashMap<>();
+
+    public StubZooKeeperClient() {
+        this(address -> true);
+    }
+
+    public StubZooKeeperClient(Predicate<String> responsible) {
+        this.responsible = responsible;
+    }
+
+    @Override
+    public void setup() {}
+
+    @Override
+    public void setupInitialStructures() {}
+
+    @Override
+    public void registerServer(String address) {}
+
+    @Override
+    public String getServerId() {
+        return SERVER_ID;
+    }
+
+    @Override
+    public String getShardId() {
+        return SHARD_ID;
+    }
+
+    @Override
+    public List<String> getServers() {
+        return Collections.singletonList(SERVER_ID);
+    }
+
+    @Override
+    public List<String> getServersInShard(String shardId) {
+        return Collections.singletonList(SERVER_ID);
+    }
+
+    @Override
+    public Map<String, List<String>> getShards() {
+        return Collections.singletonMap(SHARD_ID, getServers());
+    }
+
+    @Override
+    public String getServerAddress(String serverId) {
+        return "localhost";
+    }
+
+    @Override
+    public String getShardLeader(String shardId) {
+        return SERVER_ID;
+    }
+
+    @Override
+    public String watchLeader(String shardId, BiFunction<String, String, Object> func) {
+        return SERVER_ID;
+    }
+
+    @Override
+    public String getResponsibleShard(String address) {
+        return SHARD_ID;
+    }
+
+    @Override
+    public Decision atomicCommitWait(String atomicTxnListId, String initiatorServer, boolean vote, List<String> votingShards) {
+        return new Decision(vote, getTimestamp());
+    }
+
+    @Override
+    public Decision recordDecision(String commitId, Decision decision, List<String> participants) {
+        Decision recorded = decisions.putIfAbsent(commitId, decision);
+        if (recorded != null) {
+            return recorded;
+        }
+        pendingParticipants.put(commitId, ConcurrentHashMap.newKeySet());
+        pendingParticipants.get(commitId).addAll(participants);
+        return decision;
+    }
+
+    @Override
+    public void releaseDecision(String commitId, String serverId) {
+        Set<String> pending = pendingParticipants.get(commitId);
+        if (pending == null) {
+            return;
+        }
+        pending.remove(serverId);
+        pending.removeIf(participant -> !isServerAlive(participant));
+        if (pending.isEmpty()) {
+            pendingParticipants.remove(commitId);
+            decisions.remove(commitId);
+        }
+    }
+
+    @Override
+    public Decision readDecision(String commitId) {
+        return decisions.get(commitId);
+    }
+
+    @Override
+    public boolean isServerAlive(String serverId) {
+        return true;
+    }
+
+    @Override
+    public long getGlobalTimestamp() {
+        return getTimestamp();
+    }
+
+    @Override
+    public long getTimestamp() {
+        return timestamps.getAndIncrement();
+    }
+
+    @Override
+    public long getTimestamps(int count) {
+        return timestamps.getAndAdd(count);
+    }
+
+    @Override
+    public void observeTimestamp(long timestamp) {
+        timestamps.accumulateAndGet(timestamp + 1, Math::max);
+    }
+
+    @Override
+    public void enterBarrier(String barrierId, List<String> shards, String initiatorServerId) {}
+
+    @Override
+    public void setDecision(String barrierId, boolean decision, long timestamp) {}
+
+    @Override
+    public Decision waitForDecision(String barrierId, String initiatorServerId) {
+        return new Decision(true, getTimestamp());
+    }
+
+    @Override
+    public void leaveBarrier(String path) {}
+
+    @Override
+    public boolean isResponsibleForAddress(String address) {
+        return responsible.test(address);
+    }
+}
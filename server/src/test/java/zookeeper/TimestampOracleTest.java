@@ -0,0 +1,52 @@
+package zookeeper;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TimestampOracleTest {
+    private static final int LEASE_SIZE = 8;
+
+    @Test
+    @DisplayName("Test TimestampOracle Leases")
+    void testLeases() {
+        AtomicLong counter = new AtomicLong(0);
+        TimestampOracle oracle = new TimestampOracle(counter::getAndAdd, LEASE_SIZE);
+        long previous = -1;
+        for (int i = 0; i < 5 * LEASE_SIZE; i++) {
+            long timestamp = oracle.nextTimestamp();
+            Assertions.assertTrue(timestamp > previous, String.format("%d after %d", timestamp, previous));
+            previous = timestamp;
+        }
+        long first = oracle.nextTimestamps(3 * LEASE_SIZE);
+        Assertions.assertTrue(first > previous);
+        Assertions.assertTrue(oracle.nextTimestamp() >= first + 3 * LEASE_SIZE);
+        Assertions.assertEquals(-1, new TimestampOracle(count -> -1, LEASE_SIZE).nextTimestamp());
+    }
+
+    @Test
+    @DisplayName("Test TimestampOracle Observe Past The Prefetched Range")
+    void testObservePastPrefetched() throws InterruptedException {
+        AtomicLong counter = new AtomicLong(0);
+        TimestampOracle oracle = new TimestampOracle(counter::getAndAdd, LEASE_SIZE);
+        // Running low on [0, 8) leases [8, 16) in the background
+        for (int i = 0; i < LEASE_SIZE - 1; i++) {
+            oracle.nextTimestamp();
+        }
+        while (!oracle.isPrefetched()) {
+            Thread.sleep(1);
+        }
+
+        // Another server leased [16, 116) and handed out 50
+        counter.getAndAdd(100);
+        oracle.observe(50);
+        long previous = 50;
+        for (int i = 0; i < 3 * LEASE_SIZE; i++) {
+            long timestamp = oracle.nextTimestamp();
+            Assertions.assertTrue(timestamp > previous, String.format("%d after %d", timestamp, previous));
+            previous = timestamp;
+        }
+    }
+}
@@ -2,7 +2,7 @@ rootProject.name = "course236351-project-template"
 
 // when running the assemble task, ignore the android & graalvm related subprojects
 if (startParameter.taskRequests.find { it.args.contains("assemble") } == null) {
-    include("protos", "stub", "server")
+    include("protos", "stub", "server", "benchmarks")
 } else {
     include("protos", "stub", "server")
 }